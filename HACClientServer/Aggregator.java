@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * An optional tier between a subset of the clients and the root server, so the root's packet rate
+ * grows with the number of aggregators rather than the number of clients. Clients are pointed at an
+ * aggregator as if it were the server. Their handshakes are relayed to the root in HR packets
+ * (code 8), which carry the client's own address and port in the record so the root's table and the
+ * AS packets hold the address the other clients know it by, and the root's HS answer is passed back
+ * to the client. Their availability packets are collected and each heartbeat interval the ids heard
+ * from are sent upstream in AG packets (code 9) of the form | Header (4) | Table Version (8) |
+ * Base Version (8) | Count (4) | followed by 4-byte ids packed with their generation as in a record,
+ * about 300 ids to a datagram, with the aggregator's own table version as the acknowledged version.
+ * <p>
+ * The root sends each aggregator one full or delta AS packet per tick instead of one per client.
+ * The aggregator keeps a copy of the table built from them the way a client does and passes each
+ * packet on to its live clients: a full table, or a delta, goes to every client holding the delta's
+ * base version, and a client holding any other version is sent the aggregator's full table instead.
+ * @author Sam Dodson
+ *
+ */
+public class Aggregator {
+	static final byte CODE_RELAYED_HANDSHAKE = 8;
+	static final byte CODE_DIGEST = 9;
+	static final int MAX_DIGEST_IDS = (PacketFragmenter.MAX_DATAGRAM_SIZE - PacketCodec.OFFSET_RECORDS) / 4;
+	private final int port;
+	private InetAddress rootIp;
+	private final int rootPort;
+	private DatagramSocket socket;
+	private byte version = 1;
+	private byte modeClientServer = 0;
+	private byte codeHCPacket = 0;
+	private byte codeHSPacket = 1;
+	private byte codeACPacket = 2;
+	private byte codeASPacket = 3;
+	private final HashMap<Integer, Downstream> downstream = new HashMap<>();
+	private int[] heard = new int[MAX_DIGEST_IDS];
+	private int heardCount = 0;
+	private ArrayList<ClientData> clientData = new ArrayList<>();
+	private HashMap<Integer, Integer> clientIndex = new HashMap<>();
+	private long tableVersion = 0;
+	private int messageId = 0;
+	private long digestsSent = 0;
+	private long snapshotsForwarded = 0;
+	private final byte[] receiveBytes = new byte[PacketCodec.MAX_PACKET_SIZE];
+	private final ByteBuffer digestBuffer = ByteBuffer.allocate(PacketFragmenter.MAX_DATAGRAM_SIZE);
+	private final PacketCodec codec = new PacketCodec();
+	private final PacketCodec snapshotCodec = new PacketCodec();
+	private final PacketReassembler reassembler = new PacketReassembler();
+	private final HeartbeatConfig heartbeat = HeartbeatConfig.fromSystemProperties();
+	private final HeartbeatScheduler scheduler = new HeartbeatScheduler("aggregator-digest", heartbeat);
+	
+	/**
+	 * A client sending availability through this aggregator
+	 */
+	private static class Downstream {
+		private final int generation;
+		private InetAddress address;
+		private int port;
+		private long ackedVersion = 0;
+		private long lastHeard = 0;
+		private boolean heard = false;
+		
+		/**
+		 * Constructor for the Downstream class
+		 * @param generation the generation of the client's id
+		 */
+		Downstream(int generation) {
+			this.generation = generation;
+		}
+	}
+	
+	/**
+	 * Constructor for the Aggregator class
+	 * @param port the port number clients send to
+	 * @param rootIp the IP address of the root server
+	 * @param rootPort the port number of the root server
+	 */
+	public Aggregator(int port, String rootIp, int rootPort) {
+		this.port = port;
+		try {
+			this.rootIp = InetAddress.getByName(rootIp);
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+		}
+		this.rootPort = rootPort;
+	}
+	
+	/**
+	 * Determines if a packet code belongs to the aggregation tier
+	 * @param code the code of a received packet
+	 * @return true for relayed handshake and aggregated availability packets
+	 */
+	static boolean isAggregatorCode(byte code) {
+		return code == CODE_RELAYED_HANDSHAKE || code == CODE_DIGEST;
+	}
+	
+	/**
+	 * Binds the socket, starts sending availability upstream every heartbeat interval and relays
+	 * packets in an infinite loop
+	 */
+	public void listen() {
+		try {
+			socket = new DatagramSocket(port);
+		} catch (SocketException e) {
+			e.printStackTrace();
+			return;
+		}
+		scheduler.start(new Runnable() {
+			@Override
+			public void run() {
+				sendDigest();
+			}
+		});
+		while(true) {
+			receive();
+		}
+	}
+	
+	/**
+	 * Receives one datagram, reassembling the root's split packets, and relays it
+	 */
+	public void receive() {
+		DatagramPacket received = new DatagramPacket(receiveBytes, receiveBytes.length);
+		try {
+			socket.receive(received);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		ByteBuffer datagram = ByteBuffer.wrap(received.getData(), received.getOffset(), received.getLength());
+		if(datagram.remaining() < PacketCodec.OFFSET_RECORDS) {
+			return;
+		}
+		if(received.getAddress().equals(rootIp) && received.getPort() == rootPort) {
+			ByteBuffer packet = reassembler.accept(datagram, received.getAddress(), received.getPort(), System.currentTimeMillis());
+			if(packet != null) {
+				processRootPacket(packet);
+			}
+		}
+		else {
+			processClientPacket(datagram, received.getAddress(), received.getPort());
+		}
+	}
+	
+	/**
+	 * Handles a packet from a client: handshakes are relayed to the root with the client's address
+	 * and availability packets are noted for the next AG packet
+	 * @param buffer the buffer holding the packet
+	 * @param address the IP address the packet came from
+	 * @param port the port number the packet came from
+	 */
+	void processClientPacket(ByteBuffer buffer, InetAddress address, int port) {
+		if(PacketCodec.peekVersion(buffer) != version || PacketCodec.peekMode(buffer) != modeClientServer) {
+			return;
+		}
+		byte code = PacketCodec.peekCode(buffer);
+		if(code == codeHCPacket) {
+			PacketData packetData = PacketCodec.decode(buffer.duplicate());
+			if(packetData == null || packetData.getClientData().isEmpty()) {
+				return;
+			}
+			ClientData client = packetData.getClientData().get(0);
+			client.setAddress(address);
+			client.setPort(port);
+			PacketData relayed = new PacketData(version, modeClientServer, CODE_RELAYED_HANDSHAKE, packetData.getClientData());
+			relayed.setFlags(false, true);
+			synchronized(this) {
+				send(codec.encode(relayed), rootIp, rootPort);
+			}
+		}
+		else if(code == codeACPacket) {
+			int id = PacketCodec.peekFirstClientId(buffer);
+			int generation = PacketCodec.peekFirstClientGeneration(buffer);
+			if(id < 0) {
+				return;
+			}
+			synchronized(this) {
+				// A client that comes back with a new generation of the id replaces the one that held it
+				Downstream client = downstream.get(id);
+				if(client == null || client.generation != generation) {
+					client = new Downstream(generation);
+					downstream.put(id, client);
+				}
+				client.address = address;
+				client.port = port;
+				client.ackedVersion = PacketCodec.peekTableVersion(buffer);
+				client.lastHeard = System.currentTimeMillis();
+				if(!client.heard) {
+					client.heard = true;
+					if(heardCount == heard.length) {
+						heard = Arrays.copyOf(heard, heard.length * 2);
+					}
+					heard[heardCount++] = PacketCodec.packId(id, generation);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Handles a packet from the root: handshake answers are passed back to the client they name and
+	 * AS packets are applied to the local table and passed on to every live client
+	 * @param packet the packet, reassembled if it was split
+	 */
+	void processRootPacket(ByteBuffer packet) {
+		PacketData packetData = PacketCodec.decode(packet.duplicate());
+		if(packetData == null || packetData.getVersion() != version || packetData.getMode() != modeClientServer) {
+			return;
+		}
+		if(packetData.getCode() == codeHSPacket && !packetData.getClientData().isEmpty()) {
+			ClientData client = packetData.getClientData().get(0);
+			send(packet, client.getAddress(), client.getPort());
+		}
+		else if(packetData.getCode() == codeASPacket) {
+			synchronized(this) {
+				forwardSnapshot(packet, packetData);
+			}
+		}
+	}
+	
+	/**
+	 * Applies an AS packet to the local table and sends it, or the local full table, to each live client
+	 * @param packet the encoded AS packet
+	 * @param packetData the decoded AS packet
+	 */
+	private void forwardSnapshot(ByteBuffer packet, PacketData packetData) {
+		if(packetData.getDelta() == false) {
+			clientData = packetData.getClientData();
+			indexClients();
+			tableVersion = packetData.getTableVersion();
+		}
+		else if(packetData.getBaseVersion() == tableVersion) {
+			applyDelta(packetData);
+		}
+		else {
+			// A delta against a table this aggregator missed is dropped, the next one is sent against its version
+			return;
+		}
+		byte[][] fragments = PacketFragmenter.split(packet.duplicate(), messageId++);
+		byte[][] full = null;
+		long now = System.currentTimeMillis();
+		for(Downstream client: downstream.values()) {
+			if(now - client.lastHeard > heartbeat.getTimeout()) {
+				continue;
+			}
+			if(packetData.getDelta() == false || client.ackedVersion == packetData.getBaseVersion()) {
+				send(fragments, client.address, client.port);
+			}
+			else {
+				if(full == null) {
+					PacketData table = new PacketData(version, modeClientServer, codeASPacket, clientData);
+					table.setFlags(true, true);
+					table.setTableVersion(tableVersion);
+					full = AvailabilitySnapshot.create(table, snapshotCodec, messageId++).getFragments();
+				}
+				send(full, client.address, client.port);
+			}
+		}
+		snapshotsForwarded++;
+	}
+	
+	/**
+	 * Applies a delta AS packet to the local table the way a client does, live clients absent from
+	 * the delta gain one availability point per elapsed table version and purged clients are removed
+	 * @param packetData the delta packet whose base version matches the local table version
+	 */
+	private void applyDelta(PacketData packetData) {
+		int elapsed = (int) (packetData.getTableVersion() - packetData.getBaseVersion());
+		for(ClientData client: clientData) {
+			if(client.getStatus() == false) {
+				client.setAvailability(client.getAvailability() + elapsed);
+			}
+		}
+		
+		// Changed clients are found by id in constant time, purged ones are cleared and then compacted 
+		// away in one pass so a delta costs time in proportion to its records unless it purges
+		boolean purged = false;
+		for(ClientData changed: packetData.getClientData()) {
+			Integer index = clientIndex.get(changed.getId());
+			if(changed.getPurged()) {
+				if(index != null) {
+					clientData.set(index, null);
+					clientIndex.remove(changed.getId());
+					purged = true;
+				}
+			}
+			else if(index != null) {
+				clientData.set(index, changed);
+			}
+			else {
+				clientIndex.put(changed.getId(), clientData.size());
+				clientData.add(changed);
+			}
+		}
+		if(purged) {
+			int kept = 0;
+			for(ClientData client: clientData) {
+				if(client != null) {
+					clientData.set(kept++, client);
+				}
+			}
+			clientData.subList(kept, clientData.size()).clear();
+			indexClients();
+		}
+		tableVersion = packetData.getTableVersion();
+	}	
+	/**
+	 * Rebuilds the map from each client's id to its position in the local table
+	 */
+	private void indexClients() {
+		clientIndex.clear();
+		for(int index = 0; index < clientData.size(); index++) {
+			clientIndex.put(clientData.get(index).getId(), index);
+		}
+	}
+	
+	/**
+	 * Sends the ids heard from since the last interval to the root in as few AG packets as they fit,
+	 * and forgets clients not heard from for a timeout. An empty AG packet is still sent so the root
+	 * keeps sending AS packets to this aggregator.
+	 */
+	synchronized void sendDigest() {
+		int sent = 0;
+		do {
+			int count = Math.min(MAX_DIGEST_IDS, heardCount - sent);
+			digestBuffer.clear();
+			PacketCodec.writeHeader(digestBuffer, version, modeClientServer, CODE_DIGEST, PacketData.FLAG_LAST_PACKET);
+			digestBuffer.putLong(tableVersion);
+			digestBuffer.putLong(0);
+			digestBuffer.putInt(count);
+			for(int index = 0; index < count; index++) {
+				digestBuffer.putInt(heard[sent + index]);
+			}
+			digestBuffer.flip();
+			send(digestBuffer, rootIp, rootPort);
+			digestsSent++;
+			sent += count;
+		} while(sent < heardCount);
+		heardCount = 0;
+		
+		long now = System.currentTimeMillis();
+		Iterator<Downstream> clients = downstream.values().iterator();
+		while(clients.hasNext()) {
+			Downstream client = clients.next();
+			client.heard = false;
+			if(now - client.lastHeard > 2 * heartbeat.getTimeout()) {
+				clients.remove();
+			}
+		}
+		System.out.println("Aggregator: " + downstream.size() + " clients | Table version " + tableVersion + " | AG packets sent " + digestsSent + " | AS packets forwarded " + snapshotsForwarded + "\n");
+	}
+	
+	/**
+	 * Sends an encoded packet
+	 * @param packet the buffer holding the packet from its position to its limit
+	 * @param address the IP address to send to
+	 * @param port the port number to send to
+	 */
+	private void send(ByteBuffer packet, InetAddress address, int port) {
+		try {
+			socket.send(new DatagramPacket(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining(), address, port));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sends each fragment of a split packet
+	 * @param fragments the datagrams to send in order
+	 * @param address the IP address to send to
+	 * @param port the port number to send to
+	 */
+	private void send(byte[][] fragments, InetAddress address, int port) {
+		for(byte[] fragment: fragments) {
+			try {
+				socket.send(new DatagramPacket(fragment, fragment.length, address, port));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Getter for the number of clients sending through this aggregator
+	 * @return the clients heard from within the last two timeouts
+	 */
+	public synchronized int getClientCount() {
+		return this.downstream.size();
+	}
+	
+	/**
+	 * Getter for the table version of the local table
+	 * @return the root's table version as of the last applied AS packet
+	 */
+	public synchronized long getTableVersion() {
+		return this.tableVersion;
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * The times between a node's most recent heartbeats, kept in a fixed-size ring with running sums 
+ * so the mean and standard deviation are available without rescanning the ring
+ * @author Sam Dodson
+ *
+ */
+public class ArrivalWindow {
+	private final long[] intervals;
+	private int next = 0;
+	private int count = 0;
+	private double sum = 0;
+	private double sumOfSquares = 0;
+	private long last = -1;
+	
+	/**
+	 * Constructor for the ArrivalWindow class
+	 * @param size the number of intervals kept
+	 */
+	public ArrivalWindow(int size) {
+		this.intervals = new long[Math.max(1, size)];
+	}
+	
+	/**
+	 * Records a heartbeat, the interval since the previous one replaces the oldest in the ring
+	 * @param now the time in milliseconds the heartbeat arrived
+	 */
+	public synchronized void record(long now) {
+		if(last >= 0 && now > last) {
+			long interval = now - last;
+			if(count == intervals.length) {
+				long oldest = intervals[next];
+				sum -= oldest;
+				sumOfSquares -= (double) oldest * oldest;
+			}
+			else {
+				count++;
+			}
+			intervals[next] = interval;
+			next = (next + 1) % intervals.length;
+			sum += interval;
+			sumOfSquares += (double) interval * interval;
+		}
+		if(now > last) {
+			last = now;
+		}
+	}
+	
+	/**
+	 * Getter for the time of the latest heartbeat
+	 * @return the time in milliseconds of the latest heartbeat, or -1 if none has arrived
+	 */
+	public synchronized long getLast() {
+		return this.last;
+	}
+	
+	/**
+	 * Getter for the number of intervals in the ring
+	 * @return the number of intervals recorded, up to the size of the ring
+	 */
+	public synchronized int getCount() {
+		return this.count;
+	}
+	
+	/**
+	 * Getter for the mean interval
+	 * @return the mean of the intervals in the ring in milliseconds, or 0 if there are none
+	 */
+	public synchronized double getMean() {
+		return (count == 0) ? 0 : sum / count;
+	}
+	
+	/**
+	 * Getter for the standard deviation of the intervals
+	 * @return the standard deviation of the intervals in the ring in milliseconds, or 0 if there are none
+	 */
+	public synchronized double getStandardDeviation() {
+		if(count == 0) {
+			return 0;
+		}
+		double mean = sum / count;
+		return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+	}
+}
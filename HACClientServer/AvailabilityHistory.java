@@ -0,0 +1,490 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A memory-mapped history of whether each node was up on each tick, kept so uptime over a window
+ * can be asked for long after the ever-increasing availability count has lost that information.
+ * Each node owns a fixed region of the file holding | Last Tick (8) | a ring of one bit per tick |
+ * and a ring of one byte per rollup block counting the ticks it was up in that block, so recent
+ * windows are answered exactly from the bits and longer ones from the rollups. The file starts with
+ * | Magic (4) | Ring Ticks (4) | Rollup Ticks (4) | Rollup Slots (4) | Stride (4) | Capacity (4) |
+ * Interval (8) | Current Tick (8) | Current Time (8) | and ticks carry on from the stored tick and
+ * time after a restart, the ticks missed while the node was down are recorded as down. The node
+ * regions are mapped in pieces of at most 1 GB holding whole regions, so the file can outgrow the
+ * 2 GB a single mapping can reach. Writes come from the one thread that advances the ticks,
+ * queries may come from any thread.
+ * @author Sam Dodson
+ *
+ */
+public class AvailabilityHistory {
+	static final int MAGIC = 0x48414348;
+	static final int HEADER_SIZE = 64;
+	static final int DEFAULT_RING_TICKS = 2880;
+	static final int DEFAULT_ROLLUP_TICKS = 120;
+	static final int DEFAULT_ROLLUP_SLOTS = 720;
+	static final int INITIAL_CAPACITY = 64;
+	static final int OFFSET_RING_TICKS = 4;
+	static final int OFFSET_ROLLUP_TICKS = 8;
+	static final int OFFSET_ROLLUP_SLOTS = 12;
+	static final int OFFSET_STRIDE = 16;
+	static final int OFFSET_CAPACITY = 20;
+	static final int OFFSET_INTERVAL = 24;
+	static final int OFFSET_CURRENT_TICK = 32;
+	static final int OFFSET_CURRENT_TIME = 40;
+	static final long MAX_PIECE_SIZE = 1L << 30;
+	private final RandomAccessFile file;
+	private final int ringTicks;
+	private final int rollupTicks;
+	private final int rollupSlots;
+	private final int ringBytes;
+	private final int stride;
+	private final int nodesPerPiece;
+	private final long interval;
+	private final MappedByteBuffer header;
+	private volatile MappedByteBuffer[] pieces = new MappedByteBuffer[0];
+	private volatile int capacity;
+	private volatile long currentTick;
+	
+	/**
+	 * Constructor for the AvailabilityHistory class, opens the file or creates it if it does not
+	 * exist or was written with a different layout
+	 * @param path the file holding the history
+	 * @param interval the time in milliseconds between ticks
+	 * @param ringTicks the number of most recent ticks kept as bits, rounded up to a multiple of 64
+	 * @param rollupTicks the number of ticks counted by each rollup, at most 255
+	 * @param rollupSlots the number of rollups kept
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public AvailabilityHistory(File path, long interval, int ringTicks, int rollupTicks, int rollupSlots) throws IOException {
+		this.ringTicks = (ringTicks + 63) / 64 * 64;
+		this.rollupTicks = Math.max(1, Math.min(255, rollupTicks));
+		this.rollupSlots = rollupSlots;
+		this.ringBytes = this.ringTicks / 8;
+		this.stride = 8 + ringBytes + (rollupSlots + 7) / 8 * 8;
+		this.nodesPerPiece = (int) Math.max(1, MAX_PIECE_SIZE / stride);
+		this.interval = interval;
+		this.file = new RandomAccessFile(path, "rw");
+		
+		boolean matches = file.length() >= HEADER_SIZE;
+		if(!matches) {
+			file.setLength(HEADER_SIZE);
+		}
+		header = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		if(matches) {
+			matches = header.getInt(0) == MAGIC && header.getInt(OFFSET_RING_TICKS) == this.ringTicks
+					&& header.getInt(OFFSET_ROLLUP_TICKS) == this.rollupTicks && header.getInt(OFFSET_ROLLUP_SLOTS) == rollupSlots
+					&& header.getLong(OFFSET_INTERVAL) == interval;
+		}
+		if(matches) {
+			capacity = header.getInt(OFFSET_CAPACITY);
+			currentTick = header.getLong(OFFSET_CURRENT_TICK);
+			remap(capacity);
+		}
+		else {
+			// A history written with another layout cannot be read so it is started again
+			file.setLength(HEADER_SIZE);
+			for(int offset = 0; offset < HEADER_SIZE; offset += 8) {
+				header.putLong(offset, 0L);
+			}
+			capacity = 0;
+			currentTick = 0;
+			remap(INITIAL_CAPACITY);
+			header.putInt(0, MAGIC);
+			header.putInt(OFFSET_RING_TICKS, this.ringTicks);
+			header.putInt(OFFSET_ROLLUP_TICKS, this.rollupTicks);
+			header.putInt(OFFSET_ROLLUP_SLOTS, rollupSlots);
+			header.putInt(OFFSET_STRIDE, stride);
+			header.putLong(OFFSET_INTERVAL, interval);
+		}
+	}
+	
+	/**
+	 * Opens the history configured through the hac.history, hac.historyFile, hac.historyTicks,
+	 * hac.historyRollupTicks and hac.historyRollups system properties
+	 * @param interval the time in milliseconds between ticks
+	 * @param defaultFile the file used if hac.historyFile is not given
+	 * @return the history, or null if it is turned off or cannot be opened
+	 */
+	public static AvailabilityHistory fromSystemProperties(long interval, String defaultFile) {
+		if(!Boolean.parseBoolean(System.getProperty("hac.history", "true"))) {
+			return null;
+		}
+		File path = new File(System.getProperty("hac.historyFile", defaultFile));
+		int ringTicks = Integer.getInteger("hac.historyTicks", DEFAULT_RING_TICKS);
+		int rollupTicks = Integer.getInteger("hac.historyRollupTicks", DEFAULT_ROLLUP_TICKS);
+		int rollupSlots = Integer.getInteger("hac.historyRollups", DEFAULT_ROLLUP_SLOTS);
+		try {
+			return new AvailabilityHistory(path, interval, ringTicks, rollupTicks, rollupSlots);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Maps the file large enough for a number of nodes. Pieces that are already full are kept and 
+	 * only the last piece and any new ones are mapped again.
+	 * @param nodes the number of node regions to map
+	 * @throws IOException if the file cannot be grown or mapped
+	 */
+	private void remap(int nodes) throws IOException {
+		long size = HEADER_SIZE + (long) nodes * stride;
+		if(file.length() < size) {
+			file.setLength(size);
+		}
+		MappedByteBuffer[] current = pieces;
+		MappedByteBuffer[] grown = Arrays.copyOf(current, (nodes + nodesPerPiece - 1) / nodesPerPiece);
+		for(int piece = 0; piece < grown.length; piece++) {
+			long pieceSize = (long) Math.min(nodesPerPiece, nodes - piece * nodesPerPiece) * stride;
+			if(grown[piece] == null || grown[piece].capacity() < pieceSize) {
+				long position = HEADER_SIZE + (long) piece * nodesPerPiece * stride;
+				grown[piece] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, position, pieceSize);
+			}
+		}
+		header.putInt(OFFSET_CAPACITY, nodes);
+		pieces = grown;
+		capacity = nodes;
+	}
+	
+	/**
+	 * Finds the mapped piece holding a node's region
+	 * @param id the id of the node, less than the capacity
+	 * @return the piece of the file the node's region is in
+	 */
+	private MappedByteBuffer piece(int id) {
+		return pieces[id / nodesPerPiece];
+	}
+	
+	/**
+	 * Gives the offset of a node's region within its piece, which always fits in an int since a piece 
+	 * is at most MAX_PIECE_SIZE bytes
+	 * @param id the id of the node
+	 * @return the offset of the node's region
+	 */
+	private int regionOffset(int id) {
+		return (int) ((long) (id % nodesPerPiece) * stride);
+	}
+	
+	/**
+	 * Moves to the tick for the current time. A tick that comes late, such as the first after a
+	 * restart, skips the ticks that were missed and those are read as down for every node.
+	 * @param now the current time in milliseconds
+	 * @return the new current tick
+	 */
+	public long advance(long now) {
+		long lastTime = header.getLong(OFFSET_CURRENT_TIME);
+		long elapsed = (lastTime == 0) ? 1 : Math.max(1, Math.round((now - lastTime) / (double) interval));
+		currentTick += elapsed;
+		header.putLong(OFFSET_CURRENT_TICK, currentTick);
+		header.putLong(OFFSET_CURRENT_TIME, now);
+		return currentTick;
+	}
+	
+	/**
+	 * Clears a node's region so an id handed to a new node starts with no history
+	 * @param id the id of the node
+	 */
+	public void forget(int id) {
+		if(id < 0 || id >= capacity) {
+			return;
+		}
+		MappedByteBuffer current = piece(id);
+		int base = regionOffset(id);
+		for(int offset = 0; offset < stride; offset += 8) {
+			current.putLong(base + offset, 0L);
+		}
+	}
+	
+	/**
+	 * Records whether a node was up on the current tick
+	 * @param id the id of the node
+	 * @param up true if the node was up
+	 */
+	public void record(int id, boolean up) {
+		if(id < 0) {
+			return;
+		}
+		if(id >= capacity) {
+			try {
+				remap((int) Math.max(id + 1, Math.min(Integer.MAX_VALUE, capacity * 2L)));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		MappedByteBuffer current = piece(id);
+		int base = regionOffset(id);
+		long tick = currentTick;
+		long last = current.getLong(base);
+		if(tick <= last) {
+			return;
+		}
+		
+		// Ticks since the node was last recorded were missed, their bits and rollups are cleared 
+		// along with the bit of this tick, which still holds the tick one ring earlier
+		long firstMissed = (last == 0) ? Math.max(1, tick - ringTicks) : last + 1;
+		clearBits(current, base, firstMissed, tick + 1);
+		long lastBlock = (last == 0) ? -1 : last / rollupTicks;
+		long block = tick / rollupTicks;
+		for(long missed = Math.max(lastBlock + 1, block - rollupSlots + 1); missed <= block; missed++) {
+			current.put(rollupOffset(base, missed), (byte) 0);
+		}
+		
+		if(up) {
+			int bit = (int) (tick % ringTicks);
+			int word = base + 8 + (bit >>> 6) * 8;
+			current.putLong(word, current.getLong(word) | (1L << (bit & 63)));
+			int rollup = rollupOffset(base, block);
+			current.put(rollup, (byte) (current.get(rollup) + 1));
+		}
+		current.putLong(base, tick);
+	}
+	
+	/**
+	 * Clears the bits of a node for a range of ticks
+	 * @param current the mapped piece holding the node's region
+	 * @param base the offset of the node's region within its piece
+	 * @param from the first tick to clear
+	 * @param to the tick after the last to clear
+	 */
+	private void clearBits(MappedByteBuffer current, int base, long from, long to) {
+		from = Math.max(from, to - ringTicks);
+		for(long tick = from; tick < to; tick++) {
+			int bit = (int) (tick % ringTicks);
+			if((bit & 63) == 0 && to - tick >= 64) {
+				current.putLong(base + 8 + (bit >>> 6) * 8, 0L);
+				tick += 63;
+				continue;
+			}
+			int word = base + 8 + (bit >>> 6) * 8;
+			current.putLong(word, current.getLong(word) & ~(1L << (bit & 63)));
+		}
+	}
+	
+	/**
+	 * Gives the offset of the rollup for a block of ticks
+	 * @param base the offset of the node's region within its piece
+	 * @param block the tick divided by the rollup length
+	 * @return the offset of the rollup's byte
+	 */
+	private int rollupOffset(int base, long block) {
+		return base + 8 + ringBytes + (int) (block % rollupSlots);
+	}
+	
+	/**
+	 * Counts the ticks a node was up in a window ending at the current tick. The part of the window 
+	 * held in the bit ring is counted exactly. Older ticks are counted from the rollups, where the 
+	 * rollup the ring starts in has the bits it shares with the ring taken out, and only the rollup 
+	 * the window starts in is counted in proportion to its share of the window. Ticks before the 
+	 * node was first recorded, or after it was last recorded, count as down.
+	 * @param id the id of the node
+	 * @param ticks the length of the window in ticks, capped at the history kept
+	 * @return the number of ticks the node was up
+	 */
+	public long getUpTicks(int id, long ticks) {
+		if(id < 0 || id >= capacity || ticks <= 0) {
+			return 0;
+		}
+		MappedByteBuffer current = piece(id);
+		int base = regionOffset(id);
+		long now = currentTick;
+		long last = current.getLong(base);
+		if(last == 0) {
+			return 0;
+		}
+		long start = Math.max(1, now - Math.min(ticks, getRetainedTicks()) + 1);
+		long ringStart = Math.max(1, now - ringTicks + 1);
+		long end = Math.min(now, last) + 1;
+		long up = 0;
+		long bitFrom = Math.max(start, ringStart);
+		if(end > bitFrom) {
+			up += countBits(current, base, bitFrom, end);
+		}
+		if(start >= ringStart) {
+			return up;
+		}
+		
+		// Rollups after the node was last recorded belong to older blocks and are not read
+		long lastBlock = last / rollupTicks;
+		for(long block = start / rollupTicks; block <= Math.min(ringStart / rollupTicks, lastBlock); block++) {
+			long blockStart = block * rollupTicks;
+			long blockEnd = Math.min(blockStart + rollupTicks, ringStart);
+			if(blockEnd <= blockStart) {
+				continue;
+			}
+			long count = current.get(rollupOffset(base, block)) & 0xFF;
+			if(blockStart + rollupTicks > ringStart) {
+				// The ring holds the end of this block exactly so only the rest comes from the rollup
+				long shared = Math.min(blockStart + rollupTicks, end);
+				if(shared > ringStart) {
+					count -= countBits(current, base, ringStart, shared);
+				}
+			}
+			long covered = blockEnd - Math.max(blockStart, start);
+			up += Math.max(0, count) * covered / (blockEnd - blockStart);
+		}
+		return up;
+	}
+	
+	/**
+	 * Gives the share of a window ending at the current tick that a node was up
+	 * @param id the id of the node
+	 * @param ticks the length of the window in ticks, capped at the history kept
+	 * @return the uptime between 0 and 1
+	 */
+	public double getUptime(int id, long ticks) {
+		ticks = Math.min(ticks, Math.min(getRetainedTicks(), currentTick));
+		if(ticks <= 0) {
+			return 0;
+		}
+		return getUpTicks(id, ticks) / (double) ticks;
+	}
+	
+	/**
+	 * Gives the share of a window of time ending now that a node was up
+	 * @param id the id of the node
+	 * @param windowMillis the length of the window in milliseconds
+	 * @return the uptime between 0 and 1
+	 */
+	public double getUptimeOver(int id, long windowMillis) {
+		return getUptime(id, Math.max(1, windowMillis / interval));
+	}
+	
+	/**
+	 * Counts how often a node went up or down in a window ending at the current tick. Only the bit
+	 * ring records single ticks, so the window is capped at its length.
+	 * @param id the id of the node
+	 * @param ticks the length of the window in ticks
+	 * @return the number of times the node changed between up and down
+	 */
+	public int getTransitions(int id, long ticks) {
+		if(id < 0 || id >= capacity || ticks <= 1) {
+			return 0;
+		}
+		MappedByteBuffer current = piece(id);
+		int base = regionOffset(id);
+		long now = currentTick;
+		long start = Math.max(1, now - Math.min(ticks, ringTicks) + 1);
+		long last = current.getLong(base);
+		if(last < start) {
+			return 0;
+		}
+		
+		// Ticks after the node was last recorded read as down without reading their stale bits
+		int count = countTransitions(current, base, start, last + 1);
+		if(last < now && bitAt(current, base, last)) {
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Counts the set bits of a node for a range of ticks that lies within the ring
+	 * @param current the mapped piece holding the node's region
+	 * @param base the offset of the node's region within its piece
+	 * @param from the first tick to count
+	 * @param to the tick after the last to count
+	 * @return the number of ticks the node was up
+	 */
+	private long countBits(MappedByteBuffer current, int base, long from, long to) {
+		long count = 0;
+		long tick = from;
+		while(tick < to) {
+			int bit = (int) (tick % ringTicks);
+			int span = (int) Math.min(64 - (bit & 63), Math.min(to - tick, ringTicks - bit));
+			long word = current.getLong(base + 8 + (bit >>> 6) * 8) >>> (bit & 63);
+			if(span < 64) {
+				word &= (1L << span) - 1;
+			}
+			count += Long.bitCount(word);
+			tick += span;
+		}
+		return count;
+	}
+	
+	/**
+	 * Counts the changes between neighbouring bits of a node for a range of ticks within the ring
+	 * @param current the mapped piece holding the node's region
+	 * @param base the offset of the node's region within its piece
+	 * @param from the first tick to read
+	 * @param to the tick after the last to read
+	 * @return the number of changes between up and down
+	 */
+	private int countTransitions(MappedByteBuffer current, int base, long from, long to) {
+		if(to - from < 2) {
+			return 0;
+		}
+		int count = 0;
+		long previous = bitAt(current, base, from) ? 1 : 0;
+		long tick = from + 1;
+		while(tick < to) {
+			int bit = (int) (tick % ringTicks);
+			int span = (int) Math.min(64 - (bit & 63), Math.min(to - tick, ringTicks - bit));
+			long word = current.getLong(base + 8 + (bit >>> 6) * 8) >>> (bit & 63);
+			long mask = (span < 64) ? (1L << span) - 1 : -1L;
+			word &= mask;
+			
+			// Each bit is compared with the one before it, the first with the last bit of the previous span
+			long shifted = (word << 1) | previous;
+			count += Long.bitCount((word ^ shifted) & mask);
+			previous = (word >>> (span - 1)) & 1;
+			tick += span;
+		}
+		return count;
+	}
+	
+	/**
+	 * Reads one bit of a node
+	 * @param current the mapped piece holding the node's region
+	 * @param base the offset of the node's region within its piece
+	 * @param tick the tick to read
+	 * @return true if the node was up on the tick
+	 */
+	private boolean bitAt(MappedByteBuffer current, int base, long tick) {
+		int bit = (int) (tick % ringTicks);
+		return ((current.getLong(base + 8 + (bit >>> 6) * 8) >>> (bit & 63)) & 1) != 0;
+	}
+	
+	/**
+	 * Gives the number of ticks the history reaches back
+	 * @return the ticks covered by the rollups, or the ring if it is longer
+	 */
+	public long getRetainedTicks() {
+		return Math.max(ringTicks, (long) (rollupSlots - 1) * rollupTicks);
+	}
+	
+	/**
+	 * Getter for the current tick
+	 * @return the tick the history was last advanced to
+	 */
+	public long getCurrentTick() {
+		return this.currentTick;
+	}
+	
+	/**
+	 * Getter for the interval
+	 * @return the time in milliseconds between ticks
+	 */
+	public long getInterval() {
+		return this.interval;
+	}
+	
+	/**
+	 * Writes the mapped file to the disk and closes it
+	 */
+	public void close() {
+		try {
+			header.force();
+			for(MappedByteBuffer piece: pieces) {
+				piece.force();
+			}
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
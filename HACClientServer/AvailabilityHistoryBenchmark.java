@@ -0,0 +1,68 @@
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures how long the availability history takes to record a tick and to answer windowed uptime 
+ * and transition queries. N nodes are recorded for a week of ticks at the default 30 second interval 
+ * with random outages, then every node is queried over the last hour, day and week. N defaults to 
+ * 10000 and can be given as the first argument.
+ * @author Sam Dodson
+ *
+ */
+public class AvailabilityHistoryBenchmark {
+	static final int DEFAULT_NODES = 10000;
+	static final long INTERVAL = 30 * 1000;
+	static final int TICKS = 7 * 24 * 120;
+	static final int ROUNDS = 5;
+	
+	/**
+	 * Main method for class
+	 * @param args the number of nodes, optional
+	 */
+	public static void main(String[] args) throws Exception {
+		int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NODES;
+		File path = File.createTempFile("availability", ".hist");
+		AvailabilityHistory history = new AvailabilityHistory(path, INTERVAL, AvailabilityHistory.DEFAULT_RING_TICKS, 
+				AvailabilityHistory.DEFAULT_ROLLUP_TICKS, AvailabilityHistory.DEFAULT_ROLLUP_SLOTS);
+		
+		// Each node goes down for a while now and then
+		Random random = new Random(1);
+		int[] downUntil = new int[nodes];
+		long now = System.currentTimeMillis();
+		long recordStart = System.nanoTime();
+		for(int tick = 0; tick < TICKS; tick++) {
+			now += INTERVAL;
+			history.advance(now);
+			for(int id = 0; id < nodes; id++) {
+				if(downUntil[id] <= tick && random.nextInt(1000) == 0) {
+					downUntil[id] = tick + 1 + random.nextInt(240);
+				}
+				history.record(id, downUntil[id] <= tick);
+			}
+		}
+		long recordNanos = System.nanoTime() - recordStart;
+		System.out.println("Nodes: " + nodes + " | Ticks: " + TICKS + " | File bytes: " + path.length() 
+				+ " | Record ns per node per tick: " + recordNanos / ((long) TICKS * nodes));
+		
+		long[] windows = new long[] {60 * 60 * 1000L, 24 * 60 * 60 * 1000L, 7 * 24 * 60 * 60 * 1000L};
+		String[] names = new String[] {"hour", "day", "week"};
+		for(int round = 0; round < ROUNDS; round++) {
+			for(int window = 0; window < windows.length; window++) {
+				double total = 0;
+				int transitions = 0;
+				long start = System.nanoTime();
+				for(int id = 0; id < nodes; id++) {
+					total += history.getUptimeOver(id, windows[window]);
+					transitions += history.getTransitions(id, windows[window] / INTERVAL);
+				}
+				long nanos = System.nanoTime() - start;
+				if(round == ROUNDS - 1) {
+					System.out.println("Window: " + names[window] + " | Mean uptime: " + String.format("%.4f", total / nodes) 
+							+ " | Transitions: " + transitions + " | ns per node: " + nanos / nodes);
+				}
+			}
+		}
+		history.close();
+		path.delete();
+	}
+}
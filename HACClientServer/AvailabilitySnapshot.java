@@ -0,0 +1,159 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * An immutable encoded AS packet holding the availability of the clients at one timer tick.
+ * A full snapshot holds every client and a delta snapshot holds only the clients that changed 
+ * since its base version. Either is encoded once and the same bytes are sent to every live 
+ * client it applies to.
+ * @author Sam Dodson
+ *
+ */
+public class AvailabilitySnapshot {
+	private final byte[] payload;
+	private final byte[][] fragments;
+	private final int clientCount;
+	private final long tableVersion;
+	private final long baseVersion;
+	private final boolean delta;
+	private final long createdAt;
+	
+	/**
+	 * Constructor for the AvailabilitySnapshot class
+	 * @param payload the encoded AS packet, the snapshot takes ownership of the array
+	 * @param fragments the datagrams the packet is split into for sending
+	 * @param clientCount the number of client records in the packet
+	 * @param tableVersion the version of the server's table the snapshot was taken at
+	 * @param baseVersion the version a delta snapshot was computed against, 0 for a full snapshot
+	 * @param delta true if the snapshot only holds the clients that changed since its base version
+	 * @param createdAt the time in milliseconds that the snapshot was taken
+	 */
+	AvailabilitySnapshot(byte[] payload, byte[][] fragments, int clientCount, long tableVersion, long baseVersion, boolean delta, long createdAt) {
+		this.payload = payload;
+		this.fragments = fragments;
+		this.clientCount = clientCount;
+		this.tableVersion = tableVersion;
+		this.baseVersion = baseVersion;
+		this.delta = delta;
+		this.createdAt = createdAt;
+	}
+	
+	/**
+	 * Encodes an AS packet into a snapshot and splits it into datagrams
+	 * @param packetData the AS packet to encode
+	 * @param codec the codec whose buffer is used for encoding
+	 * @param messageId the id shared by every fragment of the snapshot
+	 * @return the encoded snapshot
+	 */
+	static AvailabilitySnapshot create(PacketData packetData, PacketCodec codec, int messageId) {
+		ByteBuffer buffer = codec.encode(packetData);
+		byte[][] fragments = PacketFragmenter.split(buffer, messageId);
+		byte[] payload = new byte[buffer.remaining()];
+		buffer.get(payload);
+		int count = (packetData.getClientData() == null) ? 0 : packetData.getClientData().size();
+		return new AvailabilitySnapshot(payload, fragments, count, packetData.getTableVersion(), packetData.getBaseVersion(), 
+				packetData.getDelta(), System.currentTimeMillis());
+	}
+	
+	/**
+	 * Encodes an AS packet whose records are read straight from a client table into a snapshot and 
+	 * splits it into datagrams
+	 * @param packetData the header and versions of the AS packet, a delta holds the clients changed since its base version
+	 * @param registry the clients to encode
+	 * @param codec the codec whose buffer is used for encoding
+	 * @param messageId the id shared by every fragment of the snapshot
+	 * @return the encoded snapshot
+	 */
+	static AvailabilitySnapshot create(PacketData packetData, ClientRegistry registry, PacketCodec codec, int messageId) {
+		ByteBuffer buffer = codec.encode(packetData, registry);
+		int count = buffer.getInt(PacketCodec.OFFSET_COUNT);
+		byte[][] fragments = PacketFragmenter.split(buffer, messageId);
+		byte[] payload = new byte[buffer.remaining()];
+		buffer.get(payload);
+		return new AvailabilitySnapshot(payload, fragments, count, packetData.getTableVersion(), packetData.getBaseVersion(), 
+				packetData.getDelta(), System.currentTimeMillis());
+	}
+	
+	/**
+	 * Getter for the encoded packet
+	 * @return a read-only view of the encoded AS packet
+	 */
+	public ByteBuffer getPayload() {
+		return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Getter for the encoded packet's backing array, used to send it without copying.
+	 * Callers must not modify the array.
+	 * @return the encoded AS packet
+	 */
+	byte[] getPayloadBytes() {
+		return this.payload;
+	}
+	
+	/**
+	 * Getter for the datagrams the packet is split into, used to send them without copying.
+	 * Callers must not modify the arrays.
+	 * @return the fragments of the encoded AS packet in order
+	 */
+	byte[][] getFragments() {
+		return this.fragments;
+	}
+	
+	/**
+	 * Getter for the length of the encoded packet
+	 * @return the length in bytes of the encoded AS packet
+	 */
+	public int getLength() {
+		return this.payload.length;
+	}
+	
+	/**
+	 * Getter for the number of clients in the snapshot
+	 * @return the number of client records in the snapshot
+	 */
+	public int getClientCount() {
+		return this.clientCount;
+	}
+	
+	/**
+	 * Getter for the table version
+	 * @return the version of the server's table the snapshot was taken at
+	 */
+	public long getTableVersion() {
+		return this.tableVersion;
+	}
+	
+	/**
+	 * Getter for the base version
+	 * @return the version a delta snapshot was computed against, 0 for a full snapshot
+	 */
+	public long getBaseVersion() {
+		return this.baseVersion;
+	}
+	
+	/**
+	 * Getter for the delta field
+	 * @return true if the snapshot only holds the clients that changed since its base version
+	 */
+	public boolean getDelta() {
+		return this.delta;
+	}
+	
+	/**
+	 * Getter for the time the snapshot was taken
+	 * @return the time in milliseconds that the snapshot was taken
+	 */
+	public long getCreatedAt() {
+		return this.createdAt;
+	}
+	
+	/**
+	 * Decodes the snapshot back into client data, each call returns new copies
+	 * @return the availability data of each client in the snapshot, or of each changed client for a delta
+	 */
+	public ArrayList<ClientData> getClients() {
+		PacketData packetData = PacketCodec.decode(getPayload());
+		return packetData.getClientData();
+	}
+}
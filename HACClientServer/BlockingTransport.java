@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The original server transport: a blocking channel that the listening thread waits on, with 
+ * sends made synchronously on its socket
+ * @author Sam Dodson
+ *
+ */
+public class BlockingTransport implements ServerTransport {
+	private final int receiveBuffer;
+	private final int sendBuffer;
+	private final boolean reusePort;
+	private DatagramChannel channel;
+	private DatagramSocket socket;
+	private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+	
+	/**
+	 * Constructor for the BlockingTransport class
+	 * @param receiveBuffer the requested SO_RCVBUF size in bytes
+	 * @param sendBuffer the requested SO_SNDBUF size in bytes
+	 */
+	public BlockingTransport(int receiveBuffer, int sendBuffer) {
+		this(receiveBuffer, sendBuffer, false);
+	}
+	
+	/**
+	 * Constructor for the BlockingTransport class
+	 * @param receiveBuffer the requested SO_RCVBUF size in bytes
+	 * @param sendBuffer the requested SO_SNDBUF size in bytes
+	 * @param reusePort true if other sockets may bind the same port with SO_REUSEPORT
+	 */
+	public BlockingTransport(int receiveBuffer, int sendBuffer, boolean reusePort) {
+		this.receiveBuffer = receiveBuffer;
+		this.sendBuffer = sendBuffer;
+		this.reusePort = reusePort;
+	}
+	
+	/**
+	 * Opens a blocking channel bound to a port
+	 * @param port the port number to bind to, 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	@Override
+	public void bind(int port) throws IOException {
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+		if(reusePort) {
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		channel.bind(new InetSocketAddress(port));
+		socket = channel.socket();
+	}
+	
+	/**
+	 * Getter for the bound port
+	 * @return the local port of the socket, or -1 if it is not bound
+	 */
+	@Override
+	public int getLocalPort() {
+		return (socket == null) ? -1 : socket.getLocalPort();
+	}
+	
+	/**
+	 * Blocks until a datagram arrives and receives it into a buffer
+	 * @param buffer the buffer to receive into, written from its position
+	 * @return the address and port the datagram came from
+	 * @throws IOException if the socket fails
+	 */
+	@Override
+	public InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+		return (InetSocketAddress) channel.receive(buffer);
+	}
+	
+	/**
+	 * Sends a datagram, blocking until the kernel accepts it
+	 * @param data the array holding the datagram
+	 * @param offset the start of the datagram in the array
+	 * @param length the length of the datagram
+	 * @param address the IP address to send to
+	 * @param port the port number to send to
+	 * @throws IOException if the socket fails
+	 */
+	@Override
+	public void send(byte[] data, int offset, int length, InetAddress address, int port) throws IOException {
+		// The packet is readdressed rather than recreated so sends share it under its lock
+		synchronized(sendPacket) {
+			sendPacket.setData(data, offset, length);
+			sendPacket.setAddress(address);
+			sendPacket.setPort(port);
+			socket.send(sendPacket);
+		}
+	}
+	
+	/**
+	 * Closes the channel
+	 */
+	@Override
+	public void close() {
+		try {
+			if(channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
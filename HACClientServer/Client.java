@@ -1,19 +1,16 @@
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.HashMap;
 import java.util.Scanner;
 
 /**
@@ -28,6 +25,7 @@ public class Client {
 	private DatagramPacket packet;
 	private Boolean serverAlive = false;
 	private ArrayList<ClientData> clientData = new ArrayList<>();
+	private HashMap<Integer, Integer> clientIndex = new HashMap<>();
 	private byte version = 1;
 	private byte modeClientServer = 0;
 	private byte codeHCPacket = 0;
@@ -35,10 +33,23 @@ public class Client {
 	private byte codeACPacket = 2;
 	private byte codeASPacket = 3;
 	private int idNumber = -1;
-	private ClientData self;
+	private int generation = 0;
+	private volatile ClientData self;
 	private int timeoutCount = 0;
+	private volatile long tableVersion = 0;
+	private long lastHeard = 0;
 	boolean canBeSplit = false;
 	boolean lastPacket = true;
+	private PacketCodec codec = new PacketCodec();
+	private byte[] receiveBytes = new byte[PacketCodec.MAX_PACKET_SIZE];
+	private PacketReassembler reassembler = new PacketReassembler();
+	private HeartbeatConfig heartbeat = HeartbeatConfig.fromSystemProperties();
+	private HeartbeatScheduler scheduler = new HeartbeatScheduler("client-heartbeat", heartbeat);
+	private Election election = new Election(version, modeClientServer, 
+			Long.getLong("hac.electionWindow", Math.min(Election.DEFAULT_WINDOW, heartbeat.getInterval() / 2)));
+	private StandbyReplica replica = Boolean.getBoolean("hac.standby") ? new StandbyReplica() : null;
+	private boolean resume = false;
+	private InetAddress responseAddress = null;
 	
 	/**
 	 * The constructor for the Client class
@@ -56,31 +67,58 @@ public class Client {
 	}
 	
 	/**
-	 * A method to run the handshake part of the protocol
+	 * A method to run the handshake part of the protocol. A client whose new server already holds the 
+	 * client table skips the handshake and keeps its id.
 	 */
 	public void handshake() {
 		createSocket();
-		readIdFile();
-		createPacket(codeHCPacket);
-		sendPacket();
-		listenForResponse();
+		if(resume) {
+			resume = false;
+			self = new ClientData(null, 0, 0, idNumber);
+			self.setGeneration(generation);
+			serverAlive = true;
+			lastHeard = System.currentTimeMillis();
+			writeFile();
+		}
+		else {
+			readIdFile();
+			send(codeHCPacket);
+			listenForResponse();
+		}
+		
+		// A standby asks the server for its table and every change to it
+		if(serverAlive && replica != null) {
+			send(ReplicationStream.CODE_SUBSCRIBE);
+		}
+		
+		// Availability is sent on the scheduler's thread once the server has answered
+		if(serverAlive) {
+			scheduler.start(new Runnable() {
+				@Override
+				public void run() {
+					send(codeACPacket);
+				}
+			});
+		}
 	}
 	
 	/**
-	 * A method to run the main part of the protocol. It will continue to run unless the server 
-	 * goes down and the client socket times out.
+	 * A method to run the main part of the protocol. Availability packets are sent by the heartbeat 
+	 * scheduler while this listens for the server's responses, and it will continue to run unless 
+	 * the server goes down and the client socket times out.
 	 */
 	public void protocol() {
-		createPacket(codeACPacket);
-		waitToSend();
-		sendPacket();
 		listenForResponse();
 	}
 	
 	/**
-	 * Creates a client socket to send and receive data
+	 * Creates a client socket to send and receive data. The socket is kept across handshakes so the 
+	 * port the other clients know it by from the AS table stays valid for an election.
 	 */
 	public void createSocket() {
+		if(socket != null && !socket.isClosed()) {
+			return;
+		}
 		try {
 			socket = new DatagramSocket();
 		} catch (SocketException e) {
@@ -93,28 +131,28 @@ public class Client {
 	 * @param code the packet code either for the handshake or availability packet
 	 */
 	public void createPacket(byte code) {
-		ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
-		ObjectOutputStream objectStream;
-		byte[] packetBytes = null;
-		try {
-			// The packet is comprised of data from a PacketData object that is written to a stream
-			objectStream = new ObjectOutputStream(byteArrayStream);
-			ArrayList<ClientData> dataField = new ArrayList<>();
-			dataField.add(self);
-			PacketData packetData = new PacketData(version, modeClientServer, code, dataField);
-			packetData.setFlags(canBeSplit, lastPacket);
-			objectStream.writeObject(packetData);
-			
-			// The stream is converted to a byte array and will be sent in this format
-			packetBytes = byteArrayStream.toByteArray();
-			byteArrayStream.close();
-			objectStream.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}		
-		this.packet = new DatagramPacket(packetBytes, packetBytes.length, serverIp, serverPort);
-	}
+		// The packet is comprised of data from a PacketData object that is encoded into the codec's buffer
+		ArrayList<ClientData> dataField = new ArrayList<>();
+		dataField.add(self);
+		PacketData packetData = new PacketData(version, modeClientServer, code, dataField);
+		packetData.setFlags(canBeSplit, lastPacket);
 		
+		// The last applied table version acknowledges which AS packet the server can send a delta against
+		packetData.setTableVersion(tableVersion);
+		ByteBuffer buffer = codec.encode(packetData);
+		this.packet = new DatagramPacket(buffer.array(), buffer.limit(), serverIp, serverPort);
+	}
+	
+	/**
+	 * Creates and sends a packet to the server node. Synchronized because the listening thread and 
+	 * the heartbeat thread share the codec's buffer.
+	 * @param code the packet code either for the handshake or availability packet
+	 */
+	public synchronized void send(byte code) {
+		createPacket(code);
+		sendPacket();
+	}
+	
 	/**
 	 * Sends a packet to the server node
 	 */
@@ -125,35 +163,28 @@ public class Client {
 			e.printStackTrace();
 		}
 	}
-		
-	/**
-	 * Delays a packet from being sent for 0-30 seconds
-	 */
-	public void waitToSend() {
-		Random rand = new Random();
-	    int upperbound = 31;
-	    int random = rand.nextInt(upperbound) * 1000;
-	    try {
-			Thread.sleep(random);
-	    } catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-	}
-				
+	
 	/**
-	 * Listens for a response packet from the server. The socket will timeout after 31 seconds without a response.
+	 * Listens for a response packet from the server, receiving fragments until a whole packet has arrived. 
+	 * The socket will timeout after the heartbeat timeout without a response.
 	 */
 	public void listenForResponse() {
-		byte[] bytes = new byte[1024];
-		DatagramPacket response = new DatagramPacket(bytes, bytes.length);
+		DatagramPacket response = new DatagramPacket(receiveBytes, receiveBytes.length);
 		try {
-			socket.setSoTimeout(31 * 1000);
+			socket.setSoTimeout((int) heartbeat.getTimeout());
 		} catch (SocketException e) {
 			e.printStackTrace();
 		}
 		try {
-			socket.receive(response);
-			createParseThread(response);
+			ByteBuffer received = null;
+			while(received == null) {
+				response.setLength(receiveBytes.length);
+				socket.receive(response);
+				ByteBuffer datagram = ByteBuffer.wrap(response.getData(), response.getOffset(), response.getLength());
+				received = reassembler.accept(datagram, response.getAddress(), response.getPort(), System.currentTimeMillis());
+			}
+			responseAddress = response.getAddress();
+			processPacket(received);
 		}
 		catch(SocketTimeoutException e) {
 			// Handshake with server will be done again and if timeout occurs a second 
@@ -165,79 +196,153 @@ public class Client {
 			else {
 				serverAlive = false;
 				timeoutCount = 0;
+				scheduler.stop();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-			
+	
 	/**
-	 * Creates and runs a thread to parse a received packet
-	 * @param packet
+	 * Processes a received packet on the listening thread. The client only ever waits on one 
+	 * response at a time and needs the handshake result before its next packet, so no worker is used.
+	 * @param packet the received packet, reassembled if it was split
 	 */
-	public void createParseThread(DatagramPacket packet) {
-		Thread thread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				PacketData packetData = null;
-				packetData = parsePacket(packet);
-				byte parsedVersion = packetData.getVersion();
-				byte mode = packetData.getMode();
-				byte code = packetData.getCode();
-				
-				if(version == parsedVersion) {
-					if(mode == modeClientServer) {
-						if(code == codeHSPacket) {
-							// Id number is retrieved and written to file
-							idNumber = packetData.getClientData().get(0).getId();
-							
-							// Self will be passed to server in future availability packets
-							self = packetData.getClientData().get(0);
-							serverAlive = true;
-							
-							writeFile();
-							return;
+	public void processPacket(ByteBuffer packet) {
+		PacketData packetData = null;
+		packetData = parsePacket(packet);
+		if(packetData == null) {
+			return;
+		}
+		byte parsedVersion = packetData.getVersion();
+		byte mode = packetData.getMode();
+		byte code = packetData.getCode();
+		
+		if(version == parsedVersion) {
+			if(mode == modeClientServer) {
+				if(code == codeHSPacket) {
+					// Id number and its generation are retrieved and written to file
+					idNumber = packetData.getClientData().get(0).getId();
+					generation = packetData.getClientData().get(0).getGeneration();
+					
+					// Self will be passed to server in future availability packets
+					self = packetData.getClientData().get(0);
+					serverAlive = true;
+					lastHeard = System.currentTimeMillis();
+					
+					writeFile();
+					return;
+				}
+				else if(code == codeASPacket) {
+					lastHeard = System.currentTimeMillis();
+					timeoutCount = 0;
+					
+					// Full tables replace the local copy and deltas are applied to it if they match its version
+					if(packetData.getDelta() == false) {
+						clientData = packetData.getClientData();
+						indexClients();
+						tableVersion = packetData.getTableVersion();
+					}
+					else if(packetData.getBaseVersion() == tableVersion) {
+						applyDelta(packetData);
+					}
+					
+					// Availability data for each client is printed
+					for(ClientData client: clientData) {
+						if(client.getStatus() == false) {
+							System.out.println("Address: " + client.getAddress() + " | Port: " + client.getPort() + " | Availability: " + client.getAvailability() + " | Score: " + String.format("%.4f", ReliabilityScore.fromFixed(client.getScore())) + " | Status: ALIVE");
+							//System.out.printf("Client address: %s %d %d ALIVE%n", client.getAddress(), client.getPort(), client.getAvailability());
 						}
-						else if(code == codeASPacket) {
-							// Availability data for each client is printed
-							clientData = packetData.getClientData();
-							for(ClientData client: clientData) {
-								if(client.getStatus() == false) {
-									System.out.println("Address: " + client.getAddress() + " | Port: " + client.getPort() + " | Availability: " + client.getAvailability() + " | Status: ALIVE");
-									//System.out.printf("Client address: %s %d %d ALIVE%n", client.getAddress(), client.getPort(), client.getAvailability());
-								}
-								else {
-									System.out.println("Address: " + client.getAddress() + " | Port: " + client.getPort() + " | Availability: " + client.getAvailability() + " | Status: DEAD");
-									//System.out.printf("Client address: %s %d %d ALIVE", client.getAddress(), client.getPort(), client.getAvailability());
-								}
-							}
-							System.out.println("\n");
+						else {
+							System.out.println("Address: " + client.getAddress() + " | Port: " + client.getPort() + " | Availability: " + client.getAvailability() + " | Score: " + String.format("%.4f", ReliabilityScore.fromFixed(client.getScore())) + " | Status: " + (client.getTombstoned() ? "TOMBSTONED" : "DEAD"));
+							//System.out.printf("Client address: %s %d %d ALIVE", client.getAddress(), client.getPort(), client.getAvailability());
 						}
 					}
+					System.out.println("\n");
+				}
+				else if(code == ReplicationStream.CODE_UPDATE && replica != null) {
+					// A missed update leaves the replica incomplete so the whole table is asked for again
+					if(!replica.apply(packetData)) {
+						send(ReplicationStream.CODE_SUBSCRIBE);
+					}
+				}
+				else if(Election.isElectionCode(code)) {
+					// Another client has seen the server fail, this one joins the election only if it has also 
+					// missed the server's last AS packet so a single client cannot depose a working server
+					boolean missed = System.currentTimeMillis() - lastHeard > heartbeat.getInterval();
+					if(missed && election.offer(packetData, responseAddress)) {
+						serverAlive = false;
+						timeoutCount = 0;
+						scheduler.stop();
+					}
 				}
 			}
-		});
-		thread.run();
+		}
 	}
 	
 	/**
-	 * Parses packet data from various streams
+	 * Applies a delta AS packet to the local client table. Clients absent from the delta did not 
+	 * change status, so the live ones gain one availability point per elapsed table version, and 
+	 * clients the delta marks purged are removed.
+	 * @param packetData the delta packet whose base version matches the local table version
+	 */
+	public void applyDelta(PacketData packetData) {
+		int elapsed = (int) (packetData.getTableVersion() - packetData.getBaseVersion());
+		for(ClientData client: clientData) {
+			if(client.getStatus() == false) {
+				client.setAvailability(client.getAvailability() + elapsed);
+			}
+		}
+		
+		// Changed clients are found by id in constant time, purged ones are cleared and then compacted 
+		// away in one pass so a delta costs time in proportion to its records unless it purges
+		boolean purged = false;
+		for(ClientData changed: packetData.getClientData()) {
+			Integer index = clientIndex.get(changed.getId());
+			if(changed.getPurged()) {
+				if(index != null) {
+					clientData.set(index, null);
+					clientIndex.remove(changed.getId());
+					purged = true;
+				}
+			}
+			else if(index != null) {
+				clientData.set(index, changed);
+			}
+			else {
+				clientIndex.put(changed.getId(), clientData.size());
+				clientData.add(changed);
+			}
+		}
+		if(purged) {
+			int kept = 0;
+			for(ClientData client: clientData) {
+				if(client != null) {
+					clientData.set(kept++, client);
+				}
+			}
+			clientData.subList(kept, clientData.size()).clear();
+			indexClients();
+		}
+		tableVersion = packetData.getTableVersion();
+	}	
+	/**
+	 * Rebuilds the map from each client's id to its position in the local table
+	 */
+	private void indexClients() {
+		clientIndex.clear();
+		for(int index = 0; index < clientData.size(); index++) {
+			clientIndex.put(clientData.get(index).getId(), index);
+		}
+	}
+	
+	/**
+	 * Parses packet data from a received packet
 	 * @param packet the packet to be parsed
 	 * @return the data parsed from the packet
 	 */
-	public PacketData parsePacket(DatagramPacket packet) {
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(packet.getData());
-		ObjectInputStream objectStream = null;
-		PacketData packetData = null;
-		try {
-			objectStream = new ObjectInputStream(inputStream);
-			packetData = (PacketData) objectStream.readObject();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		}
-		return packetData;
+	public PacketData parsePacket(ByteBuffer packet) {
+		return PacketCodec.decode(packet);
 	}
 	
 	/**
@@ -261,6 +366,9 @@ public class Client {
 				if(serverIp.toString().equals(data[1])) {
 					String idString = data[0];
 					self.setId(Integer.parseInt(idString));
+					if(data.length > 2) {
+						self.setGeneration(Integer.parseInt(data[2]));
+					}
 				}
 			} catch (NumberFormatException e) {
 				e.printStackTrace();
@@ -270,16 +378,14 @@ public class Client {
 	}
 	
 	/**
-	 * Writes id given by server to file along with server IP
+	 * Writes id given by server to file along with server IP and the id's generation. The file is 
+	 * rewritten on every handshake since a server may hand out a new id in place of a purged one.
 	 */
 	public void writeFile() {
 		try {
-			File file = new File("id.txt");
-		    if(file.createNewFile()) {
-		        FileWriter writer = new FileWriter("id.txt");
-		        writer.write(String.valueOf(idNumber) + " " + serverIp.toString());
-		        writer.close();
-		      }
+	        FileWriter writer = new FileWriter("id.txt");
+	        writer.write(String.valueOf(idNumber) + " " + serverIp.toString() + " " + generation);
+	        writer.close();
 	    } catch (IOException e) {
 	      e.printStackTrace();
 	    }
@@ -294,7 +400,8 @@ public class Client {
 	}
 	
 	/**
-	 * Determines which client node will be promoted to server based on the availability scores
+	 * Determines which client node will be promoted to server by running an election with the other 
+	 * live clients from the last AS table
 	 * @return true or false depending on if the client is the new server
 	 */
 	public Boolean promoteToServer() {
@@ -307,42 +414,92 @@ public class Client {
 		File idFile = new File("id.txt");
 		idFile.delete();
 		
-		int maxAv = 0;
-		ClientData newServer = null;
-		for(ClientData client: clientData) {
-			// New server is determined based on max availability and status being alive
-			if(client.getAvailability() > maxAv && client.getStatus() == false) {
-				newServer = client;
-				maxAv = newServer.getAvailability();
-			}
+		// A standby holding the whole table takes over at once and announces itself once it is bound
+		if(replica != null && replica.isSynced()) {
+			return true;
 		}
 		
-		// Remove new server in case another timeout occurs
-		if(newServer != null) {
-			int index = clientData.indexOf(newServer);
-			clientData.remove(index);
-		}
-		else {
-			// Occurs when handshake occurred but no availability packets were received
-			// Requires reconnection with new server
-			System.out.println("Server failure. Reconnect.");
-			System.exit(-1);
+		// This client stands with its availability as the server last reported it
+		ClientData candidate = new ClientData(null, 0, 0, idNumber);
+		Integer index = clientIndex.get(idNumber);
+		if(index != null) {
+			candidate = clientData.get(index);
 		}
-			
+		ClientData newServer = election.run(socket, candidate, clientData);
+		System.out.println("Elected client " + newServer.getId() + " as server for term " + election.getTerm() + "\n");
+		
 		// Returns true if self was selected as new server
-		// Otherwise serverIp is set and handshake will be attempted after waiting 10 seconds
+		// Otherwise serverIp is set and a winner holding the table is resumed at once, availability 
+		// sent before it binds is lost but the next is not. A winner without a table is sent a 
+		// handshake once it has had time to bind its socket, since it announces one election window 
+		// before it binds
 		if(newServer.getId() == idNumber) {
 			return true;
 		}
 		else {
 			serverIp = newServer.getAddress();
-		    try {
-		    	int tenSeconds = 10 * 1000;
-				Thread.sleep(tenSeconds);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			clientData.remove(newServer);
+			indexClients();
+			resume = election.isResumable();
+			if(!resume) {
+			    try {
+					Thread.sleep(2 * election.getWindow());
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
 			}
 			return false;
 		}
 	}
+	
+	/**
+	 * Announces this client as the new server to the clients it knows of, called by a standby once 
+	 * its server socket is bound
+	 * @param clients the clients the new server took over
+	 */
+	public void announceTakeover(ArrayList<ClientData> clients) {
+		ClientData candidate = new ClientData(null, 0, 0, idNumber);
+		election.announce(socket, candidate, clients);
+		System.out.println("Took over as server for term " + election.getTerm() + "\n");
+	}
+	
+	/**
+	 * Getter for the standby replica
+	 * @return the copy of the server's table if this client is a hot standby, otherwise null
+	 */
+	public StandbyReplica getReplica() {
+		return this.replica;
+	}
+	
+	/**
+	 * Getter for the client table
+	 * @return the client table from the last AS packet, which a promoted server starts from
+	 */
+	public ArrayList<ClientData> getClientData() {
+		return this.clientData;
+	}
+	
+	/**
+	 * Getter for the table version
+	 * @return the version of the last AS packet applied to the client table
+	 */
+	public long getTableVersion() {
+		return this.tableVersion;
+	}
+	
+	/**
+	 * Getter for the client id
+	 * @return the id assigned by the server, or -1 if no handshake was performed
+	 */
+	public int getIdNumber() {
+		return this.idNumber;
+	}
+	
+	/**
+	 * Getter for the election
+	 * @return the election this client takes part in when the server fails
+	 */
+	public Election getElection() {
+		return this.election;
+	}
 }
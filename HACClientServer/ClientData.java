@@ -1,17 +1,28 @@
-import java.io.Serializable;
 import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * The class modeling the client data stored in a packet
  * @author Sam Dodson
  *
  */
-class ClientData implements Serializable {
-	private InetAddress address;
-	private int port;
-	private int availability;
+class ClientData {
+	private static final AtomicLongFieldUpdater<ClientData> LIVE_VERSION = AtomicLongFieldUpdater.newUpdater(ClientData.class, "liveVersion");
+	private volatile InetAddress address;
+	private volatile byte[] addressBytes;
+	private volatile int port;
+	private volatile int availability;
+	private volatile int score = 0;
 	private int idNumber;
-	private boolean status;
+	private volatile boolean status;
+	private volatile long changedVersion = 0;
+	private volatile long ackedVersion = 0;
+	private volatile long liveVersion = 0;
+	private volatile int generation = 0;
+	private volatile boolean tombstoned = false;
+	private volatile boolean purged = false;
+	private volatile long lifecycleVersion = 0;
+	private volatile long lastSeen = 0;
 	
 	/**
 	 * Constructor for PeerData class
@@ -21,13 +32,20 @@ class ClientData implements Serializable {
 	 * @param idNumber the idNumber of a client node
 	 */
 	public ClientData(InetAddress address, int port, int availability, int idNumber) {
-		this.address = address;
+		setAddress(address);
 		this.port = port;
 		this.availability = availability;
 		this.idNumber = idNumber;
 		this.status = true;
 	}
 	
+	/**
+	 * Constructor for subclasses that keep the client's fields somewhere else, such as a view of 
+	 * a NodeTable slot
+	 */
+	ClientData() {
+	}
+	
 	/**
 	 * Getter for IP address
 	 * @return IP address of client node
@@ -36,6 +54,14 @@ class ClientData implements Serializable {
 		return this.address;
 	}
 	
+	/**
+	 * Getter for the raw bytes of the IP address, cached so encoding a packet does not copy them
+	 * @return the 4 or 16 address bytes, or an empty array if no address is set
+	 */
+	byte[] getAddressBytes() {
+		return this.addressBytes;
+	}
+	
 	/**
 	 * Getter for port number
 	 * @return port number of client node
@@ -52,6 +78,14 @@ class ClientData implements Serializable {
 		return this.availability;
 	}
 	
+	/**
+	 * Getter for the reliability score
+	 * @return the score of the client node over its recent ticks in parts per 10000
+	 */
+	public int getScore() {
+		return this.score;
+	}
+	
 	/**
 	 * Getter for ID number
 	 * @return ID number of client node
@@ -74,6 +108,7 @@ class ClientData implements Serializable {
 	 */
 	public void setAddress(InetAddress address) {
 		this.address = address;
+		this.addressBytes = (address == null) ? new byte[0] : address.getAddress();
 	}
 	
 	/**
@@ -92,6 +127,14 @@ class ClientData implements Serializable {
 		this.availability = availability;
 	}
 	
+	/**
+	 * Setter for the reliability score
+	 * @param score value to set the score to in parts per 10000
+	 */
+	public void setScore(int score) {
+		this.score = score;
+	}
+	
 	/**
 	 * Setter for ID
 	 * @param id value to set ID to
@@ -108,17 +151,168 @@ class ClientData implements Serializable {
 		this.status = status;
 	}
 	
+	/**
+	 * Getter for the table version in which the client's status or address last changed, 
+	 * kept by the server and not sent over the wire
+	 * @return the version of the last change to the client
+	 */
+	public long getChangedVersion() {
+		return this.changedVersion;
+	}
+	
+	/**
+	 * Setter for the table version in which the client last changed
+	 * @param changedVersion the version of the last change to the client
+	 */
+	public void setChangedVersion(long changedVersion) {
+		this.changedVersion = changedVersion;
+	}
+	
+	/**
+	 * Getter for the last table version the client reported applying, kept by the server 
+	 * and not sent over the wire
+	 * @return the last table version acknowledged by the client
+	 */
+	public long getAckedVersion() {
+		return this.ackedVersion;
+	}
+	
+	/**
+	 * Setter for the last table version the client reported applying
+	 * @param ackedVersion the last table version acknowledged by the client
+	 */
+	public void setAckedVersion(long ackedVersion) {
+		this.ackedVersion = ackedVersion;
+	}
+	
+	/**
+	 * Getter for the table version during which the client was last marked live, kept by the server 
+	 * so repeated availability packets within one tick are only counted once
+	 * @return the table version the client was last marked live for
+	 */
+	public long getLiveVersion() {
+		return this.liveVersion;
+	}
+	
+	/**
+	 * Marks the client live for a table version unless it was already marked for that version
+	 * @param liveVersion the table version the client is being marked live for
+	 * @return true if the mark was made, false if the client was already marked for that version
+	 */
+	public boolean markLive(long liveVersion) {
+		long current = this.liveVersion;
+		while(current < liveVersion) {
+			if(LIVE_VERSION.compareAndSet(this, current, liveVersion)) {
+				return true;
+			}
+			current = this.liveVersion;
+		}
+		return false;
+	}
+	
+	/**
+	 * Getter for the generation of the client's id, raised each time the server hands the id to a 
+	 * new client so a client that held it before is not mistaken for the new one
+	 * @return the generation of the id
+	 */
+	public int getGeneration() {
+		return this.generation;
+	}
+	
+	/**
+	 * Setter for the generation of the client's id
+	 * @param generation the generation of the id
+	 */
+	public void setGeneration(int generation) {
+		this.generation = generation;
+	}
+	
+	/**
+	 * Getter for the tombstoned field
+	 * @return true if the client has been dead long enough to be left out of AS packets
+	 */
+	public boolean getTombstoned() {
+		return this.tombstoned;
+	}
+	
+	/**
+	 * Setter for the tombstoned field
+	 * @param tombstoned true if the client is to be left out of AS packets
+	 */
+	public void setTombstoned(boolean tombstoned) {
+		this.tombstoned = tombstoned;
+	}
+	
+	/**
+	 * Getter for the purged field, only set on the record that tells standbys and the registry log 
+	 * that the client was removed
+	 * @return true if the client has been removed from the server's table
+	 */
+	public boolean getPurged() {
+		return this.purged;
+	}
+	
+	/**
+	 * Setter for the purged field
+	 * @param purged true if the client has been removed from the server's table
+	 */
+	public void setPurged(boolean purged) {
+		this.purged = purged;
+	}
+	
+	/**
+	 * Getter for the table version at which the client last went dead or was tombstoned, kept by 
+	 * the server and not sent over the wire
+	 * @return the version of the client's last lifecycle change
+	 */
+	public long getLifecycleVersion() {
+		return this.lifecycleVersion;
+	}
+	
+	/**
+	 * Setter for the table version at which the client last went dead or was tombstoned
+	 * @param lifecycleVersion the version of the client's last lifecycle change
+	 */
+	public void setLifecycleVersion(long lifecycleVersion) {
+		this.lifecycleVersion = lifecycleVersion;
+	}
+	
+	/**
+	 * Getter for the time the client's availability was last received, kept by the server and not 
+	 * sent over the wire
+	 * @return the time in milliseconds, or 0 if none was received
+	 */
+	public long getLastSeen() {
+		return this.lastSeen;
+	}
+	
+	/**
+	 * Setter for the time the client's availability was last received
+	 * @param lastSeen the time in milliseconds
+	 */
+	public void setLastSeen(long lastSeen) {
+		this.lastSeen = lastSeen;
+	}
+	
     /**
      * Determines equality of two clients based on ID number
      */
 	@Override
     public boolean equals(Object o) { 
     	ClientData client = (ClientData) o;
-    	if(client.idNumber == this.idNumber) {
+    	if(client.getId() == this.getId()) {
     		return true;
     	}
     	else {
     		return false;
     	}
     }
+	
+	/**
+	 * Hash code consistent with equals, based on ID number
+	 */
+	@Override
+	public int hashCode() {
+		return this.getId();
+	}
 }
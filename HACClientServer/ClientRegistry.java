@@ -0,0 +1,280 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The server's table of clients, indexed by id. Ids are handed out densely so the table is a slot
+ * per id in a NodeTable, which gives constant time lookup and insert and keeps the clients' fields
+ * off the heap. Clients are handed out as views of their slots, and sweeps can read the table's
+ * columns by id directly. Lookups and liveness marks take no lock so workers can keep processing
+ * availability packets while the timer sweeps the table, and only inserts and removals are
+ * serialized. The ids of removed clients are handed out again, lowest first, with their generation
+ * raised so the table stays dense under churn, and free ids at the end of the table are given back
+ * so sweeps do not cover them.
+ * @author Sam Dodson
+ *
+ */
+public class ClientRegistry {
+	static final int INITIAL_CAPACITY = 64;
+	private final NodeTable table = new NodeTable();
+	private volatile int nextId = 0;
+	private volatile int size = 0;
+	private final Object writeLock = new Object();
+	private final BitSet freeIds = new BitSet();
+	private int[] generations = new int[INITIAL_CAPACITY];
+	private final ArrayList<ClientData> purged = new ArrayList<>();
+	
+	/**
+	 * Finds a client by id without locking
+	 * @param id the id of the client
+	 * @return a view of the client with the given id, or null if there is none
+	 */
+	public ClientData get(int id) {
+		return table.view(id);
+	}
+	
+	/**
+	 * Getter for the table the clients are stored in, read by id for sweeps that should not create views
+	 * @return the off-heap table of clients
+	 */
+	public NodeTable getTable() {
+		return this.table;
+	}
+	
+	/**
+	 * Creates a client with the lowest free id and adds it to the table. The id's generation is one 
+	 * past the last client that held it, running from 1 to GENERATION_MASK and wrapping back to 1, 
+	 * since 0 marks an id that has never been held. A client away for 127 reuses of its id can 
+	 * therefore match the id's holder again.
+	 * @param address the IP address of the client
+	 * @param port the port number of the client
+	 * @return a view of the client that was added
+	 */
+	public ClientData add(InetAddress address, int port) {
+		synchronized(writeLock) {
+			int id = freeIds.nextSetBit(0);
+			if(id == -1) {
+				id = nextId;
+			}
+			ClientData client = new ClientData(address, port, 0, id);
+			int last = (id < generations.length) ? generations[id] : 0;
+			client.setGeneration(last % PacketCodec.GENERATION_MASK + 1);
+			put(client);
+			return table.view(id);
+		}
+	}
+	
+	/**
+	 * Copies a client into the table under its existing id, replacing any client that held the id
+	 * @param client the client to copy, later changes to it are not seen by the table
+	 */
+	public void put(ClientData client) {
+		synchronized(writeLock) {
+			int id = client.getId();
+			if(!table.isUsed(id)) {
+				// Pages are added as needed, the slots of the pages already in use never move
+				table.claim(id);
+				size++;
+			}
+			table.copyFrom(client);
+			if(id >= generations.length) {
+				generations = Arrays.copyOf(generations, Math.max(id + 1, generations.length * 2));
+			}
+			generations[id] = client.getGeneration();
+			freeIds.clear(id);
+			if(id >= nextId) {
+				// Ids skipped over are free to be handed out
+				freeIds.set(nextId, id);
+				nextId = id + 1;
+			}
+		}
+	}
+	
+	/**
+	 * Removes a client from the table and frees its id. Free ids at the end of the table are given 
+	 * back along with the pages past the last id in use, the generation of every id is kept.
+	 * @param id the id of the client
+	 * @return a copy of the client that was removed, or null if there was none
+	 */
+	public ClientData remove(int id) {
+		synchronized(writeLock) {
+			ClientData removed = table.copyOf(id);
+			if(removed == null) {
+				return null;
+			}
+			table.free(id);
+			size--;
+			freeIds.set(id);
+			while(nextId > 0 && !table.isUsed(nextId - 1)) {
+				nextId--;
+				freeIds.clear(nextId);
+			}
+			table.trim(nextId);
+			return removed;
+		}
+	}
+	
+	/**
+	 * Removes a purged client and keeps a copy marked purged, so deltas sent against an older table 
+	 * version can tell receivers to drop it
+	 * @param id the id of the client
+	 * @param tableVersion the table version the client was purged at
+	 * @return the copy of the client that was removed, or null if there was none
+	 */
+	public ClientData purge(int id, long tableVersion) {
+		synchronized(writeLock) {
+			ClientData removed = remove(id);
+			if(removed == null) {
+				return null;
+			}
+			removed.setPurged(true);
+			removed.setChangedVersion(tableVersion);
+			purged.add(removed);
+			return removed;
+		}
+	}
+	
+	/**
+	 * Forgets the purges that no delta will be sent against any longer
+	 * @param tableVersion purges at or before this table version are forgotten
+	 */
+	public void forgetPurged(long tableVersion) {
+		synchronized(writeLock) {
+			for(int index = purged.size() - 1; index >= 0; index--) {
+				if(purged.get(index).getChangedVersion() <= tableVersion) {
+					purged.remove(index);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Lists the copies of the clients purged since the purges were last forgotten
+	 * @return the purged clients, oldest first
+	 */
+	public ArrayList<ClientData> getPurged() {
+		synchronized(writeLock) {
+			return new ArrayList<>(purged);
+		}
+	}
+	
+	/**
+	 * Lists the ids that are not in use but have been held before, with the generation of the last 
+	 * client that held each, so a restarted server does not hand them out at an old generation
+	 * @return the ids packed with their generations as in PacketCodec.packId
+	 */
+	public int[] getRetiredIds() {
+		synchronized(writeLock) {
+			int count = 0;
+			int[] retired = new int[generations.length];
+			for(int id = 0; id < generations.length; id++) {
+				if(generations[id] != 0 && !table.isUsed(id)) {
+					retired[count++] = PacketCodec.packId(id, generations[id]);
+				}
+			}
+			return Arrays.copyOf(retired, count);
+		}
+	}
+	
+	/**
+	 * Records the generation of the last client that held an id not in use, so the next client given 
+	 * the id gets the generation after it
+	 * @param id the id that was held
+	 * @param generation the generation of the last client that held it
+	 */
+	public void retire(int id, int generation) {
+		synchronized(writeLock) {
+			if(table.isUsed(id)) {
+				return;
+			}
+			if(id >= generations.length) {
+				generations = Arrays.copyOf(generations, Math.max(id + 1, generations.length * 2));
+			}
+			generations[id] = generation;
+		}
+	}
+	
+	/**
+	 * Marks a client as having sent availability during an interval. Only the first mark in each 
+	 * interval succeeds so repeated packets are counted once.
+	 * @param client the client that sent availability
+	 * @param interval the table version of the interval being marked
+	 * @return true if this was the client's first mark in the interval
+	 */
+	public boolean markAlive(ClientData client, long interval) {
+		return client.markLive(interval);
+	}
+	
+	/**
+	 * Records an availability packet straight into the table without creating a view. The packet 
+	 * is only counted if the client still holds the id at the generation it carries.
+	 * @param id the id the packet carries
+	 * @param generation the generation the packet carries
+	 * @param interval the table version of the interval being marked
+	 * @param ackedVersion the table version the client reported applying
+	 * @param now the current time in milliseconds
+	 * @param aggregator the server's number for the aggregator the packet came through, or 0 if it came directly
+	 * @return true if the client holds the id at that generation
+	 */
+	public boolean markAlive(int id, int generation, long interval, long ackedVersion, long now, int aggregator) {
+		return table.heartbeat(id, generation, interval, ackedVersion, now, aggregator);
+	}
+	
+	/**
+	 * Records the aggregator a client's handshake came through. The write lock keeps the id's page 
+	 * from being given back by a concurrent removal while it is written.
+	 * @param id the id of the client
+	 * @param aggregator the server's number for the aggregator, or 0 if the client sends directly
+	 */
+	public void setAggregator(int id, int aggregator) {
+		synchronized(writeLock) {
+			if(table.isUsed(id)) {
+				table.setAggregator(id, aggregator);
+			}
+		}
+	}
+	
+	/**
+	 * Lists views of the clients in id order, used where a whole table is handed on such as to a 
+	 * standby or a log snapshot. Sweeps read the table by id instead.
+	 * @return every client in the table
+	 */
+	public ArrayList<ClientData> getClients() {
+		int limit = nextId;
+		ArrayList<ClientData> clients = new ArrayList<>(size);
+		for(int index = 0; index < limit; index++) {
+			ClientData client = table.view(index);
+			if(client != null) {
+				clients.add(client);
+			}
+		}
+		return clients;
+	}
+	
+	/**
+	 * Getter for the number of clients in the table
+	 * @return the number of clients
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Getter for the id one past the highest id in use
+	 * @return the id a new client is given if no lower id is free
+	 */
+	public int getNextId() {
+		return this.nextId;
+	}
+	
+	/**
+	 * Getter for the number of free ids below the highest id in use
+	 * @return the number of ids that will be handed out again before the table grows
+	 */
+	public int getFreeIds() {
+		synchronized(writeLock) {
+			return freeIds.cardinality();
+		}
+	}
+}
@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Chooses a new server among the clients once the old one has failed. Every client that notices 
+ * the failure starts a new term and sends its candidacy, its own entry from the last AS table, to 
+ * every live client in that table. After one election window each client ranks the candidacies it 
+ * holds for the highest term by reliability score, then availability and then lowest id. The top 
+ * candidate announces itself and the others follow the announcement, so every client that hears 
+ * the same candidacies picks the same winner. If the expected winner stays silent for a window it 
+ * is passed over and the next candidate is considered. A winner holding an AS table starts its 
+ * server from it and says so in its announcement, so the others keep their ids and resume without 
+ * a handshake. Candidacy (code 4) and winner (code 5) packets use the client-server layout with 
+ * the term in the table version field and one client record.
+ * @author Sam Dodson
+ *
+ */
+public class Election {
+	static final byte CODE_CANDIDATE = 4;
+	static final byte CODE_WINNER = 5;
+	static final long DEFAULT_WINDOW = 200;
+	private final byte version;
+	private final byte mode;
+	private final long window;
+	private final PacketCodec codec = new PacketCodec();
+	private final byte[] receiveBytes = new byte[PacketCodec.MAX_PACKET_SIZE];
+	private final HashMap<Integer, ClientData> candidates = new HashMap<>();
+	private long term = 0;
+	private boolean joined = false;
+	private ClientData announced = null;
+	private boolean resumable = false;
+	
+	/**
+	 * Constructor for the Election class
+	 * @param version the version of the protocol
+	 * @param mode the client-server mode byte
+	 * @param window the time in milliseconds candidacies are collected for, and a winner is waited on
+	 */
+	public Election(byte version, byte mode, long window) {
+		this.version = version;
+		this.mode = mode;
+		this.window = window;
+	}
+	
+	/**
+	 * Determines if a packet code belongs to the election
+	 * @param code the code of a received packet
+	 * @return true for candidacy and winner packets
+	 */
+	static boolean isElectionCode(byte code) {
+		return code == CODE_CANDIDATE || code == CODE_WINNER;
+	}
+	
+	/**
+	 * Ranks two candidates by the reliability score the server last reported for them, so a client 
+	 * that has started flapping loses to one that has been steady lately however long it was up 
+	 * before, then by higher availability and then lower id
+	 * @param a the first candidate
+	 * @param b the second candidate
+	 * @return a negative number if a ranks above b, positive if below and 0 if they are the same client
+	 */
+	static int compare(ClientData a, ClientData b) {
+		if(a.getScore() != b.getScore()) {
+			return (a.getScore() > b.getScore()) ? -1 : 1;
+		}
+		if(a.getAvailability() != b.getAvailability()) {
+			return (a.getAvailability() > b.getAvailability()) ? -1 : 1;
+		}
+		return Integer.compare(a.getId(), b.getId());
+	}
+	
+	/**
+	 * Takes an election packet that arrived while the client still believed the server was alive. 
+	 * A newer term means another client has seen the server fail, so this client joins that election.
+	 * @param packetData the received election packet
+	 * @param sender the IP address the packet came from, which a winner is reached at
+	 * @return true if the packet started or decided an election this client should now take part in
+	 */
+	public synchronized boolean offer(PacketData packetData, InetAddress sender) {
+		if(packetData.getClientData().isEmpty()) {
+			return false;
+		}
+		long packetTerm = packetData.getTableVersion();
+		ClientData candidate = packetData.getClientData().get(0);
+		if(packetData.getCode() == CODE_WINNER && packetTerm > term) {
+			term = packetTerm;
+			announced = candidate;
+			announced.setAddress(sender);
+			resumable = packetData.getResume();
+			return true;
+		}
+		if(packetData.getCode() == CODE_CANDIDATE && packetTerm > term) {
+			term = packetTerm;
+			joined = true;
+			candidates.clear();
+			candidates.put(candidate.getId(), candidate);
+			return true;
+		}
+		if(packetData.getCode() == CODE_CANDIDATE && packetTerm == term && joined) {
+			candidates.put(candidate.getId(), candidate);
+		}
+		return false;
+	}
+	
+	/**
+	 * Runs the election until a winner is known. Packets that are not part of the election are 
+	 * dropped while it runs.
+	 * @param socket the client's socket, used to reach the other clients
+	 * @param self this client's entry from the last AS table
+	 * @param table the last AS table, whose live clients take part
+	 * @return the winning client, whose address the new server is bound on
+	 */
+	public synchronized ClientData run(DatagramSocket socket, ClientData self, ArrayList<ClientData> table) {
+		if(announced != null) {
+			ClientData winner = announced;
+			announced = null;
+			return winner;
+		}
+		resumable = false;
+		if(!joined) {
+			term++;
+			candidates.clear();
+		}
+		joined = false;
+		candidates.put(self.getId(), self);
+		broadcast(socket, CODE_CANDIDATE, self, table, false);
+		
+		// Candidacies for the term are collected for one window, a newer term restarts collection
+		HashSet<Integer> passedOver = new HashSet<>();
+		long deadline = System.currentTimeMillis() + window;
+		ClientData winner = null;
+		while(winner == null) {
+			PacketData received = receive(socket, deadline);
+			if(received != null) {
+				winner = handle(socket, received, self, table);
+				continue;
+			}
+			ClientData best = best(passedOver);
+			if(best.getId() == self.getId()) {
+				// The winner's server starts from the table, so the others can resume without a handshake
+				broadcast(socket, CODE_WINNER, self, table, !table.isEmpty());
+				winner = awaitBetterWinner(socket, self, table);
+			}
+			else {
+				// The expected winner is given one window to announce before it is passed over
+				winner = awaitWinner(socket, System.currentTimeMillis() + window, self, table);
+				if(winner == null) {
+					passedOver.add(best.getId());
+				}
+			}
+			deadline = System.currentTimeMillis();
+		}
+		return winner;
+	}
+	
+	/**
+	 * Announces this client as the winner of a new term without holding an election. Used by a hot 
+	 * standby that already holds the client table and has bound the server socket, so the other 
+	 * clients resume sending availability to it without a handshake.
+	 * @param socket the client's socket, used to reach the other clients
+	 * @param self this client's entry, sent as the announcement's only record
+	 * @param table the clients to announce to
+	 */
+	public synchronized void announce(DatagramSocket socket, ClientData self, ArrayList<ClientData> table) {
+		term++;
+		broadcast(socket, CODE_WINNER, self, table, true);
+	}
+	
+	/**
+	 * Applies one election packet received during a run
+	 * @param socket the client's socket
+	 * @param received the received packet
+	 * @param self this client's entry from the last AS table
+	 * @param table the last AS table
+	 * @return the announced winner if the packet decided the election, otherwise null
+	 */
+	private ClientData handle(DatagramSocket socket, PacketData received, ClientData self, ArrayList<ClientData> table) {
+		long packetTerm = received.getTableVersion();
+		ClientData candidate = received.getClientData().get(0);
+		if(received.getCode() == CODE_WINNER && packetTerm >= term) {
+			term = packetTerm;
+			resumable = received.getResume();
+			return candidate;
+		}
+		if(received.getCode() == CODE_CANDIDATE) {
+			if(packetTerm > term) {
+				// A newer term replaces this one and this client stands again in it
+				term = packetTerm;
+				candidates.clear();
+				candidates.put(self.getId(), self);
+				broadcast(socket, CODE_CANDIDATE, self, table, false);
+			}
+			if(packetTerm == term) {
+				candidates.put(candidate.getId(), candidate);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Waits for a winner to be announced
+	 * @param socket the client's socket
+	 * @param deadline the time in milliseconds to stop waiting
+	 * @param self this client's entry from the last AS table
+	 * @param table the last AS table
+	 * @return the announced winner, or null if none was announced in time
+	 */
+	private ClientData awaitWinner(DatagramSocket socket, long deadline, ClientData self, ArrayList<ClientData> table) {
+		PacketData received;
+		while((received = receive(socket, deadline)) != null) {
+			ClientData winner = handle(socket, received, self, table);
+			if(winner != null) {
+				return winner;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Listens for one window after announcing in case a better ranked client also announced for 
+	 * this term, which can happen if candidacies were lost. The lower ranked client steps down, as 
+	 * does any client that hears a hot standby take over.
+	 * @param socket the client's socket
+	 * @param self this client's entry from the last AS table
+	 * @param table the last AS table
+	 * @return the better ranked winner if one announced, otherwise this client
+	 */
+	private ClientData awaitBetterWinner(DatagramSocket socket, ClientData self, ArrayList<ClientData> table) {
+		long deadline = System.currentTimeMillis() + window;
+		long announcedTerm = term;
+		PacketData received;
+		while((received = receive(socket, deadline)) != null) {
+			ClientData other = handle(socket, received, self, table);
+			if(other != null && other.getId() != self.getId() && (term > announcedTerm || resumable || compare(other, self) < 0)) {
+				return other;
+			}
+		}
+		return self;
+	}
+	
+	/**
+	 * Finds the best ranked candidate that has not been passed over
+	 * @param passedOver the ids of candidates that failed to announce
+	 * @return the best candidate, there is always at least this client
+	 */
+	private ClientData best(HashSet<Integer> passedOver) {
+		ClientData best = null;
+		for(ClientData candidate: candidates.values()) {
+			if(!passedOver.contains(candidate.getId()) && (best == null || compare(candidate, best) < 0)) {
+				best = candidate;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Sends an election packet to every live client in the table other than this one
+	 * @param socket the client's socket
+	 * @param code the candidacy or winner code
+	 * @param self this client's entry, sent as the packet's only record
+	 * @param table the last AS table
+	 * @param resume true if a winner already holds the client table
+	 */
+	private void broadcast(DatagramSocket socket, byte code, ClientData self, ArrayList<ClientData> table, boolean resume) {
+		ArrayList<ClientData> dataField = new ArrayList<>();
+		dataField.add(self);
+		PacketData packetData = new PacketData(version, mode, code, dataField);
+		packetData.setFlags(false, true);
+		packetData.setResume(resume);
+		packetData.setTableVersion(term);
+		ByteBuffer buffer = codec.encode(packetData);
+		DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.limit());
+		for(ClientData client: table) {
+			if(client.getId() == self.getId() || client.getStatus() == true || client.getAddress() == null) {
+				continue;
+			}
+			packet.setAddress(client.getAddress());
+			packet.setPort(client.getPort());
+			try {
+				socket.send(packet);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Receives the next election packet before a deadline, other packets are dropped
+	 * @param socket the client's socket
+	 * @param deadline the time in milliseconds to stop waiting
+	 * @return the election packet, or null if the deadline passed
+	 */
+	private PacketData receive(DatagramSocket socket, long deadline) {
+		DatagramPacket response = new DatagramPacket(receiveBytes, receiveBytes.length);
+		while(true) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				return null;
+			}
+			try {
+				socket.setSoTimeout((int) remaining);
+				response.setLength(receiveBytes.length);
+				socket.receive(response);
+			} catch (SocketTimeoutException e) {
+				return null;
+			} catch (SocketException e) {
+				e.printStackTrace();
+				return null;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+			PacketData packetData = PacketCodec.decode(ByteBuffer.wrap(response.getData(), response.getOffset(), response.getLength()));
+			if(packetData == null || packetData.getVersion() != version || packetData.getMode() != mode 
+					|| !isElectionCode(packetData.getCode()) || packetData.getClientData().isEmpty()) {
+				continue;
+			}
+			// The winner is reached at the address its announcement came from
+			if(packetData.getCode() == CODE_WINNER) {
+				ClientData winner = packetData.getClientData().get(0);
+				winner.setAddress(response.getAddress());
+			}
+			return packetData;
+		}
+	}
+	
+	/**
+	 * Getter for the term
+	 * @return the latest election term this client has taken part in
+	 */
+	public synchronized long getTerm() {
+		return this.term;
+	}
+	
+	/**
+	 * Determines if the last winner holds the client table
+	 * @return true if clients can resume sending availability to the winner without a handshake
+	 */
+	public synchronized boolean isResumable() {
+		return this.resumable;
+	}
+	
+	/**
+	 * Getter for the election window
+	 * @return the time in milliseconds candidacies are collected for
+	 */
+	public long getWindow() {
+		return this.window;
+	}
+}
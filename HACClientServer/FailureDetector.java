@@ -0,0 +1,56 @@
+/**
+ * Decides from the heartbeats a node has sent when it should be considered failed. Heartbeats may 
+ * be recorded from any receiving thread while deadlines are read by the thread that owns the timing 
+ * wheel. The detector is chosen with the hac.detector system property, either phi (the default) or 
+ * deadline.
+ * @author Sam Dodson
+ *
+ */
+public interface FailureDetector {
+	/**
+	 * Records a heartbeat from a node
+	 * @param id the id of the node, ids are expected to be small and dense
+	 * @param now the time in milliseconds the heartbeat arrived
+	 */
+	void heartbeat(int id, long now);
+	
+	/**
+	 * Gives the time at which a node will be considered failed if no further heartbeat arrives
+	 * @param id the id of the node
+	 * @return the deadline in milliseconds, or -1 if the node has never been heard from
+	 */
+	long getDeadline(int id);
+	
+	/**
+	 * Gives how strongly a node is suspected of having failed
+	 * @param id the id of the node
+	 * @param now the current time in milliseconds
+	 * @return the suspicion level, 0 for a node that was just heard from
+	 */
+	double getSuspicion(int id, long now);
+	
+	/**
+	 * Drops what is known about a node so an id handed to a new node starts without its history
+	 * @param id the id of the node
+	 */
+	void forget(int id);
+	
+	/**
+	 * Creates the detector named by the hac.detector system property. The phi accrual detector reads 
+	 * its threshold, window size and minimum standard deviation from hac.phiThreshold, hac.phiWindow 
+	 * and hac.phiMinStdDev.
+	 * @param interval the expected time in milliseconds between heartbeats
+	 * @param grace the extra time in milliseconds a heartbeat may be late before the node is suspected
+	 * @return the detector
+	 */
+	static FailureDetector fromSystemProperties(long interval, long grace) {
+		String name = System.getProperty("hac.detector", "phi");
+		if(name.equals("deadline")) {
+			return new DeadlineDetector(interval + grace);
+		}
+		double threshold = Double.parseDouble(System.getProperty("hac.phiThreshold", String.valueOf(PhiAccrualDetector.DEFAULT_THRESHOLD)));
+		int window = Integer.getInteger("hac.phiWindow", PhiAccrualDetector.DEFAULT_WINDOW);
+		long minStdDev = Long.getLong("hac.phiMinStdDev", PhiAccrualDetector.DEFAULT_MIN_STD_DEV);
+		return new PhiAccrualDetector(threshold, window, minStdDev, interval, grace);
+	}
+}
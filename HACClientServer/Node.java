@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+
 /**
  * Node class for HAC protocol that runs as either a client or server node
  * @author Sam Dodson
@@ -60,12 +62,35 @@ public class Node {
 	}
 		
 	/**
-	 * Promotes client to server by setting client to null and creating you server object
+	 * Promotes client to server by setting client to null and creating you server object. The server 
+	 * starts from the client table the promoted client holds, the replicated table for a hot standby 
+	 * or the last AS table otherwise, so surviving clients keep their ids and availability and 
+	 * resume sending availability to it without a handshake. A standby is announced to the clients 
+	 * once its socket is bound, an elected client already announced itself.
 	 */
 	public void promoteToServer() {
 		System.out.println("Promoted to server\n");
+		Client promoted = client;
 		client = null;
 		server = new Server(6000);
-		server.handshake();
+		StandbyReplica replica = promoted.getReplica();
+		boolean standby = replica != null && replica.isSynced();
+		ArrayList<ClientData> clients = standby ? replica.getClients() : promoted.getClientData();
+		long tableVersion = standby ? replica.getTableVersion() : promoted.getTableVersion();
+		if(clients.isEmpty()) {
+			server.handshake();
+			return;
+		}
+		
+		// The promoted client's own entry is left out since it is now the server
+		clients.remove(new ClientData(null, 0, 0, promoted.getIdNumber()));
+		server.seed(clients, tableVersion);
+		server.openLog();
+		server.createSocket();
+		server.createWorkerPool();
+		if(standby) {
+			promoted.announceTakeover(clients);
+		}
+		server.listen();
 	}
 }
@@ -0,0 +1,819 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The state of every client, stored off the heap in a struct-of-arrays layout so a table of a
+ * million clients is a few dozen direct buffers instead of a million objects. Ids are split into
+ * pages of 4096 slots and each page keeps one column per field: id, flags, port, availability,
+ * score and the aggregator a client sends through as ints, last seen time and table versions as
+ * longs, and the address as 16 bytes. A sweep reads one column after another with no objects to
+ * follow, and fields written by worker threads are read and written with volatile semantics, as the
+ * fields of ClientData are. Pages are only ever added or dropped whole, so a write never lands in a
+ * copy that is being replaced. The address of each slot is also kept as an InetAddress on the heap
+ * since sockets need one to send to.
+ * @author Sam Dodson
+ *
+ */
+public class NodeTable {
+	static final int PAGE_BITS = 12;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	static final int PAGE_MASK = PAGE_SIZE - 1;
+	static final int ADDRESS_SIZE = 16;
+	static final int INT_ID = 0;
+	static final int INT_FLAGS = 1;
+	static final int INT_PORT = 2;
+	static final int INT_AVAILABILITY = 3;
+	static final int INT_SCORE = 4;
+	static final int INT_AGGREGATOR = 5;
+	static final int INT_COLUMNS = 6;
+	static final int LONG_LAST_SEEN = 0;
+	static final int LONG_LIVE_VERSION = 1;
+	static final int LONG_CHANGED_VERSION = 2;
+	static final int LONG_ACKED_VERSION = 3;
+	static final int LONG_LIFECYCLE_VERSION = 4;
+	static final int LONG_COLUMNS = 5;
+	static final int FLAG_DEAD = 1;
+	static final int FLAG_TOMBSTONED = 2;
+	static final int GENERATION_SHIFT = 8;
+	static final int ADDRESS_LENGTH_SHIFT = 16;
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private volatile Page[] pages = new Page[0];
+	
+	/**
+	 * One page of slots, holding each column for PAGE_SIZE consecutive ids
+	 */
+	static final class Page {
+		private final ByteBuffer ints = allocateColumns(INT_COLUMNS * PAGE_SIZE * 4);
+		private final ByteBuffer longs = allocateColumns(LONG_COLUMNS * PAGE_SIZE * 8);
+		private final ByteBuffer addresses = allocateColumns(PAGE_SIZE * ADDRESS_SIZE);
+		private final InetAddress[] inetAddresses = new InetAddress[PAGE_SIZE];
+		
+		/**
+		 * Constructor for the Page class, every slot starts free
+		 */
+		Page() {
+			for(int slot = 0; slot < PAGE_SIZE; slot++) {
+				setInt(INT_ID, slot, -1);
+			}
+		}
+		
+		/**
+		 * Allocates a direct buffer aligned to 8 bytes, which volatile access to its longs needs
+		 * @param bytes the size of the buffer
+		 * @return the zeroed buffer
+		 */
+		private static ByteBuffer allocateColumns(int bytes) {
+			return ByteBuffer.allocateDirect(bytes + 7).alignedSlice(8).order(ByteOrder.nativeOrder());
+		}
+		
+		/**
+		 * Reads an int column
+		 * @param column the index of the column
+		 * @param slot the slot within the page
+		 * @return the value of the column for the slot
+		 */
+		int getInt(int column, int slot) {
+			return (int) INTS.getVolatile(ints, (column * PAGE_SIZE + slot) << 2);
+		}
+		
+		/**
+		 * Writes an int column
+		 * @param column the index of the column
+		 * @param slot the slot within the page
+		 * @param value the value to write
+		 */
+		void setInt(int column, int slot, int value) {
+			INTS.setVolatile(ints, (column * PAGE_SIZE + slot) << 2, value);
+		}
+		
+		/**
+		 * Reads a long column
+		 * @param column the index of the column
+		 * @param slot the slot within the page
+		 * @return the value of the column for the slot
+		 */
+		long getLong(int column, int slot) {
+			return (long) LONGS.getVolatile(longs, (column * PAGE_SIZE + slot) << 3);
+		}
+		
+		/**
+		 * Writes a long column
+		 * @param column the index of the column
+		 * @param slot the slot within the page
+		 * @param value the value to write
+		 */
+		void setLong(int column, int slot, long value) {
+			LONGS.setVolatile(longs, (column * PAGE_SIZE + slot) << 3, value);
+		}
+		
+		/**
+		 * Raises the live version of a slot unless it is already at or above a version
+		 * @param slot the slot within the page
+		 * @param version the version to raise it to
+		 * @return true if the version was raised
+		 */
+		boolean markLive(int slot, long version) {
+			int index = (LONG_LIVE_VERSION * PAGE_SIZE + slot) << 3;
+			long current = (long) LONGS.getVolatile(longs, index);
+			while(current < version) {
+				if(LONGS.compareAndSet(longs, index, current, version)) {
+					return true;
+				}
+				current = (long) LONGS.getVolatile(longs, index);
+			}
+			return false;
+		}
+		
+		/**
+		 * Replaces some bits of a slot's flags, retrying if another thread changed them at the same time
+		 * @param slot the slot within the page
+		 * @param mask the bits to replace
+		 * @param bits the new value of those bits
+		 */
+		void updateFlags(int slot, int mask, int bits) {
+			int index = (INT_FLAGS * PAGE_SIZE + slot) << 2;
+			int current = (int) INTS.getVolatile(ints, index);
+			while(!INTS.compareAndSet(ints, index, current, (current & ~mask) | (bits & mask))) {
+				current = (int) INTS.getVolatile(ints, index);
+			}
+		}
+		
+		/**
+		 * Writes a slot's address bytes, its length is published after them in the flags
+		 * @param slot the slot within the page
+		 * @param address the address, or null for none
+		 */
+		void setAddress(int slot, InetAddress address) {
+			byte[] bytes = (address == null) ? new byte[0] : address.getAddress();
+			for(int index = 0; index < bytes.length; index++) {
+				addresses.put(slot * ADDRESS_SIZE + index, bytes[index]);
+			}
+			inetAddresses[slot] = address;
+			updateFlags(slot, 0xFF << ADDRESS_LENGTH_SHIFT, bytes.length << ADDRESS_LENGTH_SHIFT);
+		}
+		
+		/**
+		 * Copies a slot's address bytes into a buffer at its position
+		 * @param slot the slot within the page
+		 * @param out the buffer to write to
+		 * @param length the length of the address
+		 */
+		void writeAddress(int slot, ByteBuffer out, int length) {
+			int base = slot * ADDRESS_SIZE;
+			for(int index = 0; index < length; index++) {
+				out.put(addresses.get(base + index));
+			}
+		}
+		
+		/**
+		 * Clears every column of a slot back to the state of a new client, dead with nothing counted
+		 * @param slot the slot within the page
+		 * @param id the id the slot now holds, or -1 to free it
+		 */
+		void reset(int slot, int id) {
+			for(int column = 0; column < INT_COLUMNS; column++) {
+				setInt(column, slot, 0);
+			}
+			for(int column = 0; column < LONG_COLUMNS; column++) {
+				setLong(column, slot, 0);
+			}
+			inetAddresses[slot] = null;
+			setInt(INT_FLAGS, slot, FLAG_DEAD);
+			setInt(INT_ID, slot, id);
+		}
+	}
+	
+	/**
+	 * A flyweight ClientData whose getters and setters read and write one slot of the table, so code
+	 * written against ClientData keeps working on the off-heap table. A view is only meant to be held
+	 * while its client holds the id, since the slot is cleared when the client is removed.
+	 */
+	static final class View extends ClientData {
+		private final Page page;
+		private final int slot;
+		private final int id;
+		
+		/**
+		 * Constructor for the View class
+		 * @param page the page holding the client
+		 * @param slot the slot within the page
+		 * @param id the id of the client
+		 */
+		View(Page page, int slot, int id) {
+			this.page = page;
+			this.slot = slot;
+			this.id = id;
+		}
+		
+		/**
+		 * Reads the address from the slot
+		 */
+		@Override
+		public InetAddress getAddress() {
+			return page.inetAddresses[slot];
+		}
+		
+		/**
+		 * Reads the address bytes from the slot
+		 */
+		@Override
+		byte[] getAddressBytes() {
+			byte[] bytes = new byte[(page.getInt(INT_FLAGS, slot) >>> ADDRESS_LENGTH_SHIFT) & 0xFF];
+			for(int index = 0; index < bytes.length; index++) {
+				bytes[index] = page.addresses.get(slot * ADDRESS_SIZE + index);
+			}
+			return bytes;
+		}
+		
+		/**
+		 * Reads the port from the slot
+		 */
+		@Override
+		public int getPort() {
+			return page.getInt(INT_PORT, slot);
+		}
+		
+		/**
+		 * Reads the availability from the slot
+		 */
+		@Override
+		public int getAvailability() {
+			return page.getInt(INT_AVAILABILITY, slot);
+		}
+		
+		/**
+		 * Reads the score from the slot
+		 */
+		@Override
+		public int getScore() {
+			return page.getInt(INT_SCORE, slot);
+		}
+		
+		/**
+		 * Gives the id the slot was claimed for
+		 */
+		@Override
+		public int getId() {
+			return this.id;
+		}
+		
+		/**
+		 * Reads the status from the slot
+		 */
+		@Override
+		public boolean getStatus() {
+			return (page.getInt(INT_FLAGS, slot) & FLAG_DEAD) != 0;
+		}
+		
+		/**
+		 * Writes the address into the slot
+		 */
+		@Override
+		public void setAddress(InetAddress address) {
+			page.setAddress(slot, address);
+		}
+		
+		/**
+		 * Writes the port into the slot
+		 */
+		@Override
+		public void setPort(int port) {
+			page.setInt(INT_PORT, slot, port);
+		}
+		
+		/**
+		 * Writes the availability into the slot
+		 */
+		@Override
+		public void setAvailability(int availability) {
+			page.setInt(INT_AVAILABILITY, slot, availability);
+		}
+		
+		/**
+		 * Writes the score into the slot
+		 */
+		@Override
+		public void setScore(int score) {
+			page.setInt(INT_SCORE, slot, score);
+		}
+		
+		/**
+		 * Ids are fixed by the slot a view reads, so a view's id can only be set to the id it already has
+		 * @throws IllegalStateException if the id differs from the slot's id
+		 */
+		@Override
+		public void setId(int id) {
+			if(id != getId()) {
+				throw new IllegalStateException("The view of client " + getId() + " cannot be moved to id " + id);
+			}
+		}
+		
+		/**
+		 * Writes the status into the slot
+		 */
+		@Override
+		public void setStatus(boolean status) {
+			page.updateFlags(slot, FLAG_DEAD, status ? FLAG_DEAD : 0);
+		}
+		
+		/**
+		 * Reads the changed version from the slot
+		 */
+		@Override
+		public long getChangedVersion() {
+			return page.getLong(LONG_CHANGED_VERSION, slot);
+		}
+		
+		/**
+		 * Writes the changed version into the slot
+		 */
+		@Override
+		public void setChangedVersion(long changedVersion) {
+			page.setLong(LONG_CHANGED_VERSION, slot, changedVersion);
+		}
+		
+		/**
+		 * Reads the acked version from the slot
+		 */
+		@Override
+		public long getAckedVersion() {
+			return page.getLong(LONG_ACKED_VERSION, slot);
+		}
+		
+		/**
+		 * Writes the acked version into the slot
+		 */
+		@Override
+		public void setAckedVersion(long ackedVersion) {
+			page.setLong(LONG_ACKED_VERSION, slot, ackedVersion);
+		}
+		
+		/**
+		 * Reads the live version from the slot
+		 */
+		@Override
+		public long getLiveVersion() {
+			return page.getLong(LONG_LIVE_VERSION, slot);
+		}
+		
+		/**
+		 * Raises the live version in the slot
+		 */
+		@Override
+		public boolean markLive(long liveVersion) {
+			return page.markLive(slot, liveVersion);
+		}
+		
+		/**
+		 * Reads the generation from the slot
+		 */
+		@Override
+		public int getGeneration() {
+			return (page.getInt(INT_FLAGS, slot) >>> GENERATION_SHIFT) & 0xFF;
+		}
+		
+		/**
+		 * Writes the generation into the slot
+		 */
+		@Override
+		public void setGeneration(int generation) {
+			page.updateFlags(slot, 0xFF << GENERATION_SHIFT, generation << GENERATION_SHIFT);
+		}
+		
+		/**
+		 * Reads the tombstoned flag from the slot
+		 */
+		@Override
+		public boolean getTombstoned() {
+			return (page.getInt(INT_FLAGS, slot) & FLAG_TOMBSTONED) != 0;
+		}
+		
+		/**
+		 * Writes the tombstoned flag into the slot
+		 */
+		@Override
+		public void setTombstoned(boolean tombstoned) {
+			page.updateFlags(slot, FLAG_TOMBSTONED, tombstoned ? FLAG_TOMBSTONED : 0);
+		}
+		
+		/**
+		 * Reads the lifecycle version from the slot
+		 */
+		@Override
+		public long getLifecycleVersion() {
+			return page.getLong(LONG_LIFECYCLE_VERSION, slot);
+		}
+		
+		/**
+		 * Writes the lifecycle version into the slot
+		 */
+		@Override
+		public void setLifecycleVersion(long lifecycleVersion) {
+			page.setLong(LONG_LIFECYCLE_VERSION, slot, lifecycleVersion);
+		}
+		
+		/**
+		 * Reads the last seen time from the slot
+		 */
+		@Override
+		public long getLastSeen() {
+			return page.getLong(LONG_LAST_SEEN, slot);
+		}
+		
+		/**
+		 * Writes the last seen time into the slot
+		 */
+		@Override
+		public void setLastSeen(long lastSeen) {
+			page.setLong(LONG_LAST_SEEN, slot, lastSeen);
+		}
+	}
+	
+	/**
+	 * Finds the page holding an id
+	 * @param id the id
+	 * @return the page, or null if the id is past the last page
+	 */
+	private Page page(int id) {
+		Page[] current = pages;
+		int index = id >>> PAGE_BITS;
+		return (id < 0 || index >= current.length) ? null : current[index];
+	}
+	
+	/**
+	 * Getter for the number of slots the pages hold
+	 * @return the number of ids the table has room for
+	 */
+	public int getCapacity() {
+		return pages.length * PAGE_SIZE;
+	}
+	
+	/**
+	 * Adds pages until the table has room for an id. Only one thread may add or drop pages at a time.
+	 * @param id the id to make room for
+	 */
+	void ensureCapacity(int id) {
+		Page[] current = pages;
+		int needed = (id >>> PAGE_BITS) + 1;
+		if(needed <= current.length) {
+			return;
+		}
+		Page[] grown = Arrays.copyOf(current, needed);
+		for(int index = current.length; index < needed; index++) {
+			grown[index] = new Page();
+		}
+		pages = grown;
+	}
+	
+	/**
+	 * Drops the pages past the one holding the highest id in use, so their memory is given back. Only
+	 * one thread may add or drop pages at a time.
+	 * @param limit the id one past the highest id in use
+	 */
+	void trim(int limit) {
+		Page[] current = pages;
+		int needed = (limit + PAGE_SIZE - 1) >>> PAGE_BITS;
+		if(needed < current.length) {
+			pages = Arrays.copyOf(current, needed);
+		}
+	}
+	
+	/**
+	 * Claims a slot for an id and clears it, making room for it first if needed
+	 * @param id the id the slot is claimed for
+	 */
+	void claim(int id) {
+		ensureCapacity(id);
+		page(id).reset(id & PAGE_MASK, id);
+	}
+	
+	/**
+	 * Frees an id's slot and clears it
+	 * @param id the id to free
+	 */
+	void free(int id) {
+		Page page = page(id);
+		if(page != null) {
+			page.reset(id & PAGE_MASK, -1);
+		}
+	}
+	
+	/**
+	 * Determines if a slot holds a client
+	 * @param id the id of the slot
+	 * @return true if a client holds the id
+	 */
+	public boolean isUsed(int id) {
+		Page page = page(id);
+		return page != null && page.getInt(INT_ID, id & PAGE_MASK) == id;
+	}
+	
+	/**
+	 * Creates a view of a client's slot
+	 * @param id the id of the client
+	 * @return the view, or null if no client holds the id
+	 */
+	public ClientData view(int id) {
+		Page page = page(id);
+		if(page == null || page.getInt(INT_ID, id & PAGE_MASK) != id) {
+			return null;
+		}
+		return new View(page, id & PAGE_MASK, id);
+	}
+	
+	/**
+	 * Copies every field of a client into its slot
+	 * @param client the client to copy, its slot must already be claimed
+	 */
+	void copyFrom(ClientData client) {
+		int id = client.getId();
+		Page page = page(id);
+		int slot = id & PAGE_MASK;
+		page.setInt(INT_PORT, slot, client.getPort());
+		page.setInt(INT_AVAILABILITY, slot, client.getAvailability());
+		page.setInt(INT_SCORE, slot, client.getScore());
+		page.setLong(LONG_LAST_SEEN, slot, client.getLastSeen());
+		page.setLong(LONG_LIVE_VERSION, slot, client.getLiveVersion());
+		page.setLong(LONG_CHANGED_VERSION, slot, client.getChangedVersion());
+		page.setLong(LONG_ACKED_VERSION, slot, client.getAckedVersion());
+		page.setLong(LONG_LIFECYCLE_VERSION, slot, client.getLifecycleVersion());
+		page.setAddress(slot, client.getAddress());
+		int flags = (client.getStatus() ? FLAG_DEAD : 0) | (client.getTombstoned() ? FLAG_TOMBSTONED : 0)
+				| ((client.getGeneration() & 0xFF) << GENERATION_SHIFT);
+		page.updateFlags(slot, FLAG_DEAD | FLAG_TOMBSTONED | (0xFF << GENERATION_SHIFT), flags);
+	}
+	
+	/**
+	 * Copies a client's slot into a new ClientData that does not read the table
+	 * @param id the id of the client
+	 * @return the copy, or null if no client holds the id
+	 */
+	ClientData copyOf(int id) {
+		ClientData view = view(id);
+		if(view == null) {
+			return null;
+		}
+		ClientData copy = new ClientData(view.getAddress(), view.getPort(), view.getAvailability(), id);
+		copy.setScore(view.getScore());
+		copy.setStatus(view.getStatus());
+		copy.setGeneration(view.getGeneration());
+		copy.setTombstoned(view.getTombstoned());
+		copy.setChangedVersion(view.getChangedVersion());
+		copy.setAckedVersion(view.getAckedVersion());
+		copy.markLive(view.getLiveVersion());
+		copy.setLifecycleVersion(view.getLifecycleVersion());
+		copy.setLastSeen(view.getLastSeen());
+		return copy;
+	}
+	
+	/**
+	 * Records an availability packet from a client in one pass over its slot: the packet is only
+	 * counted if the client still holds the id at the generation the packet carries
+	 * @param id the id the packet carries
+	 * @param generation the generation the packet carries
+	 * @param liveVersion the table version to mark the client live for
+	 * @param ackedVersion the table version the client reported applying
+	 * @param now the current time in milliseconds
+	 * @param aggregator the server's number for the aggregator the packet came through, or 0 if it came directly
+	 * @return true if the client holds the id at that generation
+	 */
+	public boolean heartbeat(int id, int generation, long liveVersion, long ackedVersion, long now, int aggregator) {
+		Page page = page(id);
+		int slot = id & PAGE_MASK;
+		if(page == null || page.getInt(INT_ID, slot) != id || ((page.getInt(INT_FLAGS, slot) >>> GENERATION_SHIFT) & 0xFF) != generation) {
+			return false;
+		}
+		page.setLong(LONG_LAST_SEEN, slot, now);
+		page.markLive(slot, liveVersion);
+		page.setLong(LONG_ACKED_VERSION, slot, ackedVersion);
+		page.setInt(INT_AGGREGATOR, slot, aggregator);
+		return true;
+	}
+	
+	/**
+	 * Getter for a client's status
+	 * @param id the id of the client
+	 * @return true if the client is dead
+	 */
+	public boolean getStatus(int id) {
+		return (page(id).getInt(INT_FLAGS, id & PAGE_MASK) & FLAG_DEAD) != 0;
+	}
+	
+	/**
+	 * Setter for a client's status
+	 * @param id the id of the client
+	 * @param status true if the client is dead
+	 */
+	public void setStatus(int id, boolean status) {
+		page(id).updateFlags(id & PAGE_MASK, FLAG_DEAD, status ? FLAG_DEAD : 0);
+	}
+	
+	/**
+	 * Getter for a client's tombstoned field
+	 * @param id the id of the client
+	 * @return true if the client is left out of AS packets
+	 */
+	public boolean getTombstoned(int id) {
+		return (page(id).getInt(INT_FLAGS, id & PAGE_MASK) & FLAG_TOMBSTONED) != 0;
+	}
+	
+	/**
+	 * Setter for a client's tombstoned field
+	 * @param id the id of the client
+	 * @param tombstoned true if the client is to be left out of AS packets
+	 */
+	public void setTombstoned(int id, boolean tombstoned) {
+		page(id).updateFlags(id & PAGE_MASK, FLAG_TOMBSTONED, tombstoned ? FLAG_TOMBSTONED : 0);
+	}
+	
+	/**
+	 * Getter for a client's generation
+	 * @param id the id of the client
+	 * @return the generation of the id
+	 */
+	public int getGeneration(int id) {
+		return (page(id).getInt(INT_FLAGS, id & PAGE_MASK) >>> GENERATION_SHIFT) & 0xFF;
+	}
+	
+	/**
+	 * Getter for the length of a client's address
+	 * @param id the id of the client
+	 * @return 4 or 16, or 0 if the client has no address
+	 */
+	public int getAddressLength(int id) {
+		return (page(id).getInt(INT_FLAGS, id & PAGE_MASK) >>> ADDRESS_LENGTH_SHIFT) & 0xFF;
+	}
+	
+	/**
+	 * Getter for a client's address as sockets need it
+	 * @param id the id of the client
+	 * @return the address of the client, or null if it has none
+	 */
+	public InetAddress getAddress(int id) {
+		return page(id).inetAddresses[id & PAGE_MASK];
+	}
+	
+	/**
+	 * Writes a client's packed record, in the layout PacketCodec gives, straight from its page's columns. 
+	 * The page is found once and the flags read once so encoding a snapshot is one pass over each page. 
+	 * Tombstoned clients are only written into deltas, so receivers learn of the tombstone.
+	 * @param id the id of the client
+	 * @param changedAfter the record is only written if the client changed after this table version, 
+	 * or Long.MIN_VALUE for a full table
+	 * @param out the buffer to write to
+	 * @return true if the record was written, false if the id is free, unchanged or tombstoned in a full table
+	 */
+	boolean writeRecord(int id, long changedAfter, ByteBuffer out) {
+		Page page = page(id);
+		int slot = id & PAGE_MASK;
+		if(page == null || page.getInt(INT_ID, slot) != id) {
+			return false;
+		}
+		int flags = page.getInt(INT_FLAGS, slot);
+		boolean tombstoned = (flags & FLAG_TOMBSTONED) != 0;
+		if((tombstoned && changedAfter == Long.MIN_VALUE) || page.getLong(LONG_CHANGED_VERSION, slot) <= changedAfter) {
+			return false;
+		}
+		int length = (flags >>> ADDRESS_LENGTH_SHIFT) & 0xFF;
+		out.putInt(PacketCodec.packId(id, (flags >>> GENERATION_SHIFT) & 0xFF));
+		out.putInt(page.getInt(INT_AVAILABILITY, slot));
+		out.putShort((short) page.getInt(INT_SCORE, slot));
+		out.putShort((short) page.getInt(INT_PORT, slot));
+		out.put(tombstoned ? PacketCodec.STATUS_TOMBSTONED : ((flags & FLAG_DEAD) != 0) ? PacketCodec.STATUS_DEAD : PacketCodec.STATUS_ALIVE);
+		out.put((byte) length);
+		page.writeAddress(slot, out, length);
+		return true;
+	}
+	
+	/**
+	 * Getter for a client's port
+	 * @param id the id of the client
+	 * @return the port number of the client
+	 */
+	public int getPort(int id) {
+		return page(id).getInt(INT_PORT, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Getter for a client's availability
+	 * @param id the id of the client
+	 * @return the availability of the client
+	 */
+	public int getAvailability(int id) {
+		return page(id).getInt(INT_AVAILABILITY, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Setter for a client's availability
+	 * @param id the id of the client
+	 * @param availability the availability of the client
+	 */
+	public void setAvailability(int id, int availability) {
+		page(id).setInt(INT_AVAILABILITY, id & PAGE_MASK, availability);
+	}
+	
+	/**
+	 * Getter for a client's reliability score
+	 * @param id the id of the client
+	 * @return the score in parts per 10000
+	 */
+	public int getScore(int id) {
+		return page(id).getInt(INT_SCORE, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Setter for a client's reliability score
+	 * @param id the id of the client
+	 * @param score the score in parts per 10000
+	 */
+	public void setScore(int id, int score) {
+		page(id).setInt(INT_SCORE, id & PAGE_MASK, score);
+	}
+	
+	/**
+	 * Getter for the aggregator a client sends availability through, kept by the server and not sent 
+	 * over the wire
+	 * @param id the id of the client
+	 * @return the server's number for the aggregator, or 0 if the client sends to the server directly
+	 */
+	public int getAggregator(int id) {
+		return page(id).getInt(INT_AGGREGATOR, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Setter for the aggregator a client sends availability through
+	 * @param id the id of the client
+	 * @param aggregator the server's number for the aggregator, or 0 if the client sends to the server directly
+	 */
+	public void setAggregator(int id, int aggregator) {
+		page(id).setInt(INT_AGGREGATOR, id & PAGE_MASK, aggregator);
+	}
+	
+	/**
+	 * Getter for the time a client's availability was last received
+	 * @param id the id of the client
+	 * @return the time in milliseconds, or 0 if none was received
+	 */
+	public long getLastSeen(int id) {
+		return page(id).getLong(LONG_LAST_SEEN, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Getter for the table version a client was last marked live for
+	 * @param id the id of the client
+	 * @return the table version the client was last marked live for
+	 */
+	public long getLiveVersion(int id) {
+		return page(id).getLong(LONG_LIVE_VERSION, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Getter for the table version a client last changed in
+	 * @param id the id of the client
+	 * @return the version of the last change to the client
+	 */
+	public long getChangedVersion(int id) {
+		return page(id).getLong(LONG_CHANGED_VERSION, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Setter for the table version a client last changed in
+	 * @param id the id of the client
+	 * @param changedVersion the version of the last change to the client
+	 */
+	public void setChangedVersion(int id, long changedVersion) {
+		page(id).setLong(LONG_CHANGED_VERSION, id & PAGE_MASK, changedVersion);
+	}
+	
+	/**
+	 * Getter for the last table version a client reported applying
+	 * @param id the id of the client
+	 * @return the last table version acknowledged by the client
+	 */
+	public long getAckedVersion(int id) {
+		return page(id).getLong(LONG_ACKED_VERSION, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Getter for the table version a client last went dead or was tombstoned at
+	 * @param id the id of the client
+	 * @return the version of the client's last lifecycle change
+	 */
+	public long getLifecycleVersion(int id) {
+		return page(id).getLong(LONG_LIFECYCLE_VERSION, id & PAGE_MASK);
+	}
+	
+	/**
+	 * Setter for the table version a client last went dead or was tombstoned at
+	 * @param id the id of the client
+	 * @param lifecycleVersion the version of the client's last lifecycle change
+	 */
+	public void setLifecycleVersion(int id, long lifecycleVersion) {
+		page(id).setLong(LONG_LIFECYCLE_VERSION, id & PAGE_MASK, lifecycleVersion);
+	}
+}
@@ -0,0 +1,99 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Measures the heap a registry of N clients takes and how long a server tick's sweep and a full AS
+ * snapshot take to run over it, against the same N clients held as ClientData objects on the heap.
+ * Every other client is live and the sweep credits availability the way the server's tick does.
+ * N defaults to 1000000 and can be given as the first argument.
+ * @author Sam Dodson
+ *
+ */
+public class NodeTableBenchmark {
+	static final int DEFAULT_CLIENTS = 1000000;
+	static final int TICKS = 20;
+	
+	/**
+	 * Main method for class
+	 * @param args the number of clients, optional
+	 */
+	public static void main(String[] args) throws Exception {
+		int clientCount = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		
+		// The off-heap registry keeps one InetAddress reference per slot, the heap table one object per client
+		long before = usedHeap();
+		ClientRegistry registry = new ClientRegistry();
+		for(int id = 0; id < clientCount; id++) {
+			ClientData client = registry.add(address, 1024 + id % 60000);
+			client.setStatus(id % 2 == 1);
+		}
+		long registryHeap = usedHeap() - before;
+		before = usedHeap();
+		ArrayList<ClientData> heapTable = new ArrayList<>(clientCount);
+		for(int id = 0; id < clientCount; id++) {
+			ClientData client = new ClientData(InetAddress.getByAddress(address.getAddress()), 1024 + id % 60000, 0, id);
+			client.setStatus(id % 2 == 1);
+			heapTable.add(client);
+		}
+		long heapTableHeap = usedHeap() - before;
+		
+		NodeTable table = registry.getTable();
+		long tableSweep = 0;
+		long heapSweep = 0;
+		for(int tick = 0; tick < TICKS; tick++) {
+			long start = System.nanoTime();
+			int limit = registry.getNextId();
+			for(int id = 0; id < limit; id++) {
+				if(table.isUsed(id) && table.getStatus(id) == false) {
+					table.setAvailability(id, table.getAvailability(id) + 1);
+				}
+			}
+			tableSweep += System.nanoTime() - start;
+			start = System.nanoTime();
+			for(ClientData client: heapTable) {
+				if(client.getStatus() == false) {
+					client.setAvailability(client.getAvailability() + 1);
+				}
+			}
+			heapSweep += System.nanoTime() - start;
+		}
+		
+		// Snapshots are encoded straight from the columns, or from the object list as before
+		PacketCodec codec = new PacketCodec();
+		PacketData header = new PacketData((byte) 1, (byte) 0, (byte) 3, null);
+		PacketData listed = new PacketData((byte) 1, (byte) 0, (byte) 3, heapTable);
+		long tableEncode = 0;
+		long heapEncode = 0;
+		int length = 0;
+		for(int tick = 0; tick < TICKS; tick++) {
+			long start = System.nanoTime();
+			ByteBuffer encoded = codec.encode(header, registry);
+			length = encoded.remaining();
+			tableEncode += System.nanoTime() - start;
+			start = System.nanoTime();
+			codec.encode(listed);
+			heapEncode += System.nanoTime() - start;
+		}
+		
+		System.out.println("Clients: " + clientCount + " | Snapshot bytes: " + length);
+		System.out.println("Heap MB: node table " + registryHeap / (1024 * 1024) + " | objects " + heapTableHeap / (1024 * 1024));
+		System.out.println("Sweep ms: node table " + String.format("%.2f", tableSweep / (TICKS * 1e6)) + " | objects "
+				+ String.format("%.2f", heapSweep / (TICKS * 1e6)));
+		System.out.println("Snapshot ms: node table " + String.format("%.2f", tableEncode / (TICKS * 1e6)) + " | objects "
+				+ String.format("%.2f", heapEncode / (TICKS * 1e6)));
+	}
+	
+	/**
+	 * Gives the heap in use after a collection
+	 * @return the bytes of heap in use
+	 */
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int run = 0; run < 3; run++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
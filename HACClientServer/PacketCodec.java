@@ -0,0 +1,354 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Encodes and decodes packets using the fixed binary layout described in the README.
+ * The header is | Version | Mode | Code | Flags | with one byte per field and the data field
+ * is | Table Version (8) | Base Version (8) | Count (4) | followed by packed client records of the form
+ * | Id (4) | Availability (4) | Score (2) | Port (2) | Status (1) | Address Length (1) | Address (0, 4 or 16) |
+ * The top byte of a non-negative id holds the generation of the id and the status is 0 for alive, 1 for 
+ * dead, 2 for tombstoned and 3 for purged.
+ * @author Sam Dodson
+ *
+ */
+public class PacketCodec {
+	static final int HEADER_SIZE = 4;
+	static final int MAX_PACKET_SIZE = 65507;
+	static final int CLIENT_RECORD_SIZE = 14;
+	static final int OFFSET_VERSION = 0;
+	static final int OFFSET_MODE = 1;
+	static final int OFFSET_CODE = 2;
+	static final int OFFSET_FLAGS = 3;
+	static final int OFFSET_DATA = HEADER_SIZE;
+	static final int OFFSET_TABLE_VERSION = HEADER_SIZE;
+	static final int OFFSET_BASE_VERSION = HEADER_SIZE + 8;
+	static final int OFFSET_COUNT = HEADER_SIZE + 16;
+	static final int OFFSET_RECORDS = HEADER_SIZE + 20;
+	static final int ID_BITS = 24;
+	static final int ID_MASK = (1 << ID_BITS) - 1;
+	static final int GENERATION_MASK = 0x7F;
+	static final byte STATUS_ALIVE = 0;
+	static final byte STATUS_DEAD = 1;
+	static final byte STATUS_TOMBSTONED = 2;
+	static final byte STATUS_PURGED = 3;
+	private ByteBuffer buffer;
+	
+	/**
+	 * Constructor for the PacketCodec class, allocates the buffer that every encode call reuses
+	 */
+	public PacketCodec() {
+		this.buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+	}
+	
+	/**
+	 * Encodes a packet into this codec's reusable buffer, which grows if the packet does not fit.
+	 * The returned buffer is only valid until the next call to encode.
+	 * @param packetData the packet to encode
+	 * @return the buffer holding the encoded packet, positioned at 0 with its limit at the end of the packet
+	 */
+	public ByteBuffer encode(PacketData packetData) {
+		int size = encodedSize(packetData);
+		if(size > buffer.capacity()) {
+			buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+		}
+		buffer.clear();
+		encode(packetData, buffer);
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Writes the header and data field of a packet into a buffer at its current position
+	 * @param packetData the packet to encode
+	 * @param out the buffer to write to
+	 */
+	public static void encode(PacketData packetData, ByteBuffer out) {
+		writeHeader(out, packetData.getVersion(), packetData.getMode(), packetData.getCode(), packetData.getFlags());
+		out.putLong(packetData.getTableVersion());
+		out.putLong(packetData.getBaseVersion());
+		ArrayList<ClientData> clients = packetData.getClientData();
+		int count = (clients == null) ? 0 : clients.size();
+		out.putInt(count);
+		for(int index = 0; index < count; index++) {
+			writeClient(out, clients.get(index));
+		}
+	}
+	
+	/**
+	 * Encodes a packet whose records are read straight from a client table into this codec's reusable 
+	 * buffer, without creating a view or copy of any client. A full table leaves tombstoned clients 
+	 * out. A delta holds the clients purged since its base version, marked purged, followed by the 
+	 * clients that changed since then, tombstoned ones included.
+	 * The returned buffer is only valid until the next call to encode.
+	 * @param packetData the header and versions of the packet, its client list is not used
+	 * @param registry the clients to encode
+	 * @return the buffer holding the encoded packet, positioned at 0 with its limit at the end of the packet
+	 */
+	public ByteBuffer encode(PacketData packetData, ClientRegistry registry) {
+		// The buffer is sized for the largest records so the scan never has to stop and grow it
+		NodeTable table = registry.getTable();
+		int limit = registry.getNextId();
+		ArrayList<ClientData> purged = packetData.getDelta() ? registry.getPurged() : new ArrayList<ClientData>();
+		int size = OFFSET_RECORDS + (limit + purged.size()) * (CLIENT_RECORD_SIZE + NodeTable.ADDRESS_SIZE);
+		if(size > buffer.capacity()) {
+			buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+		}
+		buffer.clear();
+		writeHeader(buffer, packetData.getVersion(), packetData.getMode(), packetData.getCode(), packetData.getFlags());
+		buffer.putLong(packetData.getTableVersion());
+		buffer.putLong(packetData.getBaseVersion());
+		buffer.putInt(0);
+		long changedAfter = packetData.getDelta() ? packetData.getBaseVersion() : Long.MIN_VALUE;
+		int count = 0;
+		
+		// Purges come first so an id purged and handed to a new client is dropped before it is added again
+		for(ClientData client: purged) {
+			if(client.getChangedVersion() > changedAfter) {
+				writeClient(buffer, client);
+				count++;
+			}
+		}
+		for(int id = 0; id < limit; id++) {
+			if(table.writeRecord(id, changedAfter, buffer)) {
+				count++;
+			}
+		}
+		buffer.putInt(OFFSET_COUNT, count);
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Writes the 4-byte packet header
+	 * @param out the buffer to write to
+	 * @param version the version of the protocol
+	 * @param mode the mode the cluster is running in
+	 * @param code the type of packet
+	 * @param flags the flags byte of the packet
+	 */
+	static void writeHeader(ByteBuffer out, byte version, byte mode, byte code, byte flags) {
+		out.put(version);
+		out.put(mode);
+		out.put(code);
+		out.put(flags);
+	}
+	
+	/**
+	 * Writes one packed client record
+	 * @param out the buffer to write to
+	 * @param client the client to write, a null client is written as an empty record with id -1
+	 */
+	static void writeClient(ByteBuffer out, ClientData client) {
+		if(client == null) {
+			out.putInt(-1);
+			out.putInt(0);
+			out.putShort((short) 0);
+			out.putShort((short) 0);
+			out.put((byte) 1);
+			out.put((byte) 0);
+			return;
+		}
+		byte[] address = client.getAddressBytes();
+		out.putInt(packId(client.getId(), client.getGeneration()));
+		out.putInt(client.getAvailability());
+		out.putShort((short) client.getScore());
+		out.putShort((short) client.getPort());
+		out.put(client.getPurged() ? STATUS_PURGED : client.getTombstoned() ? STATUS_TOMBSTONED : client.getStatus() ? STATUS_DEAD : STATUS_ALIVE);
+		out.put((byte) address.length);
+		out.put(address);
+	}
+	
+	/**
+	 * Packs an id and its generation into the id field of a record
+	 * @param id the id, a negative id is written as it is
+	 * @param generation the generation of the id
+	 * @return the value of the id field
+	 */
+	static int packId(int id, int generation) {
+		if(id < 0) {
+			return id;
+		}
+		return ((generation & GENERATION_MASK) << ID_BITS) | (id & ID_MASK);
+	}
+	
+	/**
+	 * Gives the id held in the id field of a record
+	 * @param packed the value of the id field
+	 * @return the id without its generation
+	 */
+	static int unpackId(int packed) {
+		return (packed < 0) ? packed : packed & ID_MASK;
+	}
+	
+	/**
+	 * Gives the generation held in the id field of a record
+	 * @param packed the value of the id field
+	 * @return the generation of the id, 0 for a negative id
+	 */
+	static int unpackGeneration(int packed) {
+		return (packed < 0) ? 0 : packed >>> ID_BITS;
+	}
+	
+	/**
+	 * Gives the number of bytes a client record takes on the wire
+	 * @param client the client to be measured
+	 * @return the encoded size of the client record
+	 */
+	static int clientSize(ClientData client) {
+		if(client == null) {
+			return CLIENT_RECORD_SIZE;
+		}
+		return CLIENT_RECORD_SIZE + client.getAddressBytes().length;
+	}
+	
+	/**
+	 * Gives the number of bytes a packet takes once encoded
+	 * @param packetData the packet to be measured
+	 * @return the encoded size of the packet
+	 */
+	static int encodedSize(PacketData packetData) {
+		int size = OFFSET_RECORDS;
+		ArrayList<ClientData> clients = packetData.getClientData();
+		if(clients != null) {
+			for(int index = 0; index < clients.size(); index++) {
+				size += clientSize(clients.get(index));
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Decodes a packet from a buffer. The buffer's position is advanced past the packet.
+	 * @param in the buffer holding the packet
+	 * @return the decoded packet, or null if the buffer does not hold a well formed packet
+	 */
+	public static PacketData decode(ByteBuffer in) {
+		try {
+			byte version = in.get();
+			byte mode = in.get();
+			byte code = in.get();
+			byte flags = in.get();
+			long tableVersion = in.getLong();
+			long baseVersion = in.getLong();
+			int count = in.getInt();
+			if(count < 0 || count > in.remaining() / CLIENT_RECORD_SIZE) {
+				return null;
+			}
+			ArrayList<ClientData> clients = new ArrayList<>(count);
+			for(int index = 0; index < count; index++) {
+				clients.add(readClient(in));
+			}
+			PacketData packetData = new PacketData(version, mode, code, clients);
+			packetData.setFlags(flags);
+			packetData.setTableVersion(tableVersion);
+			packetData.setBaseVersion(baseVersion);
+			return packetData;
+		} catch (BufferUnderflowException e) {
+			return null;
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads one packed client record
+	 * @param in the buffer to read from
+	 * @return the client held in the record
+	 * @throws UnknownHostException if the address length is not a valid IPv4 or IPv6 length
+	 */
+	static ClientData readClient(ByteBuffer in) throws UnknownHostException {
+		int packed = in.getInt();
+		int availability = in.getInt();
+		int score = in.getShort() & 0xFFFF;
+		int port = in.getShort() & 0xFFFF;
+		byte status = in.get();
+		int addressLength = in.get() & 0xFF;
+		InetAddress address = null;
+		if(addressLength > 0) {
+			byte[] addressBytes = new byte[addressLength];
+			in.get(addressBytes);
+			address = InetAddress.getByAddress(addressBytes);
+		}
+		ClientData client = new ClientData(address, port, availability, unpackId(packed));
+		client.setGeneration(unpackGeneration(packed));
+		client.setStatus(status != STATUS_ALIVE);
+		client.setTombstoned(status == STATUS_TOMBSTONED);
+		client.setPurged(status == STATUS_PURGED);
+		client.setScore(score);
+		return client;
+	}
+	
+	/**
+	 * Reads the version byte of a packet without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the version of the packet
+	 */
+	public static byte peekVersion(ByteBuffer in) {
+		return in.get(in.position() + OFFSET_VERSION);
+	}
+	
+	/**
+	 * Reads the mode byte of a packet without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the mode of the packet
+	 */
+	public static byte peekMode(ByteBuffer in) {
+		return in.get(in.position() + OFFSET_MODE);
+	}
+	
+	/**
+	 * Reads the code byte of a packet without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the code of the packet
+	 */
+	public static byte peekCode(ByteBuffer in) {
+		return in.get(in.position() + OFFSET_CODE);
+	}
+	
+	/**
+	 * Reads the flags byte of a packet without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the flags of the packet
+	 */
+	public static byte peekFlags(ByteBuffer in) {
+		return in.get(in.position() + OFFSET_FLAGS);
+	}
+	
+	/**
+	 * Reads the id of the first client record without moving the buffer's position or decoding the packet
+	 * @param in the buffer holding the packet
+	 * @return the id of the first client, or -1 if the packet holds no clients
+	 */
+	public static int peekFirstClientId(ByteBuffer in) {
+		int start = in.position();
+		if(in.limit() - start < OFFSET_RECORDS + CLIENT_RECORD_SIZE || in.getInt(start + OFFSET_COUNT) == 0) {
+			return -1;
+		}
+		return unpackId(in.getInt(start + OFFSET_RECORDS));
+	}
+	
+	/**
+	 * Reads the generation of the first client record's id without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the generation of the first client's id, or 0 if the packet holds no clients
+	 */
+	public static int peekFirstClientGeneration(ByteBuffer in) {
+		int start = in.position();
+		if(in.limit() - start < OFFSET_RECORDS + CLIENT_RECORD_SIZE || in.getInt(start + OFFSET_COUNT) == 0) {
+			return 0;
+		}
+		return unpackGeneration(in.getInt(start + OFFSET_RECORDS));
+	}
+	
+	/**
+	 * Reads the table version of a packet without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the table version of the packet
+	 */
+	public static long peekTableVersion(ByteBuffer in) {
+		return in.getLong(in.position() + OFFSET_TABLE_VERSION);
+	}
+}
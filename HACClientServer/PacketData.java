@@ -1,17 +1,21 @@
-import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.BitSet;
 
 /**
  * The class representing the packet being sent between cluster nodes
  * @author Sam Dodson
  *
  */
-public class PacketData implements Serializable {
+public class PacketData {
+	static final byte FLAG_CAN_BE_SPLIT = 1 << 6;
+	static final byte FLAG_LAST_PACKET = (byte) (1 << 7);
+	static final byte FLAG_DELTA = 1 << 5;
+	static final byte FLAG_RESUME = 1 << 4;
 	private byte version;
 	private byte mode;
 	private byte code;
-	private BitSet flags = new BitSet(8);
+	private byte flags = 0;
+	private long tableVersion = 0;
+	private long baseVersion = 0;
 	private ArrayList<ClientData> clientData;
 	
 	/**
@@ -62,19 +66,124 @@ public class PacketData implements Serializable {
 	
 	/**
 	 * Getter for the flags field
-	 * @return the flags of the packet
+	 * @return the flags byte of the packet
 	 */
-	public BitSet getFlags() {
+	public byte getFlags() {
 		return this.flags;
 	}
 	
+	/**
+	 * Getter for the canBeSplit flag
+	 * @return true if the packet's data may be split across multiple packets
+	 */
+	public boolean getCanBeSplit() {
+		return (flags & FLAG_CAN_BE_SPLIT) != 0;
+	}
+	
+	/**
+	 * Getter for the lastPacket flag
+	 * @return true if the packet is the last one to be sent
+	 */
+	public boolean getLastPacket() {
+		return (flags & FLAG_LAST_PACKET) != 0;
+	}
+	
 	/**
 	 * Setter for the flags field
 	 * @param canBeSplit flag specifying if a packet's data will require it to be split into multiple packets
 	 * @param lastPacket flag specifying if a packet is the last one to be sent
 	 */
 	public void setFlags(boolean canBeSplit, boolean lastPacket) {
-		flags.set(6, canBeSplit);
-		flags.set(7, lastPacket);
+		flags &= ~(FLAG_CAN_BE_SPLIT | FLAG_LAST_PACKET);
+		if(canBeSplit) {
+			flags |= FLAG_CAN_BE_SPLIT;
+		}
+		if(lastPacket) {
+			flags |= FLAG_LAST_PACKET;
+		}
+	}
+	
+	/**
+	 * Setter for the raw flags byte, used when a packet is decoded
+	 * @param flags the flags byte read from the wire
+	 */
+	public void setFlags(byte flags) {
+		this.flags = flags;
+	}
+	
+	/**
+	 * Getter for the delta flag
+	 * @return true if the packet only holds the clients that changed since its base version
+	 */
+	public boolean getDelta() {
+		return (flags & FLAG_DELTA) != 0;
+	}
+	
+	/**
+	 * Setter for the delta flag
+	 * @param delta true if the packet only holds the clients that changed since its base version
+	 */
+	public void setDelta(boolean delta) {
+		if(delta) {
+			flags |= FLAG_DELTA;
+		}
+		else {
+			flags &= ~FLAG_DELTA;
+		}
+	}
+	
+	/**
+	 * Getter for the resume flag
+	 * @return true if the winner of an election already holds the client table, so clients keep 
+	 * their ids and resume sending availability without a handshake
+	 */
+	public boolean getResume() {
+		return (flags & FLAG_RESUME) != 0;
+	}
+	
+	/**
+	 * Setter for the resume flag
+	 * @param resume true if the winner of an election already holds the client table
+	 */
+	public void setResume(boolean resume) {
+		if(resume) {
+			flags |= FLAG_RESUME;
+		}
+		else {
+			flags &= ~FLAG_RESUME;
+		}
+	}
+	
+	/**
+	 * Getter for the table version. In an AS packet this is the version of the server's table and 
+	 * in an AC packet it is the last version the client applied.
+	 * @return the table version of the packet
+	 */
+	public long getTableVersion() {
+		return this.tableVersion;
+	}
+	
+	/**
+	 * Setter for the table version
+	 * @param tableVersion the table version of the packet
+	 */
+	public void setTableVersion(long tableVersion) {
+		this.tableVersion = tableVersion;
+	}
+	
+	/**
+	 * Getter for the base version, the table version a delta AS packet was computed against
+	 * @return the base version of the packet
+	 */
+	public long getBaseVersion() {
+		return this.baseVersion;
+	}
+	
+	/**
+	 * Setter for the base version
+	 * @param baseVersion the table version a delta AS packet was computed against
+	 */
+	public void setBaseVersion(long baseVersion) {
+		this.baseVersion = baseVersion;
 	}
-}
\ No newline at end of file
+}
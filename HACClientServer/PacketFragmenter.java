@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an encoded packet into datagrams small enough to cross the network without IP fragmentation.
+ * Every fragment repeats the packet header with the canBeSplit flag set, the last fragment also has
+ * the lastPacket flag set, and the header is followed by
+ * | Message Id (4) | Fragment Index (2) | Fragment Count (2) | and a slice of the packet's data field.
+ * @author Sam Dodson
+ *
+ */
+public class PacketFragmenter {
+	static final int MAX_DATAGRAM_SIZE = 1200;
+	static final int FRAGMENT_HEADER_SIZE = 8;
+	static final int MAX_FRAGMENT_DATA = MAX_DATAGRAM_SIZE - PacketCodec.HEADER_SIZE - FRAGMENT_HEADER_SIZE;
+	static final int MAX_FRAGMENTS = 0xFFFF;
+	static final int OFFSET_MESSAGE_ID = PacketCodec.HEADER_SIZE;
+	static final int OFFSET_FRAGMENT_INDEX = PacketCodec.HEADER_SIZE + 4;
+	static final int OFFSET_FRAGMENT_COUNT = PacketCodec.HEADER_SIZE + 6;
+	static final int OFFSET_FRAGMENT_DATA = PacketCodec.HEADER_SIZE + FRAGMENT_HEADER_SIZE;
+
+	/**
+	 * Splits an encoded packet into fragments
+	 * @param packet the encoded packet, read from its position to its limit without being modified
+	 * @param messageId the id shared by every fragment of the packet
+	 * @return the fragments in order, each one a complete datagram
+	 */
+	public static byte[][] split(ByteBuffer packet, int messageId) {
+		int start = packet.position();
+		int dataLength = packet.remaining() - PacketCodec.HEADER_SIZE;
+		int count = Math.max(1, (dataLength + MAX_FRAGMENT_DATA - 1) / MAX_FRAGMENT_DATA);
+		if(count > MAX_FRAGMENTS) {
+			throw new IllegalArgumentException("Packet of " + dataLength + " bytes needs more than " + MAX_FRAGMENTS + " fragments");
+		}
+		byte flags = (byte) (packet.get(start + PacketCodec.OFFSET_FLAGS) & ~PacketData.FLAG_LAST_PACKET | PacketData.FLAG_CAN_BE_SPLIT);
+		byte[][] fragments = new byte[count][];
+		for(int index = 0; index < count; index++) {
+			int offset = index * MAX_FRAGMENT_DATA;
+			int length = Math.min(MAX_FRAGMENT_DATA, dataLength - offset);
+			ByteBuffer fragment = ByteBuffer.allocate(OFFSET_FRAGMENT_DATA + length);
+			byte fragmentFlags = (index == count - 1) ? (byte) (flags | PacketData.FLAG_LAST_PACKET) : flags;
+			PacketCodec.writeHeader(fragment, packet.get(start + PacketCodec.OFFSET_VERSION), packet.get(start + PacketCodec.OFFSET_MODE),
+					packet.get(start + PacketCodec.OFFSET_CODE), fragmentFlags);
+			fragment.putInt(messageId);
+			fragment.putShort((short) index);
+			fragment.putShort((short) count);
+			fragment.put(packet.array(), packet.arrayOffset() + start + PacketCodec.HEADER_SIZE + offset, length);
+			fragments[index] = fragment.array();
+		}
+		return fragments;
+	}
+
+	/**
+	 * Determines if a datagram is a fragment of a split packet
+	 * @param datagram the received datagram
+	 * @return true if the datagram carries a fragment header
+	 */
+	public static boolean isFragment(ByteBuffer datagram) {
+		return (PacketCodec.peekFlags(datagram) & PacketData.FLAG_CAN_BE_SPLIT) != 0;
+	}
+}
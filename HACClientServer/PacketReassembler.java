@@ -0,0 +1,186 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Rebuilds packets that were split by the PacketFragmenter. Fragments may arrive in any order,
+ * incomplete packets are dropped once they time out, and the memory held by incomplete packets is
+ * bounded by evicting the oldest ones first.
+ * @author Sam Dodson
+ *
+ */
+public class PacketReassembler {
+	static final long DEFAULT_TIMEOUT = 5 * 1000;
+	static final int DEFAULT_MAX_PENDING_BYTES = 8 * 1024 * 1024;
+	private final long timeout;
+	private final int maxPendingBytes;
+	private final LinkedHashMap<MessageKey, PendingPacket> pending = new LinkedHashMap<>();
+	private int pendingBytes = 0;
+
+	/**
+	 * Constructor for the PacketReassembler class with the default timeout and memory bound
+	 */
+	public PacketReassembler() {
+		this(DEFAULT_TIMEOUT, DEFAULT_MAX_PENDING_BYTES);
+	}
+
+	/**
+	 * Constructor for the PacketReassembler class
+	 * @param timeout the time in milliseconds an incomplete packet is kept after its first fragment arrives
+	 * @param maxPendingBytes the most memory incomplete packets may hold at once
+	 */
+	public PacketReassembler(long timeout, int maxPendingBytes) {
+		this.timeout = timeout;
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * Accepts a received datagram. Datagrams that are not fragments are returned as they are.
+	 * @param datagram the received datagram, read from its position to its limit
+	 * @param address the IP address the datagram came from
+	 * @param port the port number the datagram came from
+	 * @param now the current time in milliseconds
+	 * @return the complete packet, or null if more fragments are needed or the fragment was dropped
+	 */
+	public synchronized ByteBuffer accept(ByteBuffer datagram, InetAddress address, int port, long now) {
+		if(datagram.remaining() < PacketCodec.HEADER_SIZE || !PacketFragmenter.isFragment(datagram)) {
+			return datagram;
+		}
+		if(datagram.remaining() < PacketFragmenter.OFFSET_FRAGMENT_DATA) {
+			return null;
+		}
+		expire(now);
+
+		int start = datagram.position();
+		int messageId = datagram.getInt(start + PacketFragmenter.OFFSET_MESSAGE_ID);
+		int index = datagram.getShort(start + PacketFragmenter.OFFSET_FRAGMENT_INDEX) & 0xFFFF;
+		int count = datagram.getShort(start + PacketFragmenter.OFFSET_FRAGMENT_COUNT) & 0xFFFF;
+		int length = datagram.remaining() - PacketFragmenter.OFFSET_FRAGMENT_DATA;
+		if(count == 0 || index >= count || length > PacketFragmenter.MAX_FRAGMENT_DATA) {
+			return null;
+		}
+
+		MessageKey key = new MessageKey(address, port, messageId);
+		PendingPacket packet = pending.get(key);
+		if(packet == null) {
+			int size = PacketCodec.HEADER_SIZE + count * PacketFragmenter.MAX_FRAGMENT_DATA;
+			if(size > maxPendingBytes) {
+				return null;
+			}
+			// The oldest incomplete packets are evicted until the new one fits in the memory bound
+			Iterator<PendingPacket> oldest = pending.values().iterator();
+			while(pendingBytes + size > maxPendingBytes && oldest.hasNext()) {
+				pendingBytes -= oldest.next().bytes.length;
+				oldest.remove();
+			}
+			packet = new PendingPacket(size, count, now);
+			pending.put(key, packet);
+			pendingBytes += size;
+		}
+		else if(packet.received.length != count) {
+			return null;
+		}
+		if(packet.received[index]) {
+			return null;
+		}
+
+		// Fragment data is copied to its slot so fragments can arrive in any order
+		int offset = PacketCodec.HEADER_SIZE + index * PacketFragmenter.MAX_FRAGMENT_DATA;
+		datagram.get(start + PacketFragmenter.OFFSET_FRAGMENT_DATA, packet.bytes, offset, length);
+		packet.received[index] = true;
+		packet.receivedCount++;
+		if(index == count - 1) {
+			packet.dataLength = index * PacketFragmenter.MAX_FRAGMENT_DATA + length;
+			byte flags = (byte) (PacketCodec.peekFlags(datagram) & ~PacketData.FLAG_CAN_BE_SPLIT);
+			packet.bytes[PacketCodec.OFFSET_VERSION] = PacketCodec.peekVersion(datagram);
+			packet.bytes[PacketCodec.OFFSET_MODE] = PacketCodec.peekMode(datagram);
+			packet.bytes[PacketCodec.OFFSET_CODE] = PacketCodec.peekCode(datagram);
+			packet.bytes[PacketCodec.OFFSET_FLAGS] = flags;
+		}
+		if(packet.receivedCount < count) {
+			return null;
+		}
+		pending.remove(key);
+		pendingBytes -= packet.bytes.length;
+		return ByteBuffer.wrap(packet.bytes, 0, PacketCodec.HEADER_SIZE + packet.dataLength);
+	}
+
+	/**
+	 * Drops incomplete packets whose first fragment arrived more than the timeout ago
+	 * @param now the current time in milliseconds
+	 */
+	public synchronized void expire(long now) {
+		Iterator<PendingPacket> oldest = pending.values().iterator();
+		while(oldest.hasNext()) {
+			PendingPacket packet = oldest.next();
+			if(now - packet.createdAt < timeout) {
+				break;
+			}
+			pendingBytes -= packet.bytes.length;
+			oldest.remove();
+		}
+	}
+
+	/**
+	 * Getter for the number of incomplete packets
+	 * @return the number of packets still waiting for fragments
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Getter for the memory held by incomplete packets
+	 * @return the bytes allocated to packets still waiting for fragments
+	 */
+	public synchronized int getPendingBytes() {
+		return this.pendingBytes;
+	}
+
+	/**
+	 * A packet whose fragments have not all arrived
+	 */
+	private static class PendingPacket {
+		final byte[] bytes;
+		final boolean[] received;
+		final long createdAt;
+		int receivedCount = 0;
+		int dataLength = 0;
+
+		PendingPacket(int size, int count, long createdAt) {
+			this.bytes = new byte[size];
+			this.received = new boolean[count];
+			this.createdAt = createdAt;
+		}
+	}
+
+	/**
+	 * Identifies the fragments of one packet by sender and message id
+	 */
+	private static class MessageKey {
+		final InetAddress address;
+		final int port;
+		final int messageId;
+
+		MessageKey(InetAddress address, int port, int messageId) {
+			this.address = address;
+			this.port = port;
+			this.messageId = messageId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof MessageKey)) {
+				return false;
+			}
+			MessageKey key = (MessageKey) o;
+			return key.messageId == messageId && key.port == port && key.address.equals(address);
+		}
+
+		@Override
+		public int hashCode() {
+			return (address.hashCode() * 31 + port) * 31 + messageId;
+		}
+	}
+}
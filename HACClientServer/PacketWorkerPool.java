@@ -0,0 +1,213 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of worker threads that process received packets so the receiving thread never waits on 
+ * parsing or registry updates. Packets wait in a bounded queue and a drop policy decides what 
+ * happens when it is full. Queue entries are allocated up front and each packet's buffer is handed 
+ * back to its pool once processed, so passing a packet to a worker does not allocate.
+ * @author Sam Dodson
+ *
+ */
+public class PacketWorkerPool {
+	static final int DEFAULT_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	static final int DEFAULT_QUEUE_SIZE = 1024;
+	
+	/**
+	 * What to do with a packet that arrives while the queue is full
+	 */
+	public enum DropPolicy {
+		/** The arriving packet is dropped */
+		DROP_NEWEST,
+		/** The oldest queued packet is dropped to make room */
+		DROP_OLDEST,
+		/** The receiving thread waits for room in the queue */
+		BLOCK
+	}
+	
+	/**
+	 * Processes one packet on a worker thread
+	 */
+	public interface Handler {
+		/**
+		 * Processes a packet, the buffer must not be kept after this method returns
+		 * @param buffer the buffer holding the packet
+		 * @param sender the address and port the packet came from
+		 */
+		void handle(ByteBuffer buffer, InetSocketAddress sender);
+	}
+	
+	private final ArrayBlockingQueue<Task> work;
+	private final ArrayBlockingQueue<Task> free;
+	private final DropPolicy dropPolicy;
+	private final BufferPool bufferPool;
+	private final Handler handler;
+	private final Thread[] workers;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean running = true;
+	
+	/**
+	 * Constructor for the PacketWorkerPool class, starts the worker threads
+	 * @param name the prefix for the names of the worker threads
+	 * @param workerCount the number of worker threads
+	 * @param queueSize the number of packets that can wait for a worker
+	 * @param dropPolicy what to do with packets that arrive while the queue is full
+	 * @param bufferPool the pool that processed and dropped buffers are returned to
+	 * @param handler the handler that processes each packet
+	 */
+	public PacketWorkerPool(String name, int workerCount, int queueSize, DropPolicy dropPolicy, BufferPool bufferPool, Handler handler) {
+		this.work = new ArrayBlockingQueue<>(queueSize);
+		this.free = new ArrayBlockingQueue<>(queueSize + workerCount + 1);
+		for(int index = 0; index < queueSize + workerCount + 1; index++) {
+			free.offer(new Task());
+		}
+		this.dropPolicy = dropPolicy;
+		this.bufferPool = bufferPool;
+		this.handler = handler;
+		this.workers = new Thread[workerCount];
+		for(int index = 0; index < workerCount; index++) {
+			workers[index] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, name + "-worker-" + index);
+			workers[index].setDaemon(true);
+			workers[index].start();
+		}
+	}
+	
+	/**
+	 * Creates a worker pool configured by the hac.workers, hac.queueSize and hac.dropPolicy system 
+	 * properties, along with a buffer pool large enough that queued and in-progress packets never exhaust it
+	 * @param name the prefix for the names of the worker threads
+	 * @param handler the handler that processes each packet
+	 * @return the started worker pool
+	 */
+	public static PacketWorkerPool fromSystemProperties(String name, Handler handler) {
+		int workerCount = Integer.getInteger("hac.workers", DEFAULT_WORKERS);
+		int queueSize = Integer.getInteger("hac.queueSize", DEFAULT_QUEUE_SIZE);
+		DropPolicy dropPolicy = DropPolicy.valueOf(System.getProperty("hac.dropPolicy", DropPolicy.DROP_OLDEST.name()));
+		BufferPool bufferPool = new BufferPool(queueSize + workerCount + 2, BufferPool.DEFAULT_BUFFER_SIZE);
+		return new PacketWorkerPool(name, workerCount, queueSize, dropPolicy, bufferPool, handler);
+	}
+	
+	/**
+	 * Hands a packet to the workers. The pool takes ownership of the buffer and returns it to the 
+	 * buffer pool once the packet has been processed or dropped.
+	 * @param buffer the buffer holding the packet
+	 * @param sender the address and port the packet came from
+	 * @return true if the packet was queued, false if it was dropped
+	 */
+	public boolean submit(ByteBuffer buffer, InetSocketAddress sender) {
+		Task task = free.poll();
+		if(task == null) {
+			dropped.incrementAndGet();
+			bufferPool.release(buffer);
+			return false;
+		}
+		task.buffer = buffer;
+		task.sender = sender;
+		if(work.offer(task)) {
+			return true;
+		}
+		if(dropPolicy == DropPolicy.DROP_OLDEST) {
+			// The oldest packet is discarded until the new one fits
+			while(!work.offer(task)) {
+				Task oldest = work.poll();
+				if(oldest != null) {
+					dropped.incrementAndGet();
+					recycle(oldest);
+				}
+			}
+			return true;
+		}
+		else if(dropPolicy == DropPolicy.BLOCK) {
+			try {
+				work.put(task);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		dropped.incrementAndGet();
+		recycle(task);
+		return false;
+	}
+	
+	/**
+	 * Loop run by each worker thread
+	 */
+	private void work() {
+		while(running) {
+			Task task;
+			try {
+				task = work.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				handler.handle(task.buffer, task.sender);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				recycle(task);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a task's buffer to the buffer pool and the task to the free list
+	 * @param task the task that is finished
+	 */
+	private void recycle(Task task) {
+		bufferPool.release(task.buffer);
+		task.buffer = null;
+		task.sender = null;
+		free.offer(task);
+	}
+	
+	/**
+	 * Stops the worker threads, packets still queued are discarded
+	 */
+	public void shutdown() {
+		running = false;
+		for(Thread worker: workers) {
+			worker.interrupt();
+		}
+	}
+	
+	/**
+	 * Getter for the buffer pool packets are returned to
+	 * @return the buffer pool shared with the receiving thread
+	 */
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+	
+	/**
+	 * Getter for the number of packets waiting for a worker
+	 * @return the current queue length
+	 */
+	public int getQueued() {
+		return work.size();
+	}
+	
+	/**
+	 * Getter for the number of packets dropped because the queue was full
+	 * @return the number of dropped packets
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * A reusable queue entry holding one received packet
+	 */
+	private static class Task {
+		ByteBuffer buffer;
+		InetSocketAddress sender;
+	}
+}
@@ -6,10 +6,22 @@
 public class ProtocolDriver {
 	/**
 	 * Main method for class
-	 * @param args the IP address and port number of server for client node
-	 * or port number for server node
+	 * @param args the IP address and port number of server for client node, 
+	 * port number for server node, or aggregate followed by the port number to listen on and the 
+	 * IP address and port number of the root server for an aggregator
 	 */
 	public static void main(String[] args) {
+		// Runs when an aggregator is created between a group of clients and the root server
+		if(args.length == 4 && args[0].equals("aggregate")) {
+			try {
+				Aggregator aggregator = new Aggregator(Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]));
+				aggregator.listen();
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
 		// Runs when a client node is created
 		if(args.length == 2) {
 			try {
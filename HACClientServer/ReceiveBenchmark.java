@@ -0,0 +1,89 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+
+/**
+ * Measures the heap allocated by the server's receive path. A sender thread streams AC packets 
+ * over loopback while the main thread receives and processes them, and the bytes allocated by the 
+ * receiving thread are read from the JVM's per-thread allocation counter.
+ * @author Sam Dodson
+ *
+ */
+public class ReceiveBenchmark {
+	static final int CLIENTS = 1000;
+	static final int WARMUP_PACKETS = 200000;
+	static final int MEASURED_PACKETS = 1000000;
+	
+	/**
+	 * Main method for class
+	 * @param args unused
+	 */
+	public static void main(String[] args) throws Exception {
+		Server server = new Server(0);
+		server.createSocket();
+		InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		DatagramChannel sender = DatagramChannel.open();
+		sender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		InetSocketAddress senderAddress = (InetSocketAddress) sender.getLocalAddress();
+		
+		// Clients are registered directly so every AC packet matches a known id
+		for(int id = 0; id < CLIENTS; id++) {
+			ArrayList<ClientData> dataField = new ArrayList<>();
+			dataField.add(new ClientData(null, 0, 0, -1));
+			PacketData packetData = new PacketData((byte) 1, (byte) 0, (byte) 0, dataField);
+			server.processPacket(new PacketCodec().encode(packetData), senderAddress);
+		}
+		
+		// Each client's AC packet is encoded once and replayed by the sender thread
+		ByteBuffer[] packets = new ByteBuffer[CLIENTS];
+		for(int id = 0; id < CLIENTS; id++) {
+			ArrayList<ClientData> dataField = new ArrayList<>();
+			dataField.add(new ClientData(InetAddress.getLoopbackAddress(), senderAddress.getPort(), 0, id));
+			PacketData packetData = new PacketData((byte) 1, (byte) 0, (byte) 2, dataField);
+			packetData.setTableVersion(1);
+			ByteBuffer encoded = new PacketCodec().encode(packetData);
+			packets[id] = ByteBuffer.allocateDirect(encoded.remaining()).put(encoded).flip();
+		}
+		Thread senderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int id = 0;
+				while(!Thread.currentThread().isInterrupted()) {
+					ByteBuffer packet = packets[id];
+					packet.rewind();
+					try {
+						sender.send(packet, serverAddress);
+					} catch (Exception e) {
+						return;
+					}
+					id = (id + 1) % CLIENTS;
+				}
+			}
+		});
+		senderThread.setDaemon(true);
+		senderThread.start();
+		
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		for(int count = 0; count < WARMUP_PACKETS; count++) {
+			server.receive();
+		}
+		long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for(int count = 0; count < MEASURED_PACKETS; count++) {
+			server.receive();
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+		senderThread.interrupt();
+		
+		System.out.println("Packets received: " + MEASURED_PACKETS);
+		System.out.println("Packets per second: " + (long) (MEASURED_PACKETS / (elapsed / 1e9)));
+		System.out.println("Bytes allocated: " + allocated);
+		System.out.println("Bytes allocated per packet: " + String.format("%.4f", allocated / (double) MEASURED_PACKETS));
+		System.exit(0);
+	}
+}
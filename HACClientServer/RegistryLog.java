@@ -0,0 +1,495 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the server's client table as a write-ahead log of changes and periodic snapshots so a
+ * restarted server keeps every id and availability score. Changes are copied into an in-memory
+ * buffer under a short lock and written by the log's own thread in batches, one group commit per
+ * flush interval, so callers never wait on the disk. Each batch is framed as
+ * | Length (4) | CRC-32 (4) | records | and a torn or corrupt batch ends the replay. Records are
+ * | Type (1) | Table Version (8) | followed, for a put, by a client record in the PacketCodec layout.
+ * A put whose record is marked purged removes the client, so its id is free again after a replay.
+ * A tick record stands for one availability point for every live client, so the log does not grow
+ * with the cluster on every tick. Snapshots are | Magic (4) | Table Version (8) | Count (4) | and
+ * the client records, followed by | Retired Count (4) | and the packed id and generation of each id
+ * no longer in use, so a restart does not hand a retired id out at a generation a stale client
+ * still holds. They are written to a temporary file and renamed over the last one before the log
+ * is truncated.
+ * @author Sam Dodson
+ *
+ */
+public class RegistryLog {
+	static final String LOG_FILE = "registry.wal";
+	static final String SNAPSHOT_FILE = "registry.snap";
+	// Changed whenever the client record layout changes so older snapshots are not misread
+	static final int SNAPSHOT_MAGIC = 0x48414355;
+	static final byte TYPE_TICK = 1;
+	static final byte TYPE_PUT = 2;
+	static final int FRAME_HEADER_SIZE = 8;
+	static final long DEFAULT_FLUSH_INTERVAL = 100;
+	static final int DEFAULT_SNAPSHOT_TICKS = 1000;
+	static final long DEFAULT_MAX_LOG_BYTES = 64L * 1024 * 1024;
+	static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * How far a batch is written before the log moves on
+	 */
+	public enum Durability {
+		/** Nothing is persisted */
+		NONE,
+		/** Batches are written to the file and the operating system decides when they reach the disk */
+		ASYNC,
+		/** Each batch is forced to the disk before the next is written */
+		SYNC
+	}
+	
+	private final Path directory;
+	private final Durability durability;
+	private final long flushInterval;
+	private final int snapshotTicks;
+	private final long maxLogBytes;
+	private final Object lock = new Object();
+	private final Object wake = new Object();
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer active = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer flushing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer pendingSnapshot = null;
+	private int snapshotMark = -1;
+	private boolean snapshotting = false;
+	private FileChannel channel = null;
+	private Thread flusher = null;
+	private volatile boolean running = false;
+	private volatile long logBytes = 0;
+	private int ticksSinceSnapshot = 0;
+	
+	/**
+	 * Constructor for the RegistryLog class
+	 * @param directory the directory holding the log and snapshot files
+	 * @param durability how far each batch is written
+	 * @param flushInterval the time in milliseconds between group commits
+	 * @param snapshotTicks the number of ticks after which the table is snapshotted and the log truncated
+	 * @param maxLogBytes the log size after which the table is snapshotted on the next tick
+	 */
+	public RegistryLog(Path directory, Durability durability, long flushInterval, int snapshotTicks, long maxLogBytes) {
+		this.directory = directory;
+		this.durability = durability;
+		this.flushInterval = flushInterval;
+		this.snapshotTicks = snapshotTicks;
+		this.maxLogBytes = maxLogBytes;
+	}
+	
+	/**
+	 * Creates a log configured through the hac.durability, hac.walDir, hac.walFlush,
+	 * hac.walSnapshotTicks and hac.walMaxBytes system properties
+	 * @return the log, or null if the durability is NONE
+	 */
+	public static RegistryLog fromSystemProperties() {
+		Durability durability = Durability.valueOf(System.getProperty("hac.durability", Durability.ASYNC.name()));
+		if(durability == Durability.NONE) {
+			return null;
+		}
+		Path directory = new File(System.getProperty("hac.walDir", ".")).toPath();
+		long flushInterval = Long.getLong("hac.walFlush", DEFAULT_FLUSH_INTERVAL);
+		int snapshotTicks = Integer.getInteger("hac.walSnapshotTicks", DEFAULT_SNAPSHOT_TICKS);
+		long maxLogBytes = Long.getLong("hac.walMaxBytes", DEFAULT_MAX_LOG_BYTES);
+		return new RegistryLog(directory, durability, flushInterval, snapshotTicks, maxLogBytes);
+	}
+	
+	/**
+	 * Loads the last snapshot and replays the log after it into a registry, then opens the log for
+	 * appending. Availability is credited per client from the tick it went live rather than by
+	 * walking the table on every tick record, so the replay is linear in the size of the files.
+	 * @param registry the empty registry to fill
+	 * @return the table version the log ends at, or 0 if there was nothing to recover
+	 * @throws IOException if the files cannot be read or the log cannot be opened
+	 */
+	public long recover(ClientRegistry registry) throws IOException {
+		Files.createDirectories(directory);
+		long[][] liveSince = new long[][] {new long[ClientRegistry.INITIAL_CAPACITY]};
+		long tableVersion = readSnapshot(registry, liveSince);
+		long snapshotVersion = tableVersion;
+		
+		Path logPath = directory.resolve(LOG_FILE);
+		long validBytes = 0;
+		if(Files.exists(logPath)) {
+			try(FileChannel in = FileChannel.open(logPath, StandardOpenOption.READ)) {
+				MappedByteBuffer log = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+				CRC32 check = new CRC32();
+				while(log.remaining() >= FRAME_HEADER_SIZE) {
+					int start = log.position();
+					int length = log.getInt();
+					int expected = log.getInt();
+					if(length < 0 || length > log.remaining()) {
+						break;
+					}
+					ByteBuffer frame = log.slice();
+					frame.limit(length);
+					check.reset();
+					check.update(frame.duplicate());
+					if((int) check.getValue() != expected) {
+						break;
+					}
+					tableVersion = replay(frame, registry, liveSince, tableVersion, snapshotVersion);
+					log.position(start + FRAME_HEADER_SIZE + length);
+					validBytes = log.position();
+				}
+			}
+		}
+		
+		// Live clients are credited for the ticks since they last changed
+		for(ClientData client: registry.getClients()) {
+			if(client.getStatus() == false) {
+				client.setAvailability(client.getAvailability() + (int) (tableVersion - liveSince[0][client.getId()]));
+			}
+		}
+		
+		// A torn batch at the end of the log is cut off so later batches follow the last good one
+		channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.truncate(validBytes);
+		channel.position(validBytes);
+		logBytes = validBytes;
+		startFlusher();
+		return tableVersion;
+	}
+	
+	/**
+	 * Reads the snapshot file into a registry
+	 * @param registry the registry to fill
+	 * @param liveSince holds the array of the tick each client last changed at, indexed by id
+	 * @return the table version of the snapshot, or 0 if there is none
+	 * @throws IOException if the file cannot be read
+	 */
+	private long readSnapshot(ClientRegistry registry, long[][] liveSince) throws IOException {
+		Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+		if(!Files.exists(snapshotPath)) {
+			return 0;
+		}
+		try(FileChannel in = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+			MappedByteBuffer snapshot = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+			if(snapshot.remaining() < 16 || snapshot.getInt() != SNAPSHOT_MAGIC) {
+				return 0;
+			}
+			long tableVersion = snapshot.getLong();
+			int count = snapshot.getInt();
+			for(int index = 0; index < count; index++) {
+				ClientData client = PacketCodec.readClient(snapshot);
+				registry.put(client);
+				setLiveSince(liveSince, client.getId(), tableVersion);
+			}
+			int retired = snapshot.getInt();
+			for(int index = 0; index < retired; index++) {
+				int packed = snapshot.getInt();
+				registry.retire(PacketCodec.unpackId(packed), PacketCodec.unpackGeneration(packed));
+			}
+			return tableVersion;
+		} catch (BufferUnderflowException e) {
+			// The snapshot is replaced by renaming so a short one was not written by this log
+			return 0;
+		}
+	}
+	
+	/**
+	 * Replays the records of one batch
+	 * @param frame the records of the batch
+	 * @param registry the registry being filled
+	 * @param liveSince holds the array of the tick each client last changed at, indexed by id
+	 * @param tableVersion the table version reached so far
+	 * @param snapshotVersion the table version of the snapshot, older records are already part of it
+	 * @return the table version reached after the batch
+	 * @throws IOException if a record is malformed
+	 */
+	private long replay(ByteBuffer frame, ClientRegistry registry, long[][] liveSince, long tableVersion, long snapshotVersion) throws IOException {
+		try {
+			while(frame.hasRemaining()) {
+				byte type = frame.get();
+				long version = frame.getLong();
+				if(type == TYPE_TICK) {
+					if(version > tableVersion) {
+						tableVersion = version;
+					}
+				}
+				else if(type == TYPE_PUT) {
+					ClientData client = PacketCodec.readClient(frame);
+					if(version < snapshotVersion) {
+						continue;
+					}
+					// The record holds the client's availability as of the latest tick
+					if(client.getPurged()) {
+						registry.remove(client.getId());
+						registry.retire(client.getId(), client.getGeneration());
+						continue;
+					}
+					registry.put(client);
+					setLiveSince(liveSince, client.getId(), tableVersion);
+				}
+				else {
+					throw new IOException("Unknown record type " + type);
+				}
+			}
+		} catch (BufferUnderflowException | UnknownHostException e) {
+			throw new IOException("Malformed record", e);
+		}
+		return tableVersion;
+	}
+	
+	/**
+	 * Records the tick a client last changed at, growing the array to fit its id
+	 * @param liveSince holds the array of the tick each client last changed at, indexed by id
+	 * @param id the id of the client
+	 * @param tableVersion the tick the client changed at
+	 */
+	private static void setLiveSince(long[][] liveSince, int id, long tableVersion) {
+		if(id >= liveSince[0].length) {
+			liveSince[0] = Arrays.copyOf(liveSince[0], Math.max(id + 1, liveSince[0].length * 2));
+		}
+		liveSince[0][id] = tableVersion;
+	}
+	
+	/**
+	 * Appends a change to a client's record, such as a registration, an address change or a status change
+	 * @param client the client that changed
+	 * @param tableVersion the server's current table version
+	 */
+	public void put(ClientData client, long tableVersion) {
+		synchronized(lock) {
+			ensureCapacity(9 + PacketCodec.clientSize(client));
+			active.put(TYPE_PUT);
+			active.putLong(tableVersion);
+			PacketCodec.writeClient(active, client);
+		}
+	}
+	
+	/**
+	 * Appends a tick, which credits every live client with one availability point on replay
+	 * @param tableVersion the table version the tick advanced to
+	 */
+	public void tick(long tableVersion) {
+		synchronized(lock) {
+			ensureCapacity(9);
+			active.put(TYPE_TICK);
+			active.putLong(tableVersion);
+			ticksSinceSnapshot++;
+		}
+	}
+	
+	/**
+	 * Determines if the table should be snapshotted on this tick
+	 * @return true once enough ticks have been logged or the log has grown too large
+	 */
+	public boolean needsSnapshot() {
+		synchronized(lock) {
+			return pendingSnapshot == null && (ticksSinceSnapshot >= snapshotTicks || logBytes >= maxLogBytes);
+		}
+	}
+	
+	/**
+	 * Snapshots the table. The clients are encoded on the calling thread and written by the log's
+	 * thread, which then truncates the log. Changes appended while the clients are encoded are kept
+	 * in the log and replayed over the snapshot, which is harmless since a put holds the whole record.
+	 * @param registry the table of clients, along with the generations of its retired ids
+	 * @param tableVersion the server's current table version
+	 */
+	public void snapshot(ClientRegistry registry, long tableVersion) {
+		// Batches are held back while the clients are encoded so the mark stays in the active buffer
+		int mark;
+		synchronized(lock) {
+			mark = active.position();
+			snapshotting = true;
+		}
+		ArrayList<ClientData> clients = registry.getClients();
+		int[] retired = registry.getRetiredIds();
+		int size = 16 + 4 + retired.length * 4;
+		for(ClientData client: clients) {
+			size += PacketCodec.clientSize(client);
+		}
+		ByteBuffer snapshot = ByteBuffer.allocate(size);
+		snapshot.putInt(SNAPSHOT_MAGIC);
+		snapshot.putLong(tableVersion);
+		snapshot.putInt(clients.size());
+		for(ClientData client: clients) {
+			PacketCodec.writeClient(snapshot, client);
+		}
+		snapshot.putInt(retired.length);
+		for(int packed: retired) {
+			snapshot.putInt(packed);
+		}
+		snapshot.flip();
+		synchronized(lock) {
+			pendingSnapshot = snapshot;
+			snapshotMark = mark;
+			snapshotting = false;
+			ticksSinceSnapshot = 0;
+		}
+	}
+	
+	/**
+	 * Opens an empty log without recovering, used by a server that starts from another server's table 
+	 * and snapshots it straight away. The old snapshot is replaced once that snapshot is written.
+	 * @throws IOException if the log cannot be opened
+	 */
+	public void open() throws IOException {
+		Files.createDirectories(directory);
+		channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+				StandardOpenOption.TRUNCATE_EXISTING);
+		logBytes = 0;
+		startFlusher();
+	}
+	
+	/**
+	 * Grows the active buffer if a record does not fit, so appending never waits for a flush
+	 * @param bytes the size of the record
+	 */
+	private void ensureCapacity(int bytes) {
+		if(active.remaining() < bytes) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + bytes));
+			active.flip();
+			grown.put(active);
+			active = grown;
+		}
+	}
+	
+	/**
+	 * Starts the thread that writes each batch
+	 */
+	private void startFlusher() {
+		running = true;
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(running) {
+					// Waits on a monitor rather than sleeping so close can wake it without an interrupt, 
+					// which would close the channel if it landed during a write
+					synchronized(wake) {
+						try {
+							if(running) {
+								wake.wait(Math.max(1, flushInterval));
+							}
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+					flush();
+				}
+			}
+		}, "registry-log");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/**
+	 * Writes the changes appended since the last flush as one batch, and the pending snapshot if
+	 * there is one. Only the log's thread and close call this.
+	 */
+	synchronized void flush() {
+		ByteBuffer batch;
+		ByteBuffer snapshot;
+		int mark;
+		synchronized(lock) {
+			if(snapshotting) {
+				return;
+			}
+			batch = active;
+			active = flushing;
+			flushing = batch;
+			snapshot = pendingSnapshot;
+			mark = snapshotMark;
+			pendingSnapshot = null;
+			snapshotMark = -1;
+		}
+		batch.flip();
+		try {
+			if(snapshot != null) {
+				writeSnapshot(snapshot);
+				// Changes appended before the snapshot was taken are part of it
+				batch.position(mark);
+				channel.truncate(0);
+				channel.position(0);
+				logBytes = 0;
+			}
+			if(batch.hasRemaining()) {
+				crc.reset();
+				crc.update(batch.duplicate());
+				ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+				header.putInt(batch.remaining());
+				header.putInt((int) crc.getValue());
+				header.flip();
+				logBytes += FRAME_HEADER_SIZE + batch.remaining();
+				channel.write(new ByteBuffer[] {header, batch});
+				if(durability == Durability.SYNC) {
+					channel.force(false);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		batch.clear();
+	}
+	
+	/**
+	 * Writes a snapshot to a temporary file and renames it over the last one
+	 * @param snapshot the encoded snapshot
+	 * @throws IOException if the file cannot be written
+	 */
+	private void writeSnapshot(ByteBuffer snapshot) throws IOException {
+		Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+		try(FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(snapshot.hasRemaining()) {
+				out.write(snapshot);
+			}
+			out.force(true);
+		}
+		Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Wakes the log's thread to stop, then flushes the last batch and closes the log
+	 */
+	public void close() {
+		if(!running) {
+			return;
+		}
+		running = false;
+		synchronized(wake) {
+			wake.notifyAll();
+		}
+		try {
+			flusher.join();
+			// Changes appended after the thread's last flush are written here
+			flush();
+			channel.force(false);
+			channel.close();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Getter for the size of the log
+	 * @return the bytes written to the log since it was last truncated
+	 */
+	public long getLogBytes() {
+		return this.logBytes;
+	}
+	
+	/**
+	 * Getter for the durability
+	 * @return how far each batch is written
+	 */
+	public Durability getDurability() {
+		return this.durability;
+	}
+}
@@ -0,0 +1,85 @@
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Measures how long a restarted server takes to recover its client table from the registry log. 
+ * A table of N clients is written to a fresh log and snapshotted, then further ticks, status changes 
+ * and registrations are appended after the snapshot, and the log is recovered into an empty registry. 
+ * N defaults to 100000 and can be given as the first argument.
+ * @author Sam Dodson
+ *
+ */
+public class RegistryLogBenchmark {
+	static final int DEFAULT_CLIENTS = 100000;
+	static final int TICKS_AFTER_SNAPSHOT = 500;
+	static final int CHANGES_PER_TICK = 100;
+	
+	/**
+	 * Main method for class
+	 * @param args the number of clients, optional
+	 */
+	public static void main(String[] args) throws Exception {
+		int clientCount = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+		Path directory = Files.createTempDirectory("registry-log");
+		InetAddress address = InetAddress.getLoopbackAddress();
+		
+		// The table is built and snapshotted, then changes are logged on top of the snapshot
+		RegistryLog log = new RegistryLog(directory, RegistryLog.Durability.ASYNC, RegistryLog.DEFAULT_FLUSH_INTERVAL, 
+				Integer.MAX_VALUE, Long.MAX_VALUE);
+		ClientRegistry registry = new ClientRegistry();
+		log.recover(registry);
+		long tableVersion = 0;
+		for(int id = 0; id < clientCount; id++) {
+			ClientData client = registry.add(address, 1024 + id % 60000);
+			log.put(client, tableVersion);
+		}
+		log.snapshot(registry, tableVersion);
+		long appendNanos = 0;
+		for(int tick = 0; tick < TICKS_AFTER_SNAPSHOT; tick++) {
+			tableVersion++;
+			ArrayList<ClientData> clients = registry.getClients();
+			for(ClientData client: clients) {
+				if(client.getStatus() == false) {
+					client.setAvailability(client.getAvailability() + 1);
+				}
+			}
+			long appendStart = System.nanoTime();
+			log.tick(tableVersion);
+			for(int change = 0; change < CHANGES_PER_TICK; change++) {
+				ClientData client = clients.get((tick * CHANGES_PER_TICK + change) * 7919 % clients.size());
+				client.setStatus(!client.getStatus());
+				log.put(client, tableVersion);
+			}
+			appendNanos += System.nanoTime() - appendStart;
+		}
+		log.close();
+		
+		long start = System.nanoTime();
+		RegistryLog recovered = new RegistryLog(directory, RegistryLog.Durability.ASYNC, RegistryLog.DEFAULT_FLUSH_INTERVAL, 
+				Integer.MAX_VALUE, Long.MAX_VALUE);
+		ClientRegistry replayed = new ClientRegistry();
+		long recoveredVersion = recovered.recover(replayed);
+		long recoverNanos = System.nanoTime() - start;
+		recovered.close();
+		
+		// The recovered table must match the one that was logged
+		int mismatches = 0;
+		for(ClientData client: registry.getClients()) {
+			ClientData copy = replayed.get(client.getId());
+			if(copy == null || copy.getAvailability() != client.getAvailability() || copy.getStatus() != client.getStatus()) {
+				mismatches++;
+			}
+		}
+		System.out.println("Clients: " + clientCount + " | Records after snapshot: " + TICKS_AFTER_SNAPSHOT * (CHANGES_PER_TICK + 1) 
+				+ " | Log bytes: " + recovered.getLogBytes());
+		System.out.println("Append ns per record: " + appendNanos / (TICKS_AFTER_SNAPSHOT * (CHANGES_PER_TICK + 1)));
+		System.out.println("Recovered " + replayed.size() + " clients at table version " + recoveredVersion + " in " 
+				+ recoverNanos / 1000000 + " ms | Mismatches: " + mismatches);
+		for(String file: new String[] {RegistryLog.LOG_FILE, RegistryLog.SNAPSHOT_FILE}) {
+			Files.deleteIfExists(directory.resolve(file));
+		}
+		Files.deleteIfExists(directory);
+	}
+}
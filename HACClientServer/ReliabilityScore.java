@@ -0,0 +1,257 @@
+import java.util.Arrays;
+
+/**
+ * Scores how reliably each node has been up over its recent ticks, so a node that was up for a month
+ * and then starts flapping loses its score within hours instead of living off its lifetime count.
+ * The score is either an exponentially weighted moving average whose weight halves every given
+ * number of ticks, or the fraction of a fixed window of ticks the node was up. Either way one
+ * update per node per tick costs O(1), and a node that has been seen for fewer ticks than the
+ * window is scored over the ticks it has been seen for.
+ * @author Sam Dodson
+ *
+ */
+public class ReliabilityScore {
+	static final int DEFAULT_TICKS = 120;
+	static final double DEFAULT_HEALTHY = 0.9;
+	static final int SCALE = 10000;
+	static final int INITIAL_CAPACITY = 64;
+	
+	/**
+	 * How recent ticks are weighted
+	 */
+	public enum Mode {
+		/** An exponentially weighted moving average whose weight halves every window of ticks */
+		EWMA,
+		/** The fraction of the last window of ticks the node was up */
+		WINDOW
+	}
+	
+	private final Mode mode;
+	private final int ticks;
+	private final double healthy;
+	private final double alpha;
+	private final int words;
+	private int capacity = 0;
+	
+	// EWMA state, the average is divided by its weight so early ticks are not biased towards zero
+	private double[] average = new double[0];
+	private double[] weight = new double[0];
+	
+	// Window state, one bit per tick in a ring per node
+	private long[] bits = new long[0];
+	private int[] upCount = new int[0];
+	private int[] seenCount = new int[0];
+	private int[] cursor = new int[0];
+	
+	/**
+	 * Constructor for the ReliabilityScore class
+	 * @param mode how recent ticks are weighted
+	 * @param ticks the half-life of the average, or the length of the window, in ticks
+	 * @param healthy the score at or above which a live node is reported as healthy
+	 */
+	public ReliabilityScore(Mode mode, int ticks, double healthy) {
+		this.mode = mode;
+		this.ticks = Math.max(1, ticks);
+		this.healthy = healthy;
+		this.alpha = 1 - Math.pow(0.5, 1.0 / this.ticks);
+		this.words = (this.ticks + 63) / 64;
+		grow(INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * Creates the scoring configured through the hac.score, hac.scoreTicks and hac.scoreHealthy
+	 * system properties
+	 * @return the scoring, an EWMA with a half-life of 120 ticks unless configured otherwise
+	 */
+	public static ReliabilityScore fromSystemProperties() {
+		Mode mode = Mode.EWMA;
+		try {
+			mode = Mode.valueOf(System.getProperty("hac.score", "EWMA").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+		}
+		int ticks = Integer.getInteger("hac.scoreTicks", DEFAULT_TICKS);
+		double healthy = DEFAULT_HEALTHY;
+		try {
+			healthy = Double.parseDouble(System.getProperty("hac.scoreHealthy", String.valueOf(DEFAULT_HEALTHY)));
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+		}
+		return new ReliabilityScore(mode, ticks, healthy);
+	}
+	
+	/**
+	 * Grows the per node arrays to fit an id
+	 * @param nodes the number of nodes to make room for
+	 */
+	private void grow(int nodes) {
+		if(mode == Mode.EWMA) {
+			average = Arrays.copyOf(average, nodes);
+			weight = Arrays.copyOf(weight, nodes);
+		}
+		else {
+			bits = Arrays.copyOf(bits, nodes * words);
+			upCount = Arrays.copyOf(upCount, nodes);
+			seenCount = Arrays.copyOf(seenCount, nodes);
+			cursor = Arrays.copyOf(cursor, nodes);
+		}
+		capacity = nodes;
+	}
+	
+	/**
+	 * Records whether a node was up on this tick
+	 * @param id the id of the node
+	 * @param up true if the node was up
+	 */
+	public synchronized void update(int id, boolean up) {
+		if(id < 0) {
+			return;
+		}
+		if(id >= capacity) {
+			grow(Math.max(id + 1, capacity * 2));
+		}
+		if(mode == Mode.EWMA) {
+			average[id] += alpha * ((up ? 1.0 : 0.0) - average[id]);
+			weight[id] += alpha * (1.0 - weight[id]);
+			return;
+		}
+		
+		// The tick leaving the window is dropped from the count once the window is full
+		int position = cursor[id];
+		int word = id * words + (position >>> 6);
+		long mask = 1L << (position & 63);
+		if(seenCount[id] == ticks) {
+			if((bits[word] & mask) != 0) {
+				upCount[id]--;
+			}
+		}
+		else {
+			seenCount[id]++;
+		}
+		if(up) {
+			bits[word] |= mask;
+			upCount[id]++;
+		}
+		else {
+			bits[word] &= ~mask;
+		}
+		cursor[id] = (position + 1 == ticks) ? 0 : position + 1;
+	}
+	
+	/**
+	 * Starts a node from a score carried over from elsewhere, such as the table a promoted server
+	 * takes over, as if it had been seen for a whole window at that score
+	 * @param id the id of the node
+	 * @param score the score between 0 and 1
+	 */
+	public synchronized void seed(int id, double score) {
+		if(id < 0) {
+			return;
+		}
+		if(id >= capacity) {
+			grow(Math.max(id + 1, capacity * 2));
+		}
+		score = Math.max(0, Math.min(1, score));
+		if(mode == Mode.EWMA) {
+			average[id] = score;
+			weight[id] = 1.0;
+			return;
+		}
+		// The up ticks are spread evenly over the window so the score falls away gradually
+		int up = (int) Math.round(score * ticks);
+		Arrays.fill(bits, id * words, (id + 1) * words, 0L);
+		for(int position = 0; position < ticks; position++) {
+			if((long) (position + 1) * up / ticks > (long) position * up / ticks) {
+				bits[id * words + (position >>> 6)] |= 1L << (position & 63);
+			}
+		}
+		upCount[id] = up;
+		seenCount[id] = ticks;
+		cursor[id] = 0;
+	}
+	
+	/**
+	 * Drops a node's score so an id handed to a new node starts unseen
+	 * @param id the id of the node
+	 */
+	public synchronized void reset(int id) {
+		if(id < 0 || id >= capacity) {
+			return;
+		}
+		if(mode == Mode.EWMA) {
+			average[id] = 0;
+			weight[id] = 0;
+			return;
+		}
+		Arrays.fill(bits, id * words, (id + 1) * words, 0L);
+		upCount[id] = 0;
+		seenCount[id] = 0;
+		cursor[id] = 0;
+	}
+	
+	/**
+	 * Getter for a node's score
+	 * @param id the id of the node
+	 * @return the score between 0 and 1, or 0 if the node has not been seen
+	 */
+	public synchronized double getScore(int id) {
+		if(id < 0 || id >= capacity) {
+			return 0;
+		}
+		if(mode == Mode.EWMA) {
+			return (weight[id] == 0) ? 0 : average[id] / weight[id];
+		}
+		return (seenCount[id] == 0) ? 0 : upCount[id] / (double) seenCount[id];
+	}
+	
+	/**
+	 * Determines if a node's score is high enough for it to be reported as healthy
+	 * @param id the id of the node
+	 * @return true if the node's score is at or above the healthy score
+	 */
+	public boolean isHealthy(int id) {
+		return getScore(id) >= healthy;
+	}
+	
+	/**
+	 * Converts a score to the fixed point form carried in packets
+	 * @param score the score between 0 and 1
+	 * @return the score in parts per 10000
+	 */
+	public static int toFixed(double score) {
+		return (int) Math.round(Math.max(0, Math.min(1, score)) * SCALE);
+	}
+	
+	/**
+	 * Converts a score from the fixed point form carried in packets
+	 * @param fixed the score in parts per 10000
+	 * @return the score between 0 and 1
+	 */
+	public static double fromFixed(int fixed) {
+		return fixed / (double) SCALE;
+	}
+	
+	/**
+	 * Getter for the mode
+	 * @return how recent ticks are weighted
+	 */
+	public Mode getMode() {
+		return this.mode;
+	}
+	
+	/**
+	 * Getter for the number of ticks
+	 * @return the half-life of the average, or the length of the window, in ticks
+	 */
+	public int getTicks() {
+		return this.ticks;
+	}
+	
+	/**
+	 * Getter for the healthy score
+	 * @return the score at or above which a live node is reported as healthy
+	 */
+	public double getHealthy() {
+		return this.healthy;
+	}
+}
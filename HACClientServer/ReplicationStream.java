@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams changes to the server's client table to hot standbys. A standby subscribes with an RS 
+ * packet (code 6) and is sent the whole table, after which every registration, address change and 
+ * status change is sent as it happens in an RU packet (code 7), along with the clients revived on 
+ * each timer tick. RU packets use the client-server layout with the server's table version in the 
+ * table version field and a sequence number in the base version field, so a standby that misses one 
+ * can tell and subscribe again. Availability is not sent for clients that did not change, a standby 
+ * adds the elapsed ticks to each live client the same way a client applies a delta AS packet.
+ * @author Sam Dodson
+ *
+ */
+public class ReplicationStream {
+	static final byte CODE_SUBSCRIBE = 6;
+	static final byte CODE_UPDATE = 7;
+	private final byte version;
+	private final byte mode;
+	private final CopyOnWriteArrayList<InetSocketAddress> standbys = new CopyOnWriteArrayList<>();
+	private final PacketCodec codec = new PacketCodec();
+	private long sequence = 0;
+	private int messageId = 0;
+	
+	/**
+	 * Constructor for the ReplicationStream class
+	 * @param version the version of the protocol
+	 * @param mode the client-server mode byte
+	 */
+	public ReplicationStream(byte version, byte mode) {
+		this.version = version;
+		this.mode = mode;
+	}
+	
+	/**
+	 * Adds a standby and sends it the whole table. A standby that subscribes again, after missing 
+	 * an update, is only sent the table again.
+	 * @param address the IP address of the standby
+	 * @param port the port number of the standby
+	 * @param clients every client in the table
+	 * @param tableVersion the server's current table version
+	 * @param transport the transport to send through
+	 */
+	public synchronized void subscribe(InetAddress address, int port, ArrayList<ClientData> clients, long tableVersion, ServerTransport transport) {
+		InetSocketAddress standby = new InetSocketAddress(address, port);
+		if(!standbys.contains(standby)) {
+			standbys.add(standby);
+		}
+		send(create(clients, tableVersion, false), standby, transport);
+	}
+	
+	/**
+	 * Sends changed clients to every standby
+	 * @param changed the clients whose records changed
+	 * @param tableVersion the server's current table version
+	 * @param transport the transport to send through
+	 */
+	public synchronized void publish(ArrayList<ClientData> changed, long tableVersion, ServerTransport transport) {
+		if(standbys.isEmpty()) {
+			return;
+		}
+		AvailabilitySnapshot update = create(changed, tableVersion, true);
+		for(InetSocketAddress standby: standbys) {
+			send(update, standby, transport);
+		}
+	}
+	
+	/**
+	 * Sends one changed client to every standby
+	 * @param client the client whose record changed
+	 * @param tableVersion the server's current table version
+	 * @param transport the transport to send through
+	 */
+	public void publish(ClientData client, long tableVersion, ServerTransport transport) {
+		if(standbys.isEmpty()) {
+			return;
+		}
+		ArrayList<ClientData> changed = new ArrayList<>(1);
+		changed.add(client);
+		publish(changed, tableVersion, transport);
+	}
+	
+	/**
+	 * Encodes an RU packet. Each update takes the next sequence number while the whole table carries 
+	 * the sequence of the last update, so sending it to one standby leaves no gap for the others.
+	 * @param clients the client records to carry
+	 * @param tableVersion the server's current table version
+	 * @param delta false if the records are the whole table
+	 * @return the encoded packet, split for sending
+	 */
+	private AvailabilitySnapshot create(ArrayList<ClientData> clients, long tableVersion, boolean delta) {
+		PacketData packetData = new PacketData(version, mode, CODE_UPDATE, clients);
+		packetData.setFlags(true, true);
+		packetData.setDelta(delta);
+		packetData.setTableVersion(tableVersion);
+		packetData.setBaseVersion(delta ? ++sequence : sequence);
+		return AvailabilitySnapshot.create(packetData, codec, messageId++);
+	}
+	
+	/**
+	 * Sends each fragment of an encoded packet to a standby
+	 * @param update the encoded packet
+	 * @param standby the address and port of the standby
+	 * @param transport the transport to send through
+	 */
+	private void send(AvailabilitySnapshot update, InetSocketAddress standby, ServerTransport transport) {
+		for(byte[] fragment: update.getFragments()) {
+			try {
+				transport.send(fragment, 0, fragment.length, standby.getAddress(), standby.getPort());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Getter for the number of standbys
+	 * @return the number of standbys that have subscribed
+	 */
+	public int getStandbyCount() {
+		return standbys.size();
+	}
+}
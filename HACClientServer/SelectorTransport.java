@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A non-blocking server transport driven by a selector event loop. The listening thread drains 
+ * every queued datagram before waiting on the selector again, and sends go straight out through a 
+ * direct buffer without blocking. A datagram the kernel cannot take yet is queued and flushed by 
+ * the event loop on its next pass, or once the socket becomes writable if nothing arrives, so the 
+ * timer thread never stalls on a full send buffer.
+ * @author Sam Dodson
+ *
+ */
+public class SelectorTransport implements ServerTransport {
+	static final int MAX_PENDING_SENDS = 65536;
+	private final int receiveBuffer;
+	private final int sendBuffer;
+	private final boolean reusePort;
+	private DatagramChannel channel;
+	private Selector selector;
+	private SelectionKey key;
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(PacketCodec.MAX_PACKET_SIZE);
+	private final ConcurrentLinkedQueue<PendingSend> pending = new ConcurrentLinkedQueue<>();
+	private final Object writeLock = new Object();
+	private final Consumer<SelectionKey> onReady = new Consumer<SelectionKey>() {
+		@Override
+		public void accept(SelectionKey readyKey) {
+			// Readiness is acted on by the receive loop itself so nothing is done per key
+		}
+	};
+	private volatile long dropped = 0;
+	
+	/**
+	 * Constructor for the SelectorTransport class
+	 * @param receiveBuffer the requested SO_RCVBUF size in bytes
+	 * @param sendBuffer the requested SO_SNDBUF size in bytes
+	 */
+	public SelectorTransport(int receiveBuffer, int sendBuffer) {
+		this(receiveBuffer, sendBuffer, false);
+	}
+	
+	/**
+	 * Constructor for the SelectorTransport class
+	 * @param receiveBuffer the requested SO_RCVBUF size in bytes
+	 * @param sendBuffer the requested SO_SNDBUF size in bytes
+	 * @param reusePort true if other sockets may bind the same port with SO_REUSEPORT
+	 */
+	public SelectorTransport(int receiveBuffer, int sendBuffer, boolean reusePort) {
+		this.receiveBuffer = receiveBuffer;
+		this.sendBuffer = sendBuffer;
+		this.reusePort = reusePort;
+	}
+	
+	/**
+	 * Opens a non-blocking channel bound to a port and registers it with the selector
+	 * @param port the port number to bind to, 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	@Override
+	public void bind(int port) throws IOException {
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+		if(reusePort) {
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		key = channel.register(selector, SelectionKey.OP_READ);
+	}
+	
+	/**
+	 * Getter for the bound port
+	 * @return the local port of the channel, or -1 if it is not bound
+	 */
+	@Override
+	public int getLocalPort() {
+		return (channel == null) ? -1 : channel.socket().getLocalPort();
+	}
+	
+	/**
+	 * Runs the event loop until a datagram is available. Queued sends are flushed before each 
+	 * datagram is returned as well as before the selector is waited on, so a steady stream of 
+	 * arriving datagrams cannot keep the queue from draining. The selector is only waited on once 
+	 * the socket has no datagrams left to read.
+	 * @param buffer the buffer to receive into, written from its position
+	 * @return the address and port the datagram came from
+	 * @throws IOException if the channel or selector fails
+	 */
+	@Override
+	public InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+		while(true) {
+			InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+			flushPending();
+			if(sender != null) {
+				return sender;
+			}
+			selector.select(onReady);
+		}
+	}
+	
+	/**
+	 * Sends a datagram without blocking. If the kernel's send buffer is full, or earlier datagrams 
+	 * are still queued, the datagram is copied onto the queue and the event loop is woken to flush it.
+	 * @param data the array holding the datagram
+	 * @param offset the start of the datagram in the array
+	 * @param length the length of the datagram
+	 * @param address the IP address to send to
+	 * @param port the port number to send to
+	 * @throws IOException if the channel fails
+	 */
+	@Override
+	public void send(byte[] data, int offset, int length, InetAddress address, int port) throws IOException {
+		InetSocketAddress target = new InetSocketAddress(address, port);
+		synchronized(writeLock) {
+			if(pending.isEmpty()) {
+				writeBuffer.clear();
+				writeBuffer.put(data, offset, length);
+				writeBuffer.flip();
+				if(channel.send(writeBuffer, target) > 0) {
+					return;
+				}
+			}
+			if(pending.size() >= MAX_PENDING_SENDS) {
+				dropped++;
+				return;
+			}
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			pending.add(new PendingSend(copy, target));
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		selector.wakeup();
+	}
+	
+	/**
+	 * Sends queued datagrams until the queue is empty or the kernel's send buffer is full
+	 * @throws IOException if the channel fails
+	 */
+	private void flushPending() throws IOException {
+		if(pending.isEmpty()) {
+			return;
+		}
+		synchronized(writeLock) {
+			PendingSend next = pending.peek();
+			while(next != null) {
+				writeBuffer.clear();
+				writeBuffer.put(next.data);
+				writeBuffer.flip();
+				if(channel.send(writeBuffer, next.target) == 0) {
+					return;
+				}
+				pending.poll();
+				next = pending.peek();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+	
+	/**
+	 * Getter for the number of datagrams dropped because the send queue was full
+	 * @return the number of dropped datagrams
+	 */
+	public long getDropped() {
+		return this.dropped;
+	}
+	
+	/**
+	 * Closes the selector and the channel
+	 */
+	@Override
+	public void close() {
+		try {
+			if(selector != null) {
+				selector.close();
+			}
+			if(channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * A datagram waiting for room in the kernel's send buffer
+	 */
+	private static class PendingSend {
+		final byte[] data;
+		final InetSocketAddress target;
+		
+		PendingSend(byte[] data, InetSocketAddress target) {
+			this.data = data;
+			this.target = target;
+		}
+	}
+}
@@ -1,15 +1,12 @@
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A class to model the data and functionalities of a server in a high-availability cluster
@@ -18,17 +15,52 @@ import java.util.TimerTask;
  */
 public class Server {
 	private int port;
-	private DatagramSocket socket;
-	private ArrayList<ClientData> clientData = new ArrayList<>();
-	private ArrayList<ClientData> liveNodes = new ArrayList<>();
-	private Timer timer = null;
+	private ServerTransport transport;
+	private ServerTransport[] shardTransports;
+	private int shards = Integer.getInteger("hac.shards", 1);
+	private volatile boolean running = true;
+	private ClientRegistry registry = new ClientRegistry();
+	private HeartbeatScheduler scheduler = null;
+	private volatile boolean timerStarted = false;
+	private AtomicLongArray received = new AtomicLongArray(0);
 	private byte version = 1;
 	private byte modeClientServer = 0;
 	private byte codeHCPacket = 0;
 	private byte codeHSPacket = 1;
 	private byte codeACPacket = 2;
 	private byte codeASPacket = 3;
-	private int clientCount = 0;
+	private PacketCodec codec = new PacketCodec();
+	private BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_POOL_SIZE, BufferPool.DEFAULT_BUFFER_SIZE);
+	private PacketWorkerPool workerPool = null;
+	private PacketCodec snapshotCodec = new PacketCodec();
+	private volatile AvailabilitySnapshot snapshot = null;
+	private volatile long tableVersion = 0;
+	private long purgesSince = 0;
+	private int messageId = 0;
+	static final int FULL_SNAPSHOT_INTERVAL = 10;
+	static final long DEFAULT_TOMBSTONE_TICKS = 2880;
+	static final long DEFAULT_PURGE_TICKS = 20160;
+	// Counters are spaced a cache line apart so shards never write to the same line
+	static final int COUNTER_SPACING = 16;
+	private final long tombstoneTicks = Long.getLong("hac.tombstoneTicks", DEFAULT_TOMBSTONE_TICKS);
+	private final long purgeTicks = Long.getLong("hac.purgeTicks", DEFAULT_PURGE_TICKS);
+	private HeartbeatConfig heartbeat = HeartbeatConfig.fromSystemProperties();
+	private FailureDetector detector = FailureDetector.fromSystemProperties(heartbeat.getInterval(), heartbeat.getGrace());
+	private TimingWheel deadlines = null;
+	private ReplicationStream replication = new ReplicationStream(version, modeClientServer);
+	private boolean seeded = false;
+	private RegistryLog log = null;
+	private AvailabilityHistory history = null;
+	private ReliabilityScore scores = ReliabilityScore.fromSystemProperties();
+	private final ArrayList<InetSocketAddress> aggregators = new ArrayList<>();
+	private long[] aggregatorAcked = new long[0];
+	private long[] aggregatorHeard = new long[0];
+	private final TimingWheel.Expiry onDeadline = new TimingWheel.Expiry() {
+		@Override
+		public long expired(int id, long now) {
+			return expireClient(id, now);
+		}
+	};
 	
 	/**
 	 * Constructor for Server class, sets port to bind socket to
@@ -42,17 +74,64 @@ public class Server {
 	 * Runs handshake protocol and begins listening for incoming packets
 	 */
 	public void handshake() {
+		openLog();
 		createSocket();
+		createWorkerPool();
 		listen();
 	}
 	
 	/**
-	 * Creates socket bound to specified port
+	 * Opens the registry log configured through system properties. A server that starts from another 
+	 * server's table snapshots it straight away, any other recovers the table it held before it was 
+	 * restarted so reconnecting clients keep their ids and availability.
+	 */
+	public void openLog() {
+		log = RegistryLog.fromSystemProperties();
+		if(log == null) {
+			return;
+		}
+		try {
+			if(seeded) {
+				log.open();
+				log.snapshot(registry, tableVersion);
+			}
+			else {
+				long start = System.nanoTime();
+				tableVersion = log.recover(registry);
+				if(registry.size() > 0) {
+					// Recovered clients that were alive are given one timeout to be heard from
+					seeded = true;
+					long millis = (System.nanoTime() - start) / 1000000;
+					System.out.println("Recovered " + registry.size() + " clients at table version " + tableVersion + " in " + millis + " ms\n");
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			log = null;
+		}
+	}
+	
+	/**
+	 * Creates socket bound to specified port. The transport behind the socket is chosen with the 
+	 * hac.transport system property and receives straight into pooled direct buffers. When more than 
+	 * one shard is configured each shard gets its own socket on the same port through SO_REUSEPORT, 
+	 * and packets are sent through the first.
 	 */
 	public void createSocket() {
+		if(shards > 1 && !ServerTransport.reusePortSupported()) {
+			System.out.println("SO_REUSEPORT not supported, receiving on one socket.");
+			shards = 1;
+		}
 		try {
-			socket = new DatagramSocket(port);
-		} catch (SocketException e) {
+			shardTransports = new ServerTransport[shards];
+			received = new AtomicLongArray(shards * COUNTER_SPACING);
+			for(int shard = 0; shard < shards; shard++) {
+				shardTransports[shard] = ServerTransport.fromSystemProperties(shards > 1);
+				// Later shards bind to the port the first was given in case it was chosen by the system
+				shardTransports[shard].bind((shard == 0) ? port : shardTransports[0].getLocalPort());
+			}
+			transport = shardTransports[0];
+		} catch (IOException e) {
 			// Program exits if the port is already bound to another program
 			System.out.println("Port already bound to socket.");
 			System.exit(-1);
@@ -60,103 +139,390 @@ public class Server {
 	}
 	
 	/**
-	 * Main listening thread of server node
+	 * Setter for the number of receive shards, must be called before the socket is created
+	 * @param shards the number of sockets bound to the port, each with its own receiving thread
 	 */
-	public void listen() {
-		while(true) {
-			byte[] bytes = new byte[1024];
-			DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
-			try {
-				socket.receive(packet);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			// Separate thread is created to parse each incoming packet
-			createParseThread(packet);
-			
-			// Timer is started to send heart beat to client nodes every 30 seconds
-			if(timer == null) {
-				timer = new Timer();
-				createTimer();
+	public void setShards(int shards) {
+		this.shards = Math.max(1, shards);
+	}
+	
+	/**
+	 * Getter for the number of receive shards
+	 * @return the number of sockets bound to the port
+	 */
+	public int getShards() {
+		return this.shards;
+	}
+	
+	/**
+	 * Stops the receiving threads and closes every socket
+	 */
+	public void close() {
+		running = false;
+		if(scheduler != null) {
+			scheduler.shutdown();
+		}
+		if(workerPool != null) {
+			workerPool.shutdown();
+		}
+		if(log != null) {
+			log.close();
+		}
+		if(history != null) {
+			history.close();
+		}
+		if(shardTransports != null) {
+			for(ServerTransport shardTransport: shardTransports) {
+				shardTransport.close();
 			}
 		}
 	}
 	
 	/**
-	 * Creates and runs a thread to parse incoming packets
-	 * @param packet the packet from client to parse
+	 * Creates the worker threads that process received packets, configured through system properties
 	 */
-	public void createParseThread(DatagramPacket packet) {
-		Thread thread = new Thread(new Runnable() {
+	public void createWorkerPool() {
+		workerPool = PacketWorkerPool.fromSystemProperties("server", new PacketWorkerPool.Handler() {
 			@Override
-			public void run() {
-				PacketData packetData = null;
-				packetData = parsePacket(packet);
-				byte parsedVersion = packetData.getVersion();
-				byte mode = packetData.getMode();
-				byte code = packetData.getCode();
-				
-				if(parsedVersion == version) {
-					if(mode == modeClientServer) {
-						if(code == codeHCPacket) {
-							int id = packetData.getClientData().get(0).getId();
-							// If client already has an id check if they are reconnecting
-							if(id != -1) {
-								try {
-									int index = clientData.indexOf(packetData.getClientData().get(0));
-									clientData.get(index).setAddress(packet.getAddress());
-									clientData.get(index).setPort(packet.getPort());
-									sendPacket(packet.getAddress(), packet.getPort(), clientData.get(index), codeHSPacket);
-								}
-								catch(IndexOutOfBoundsException e) {
-									// If client had id from previous server reassign a new id
-									ClientData client = new ClientData(packet.getAddress(), packet.getPort(), 0, clientCount);
-									clientData.add(client);
-									clientCount += 1;
-									sendPacket(packet.getAddress(), packet.getPort(), client, codeHSPacket);
-								}
-							}
-							else {
-								// If new client add them and assign an id
-								ClientData client = new ClientData(packet.getAddress(), packet.getPort(), 0, clientCount);
-								clientData.add(client);
-								clientCount += 1;
-								sendPacket(packet.getAddress(), packet.getPort(), client, codeHSPacket);
-							}
-						}
-						else if(code == codeACPacket) {
-							// Add clients that send availability to live node list
-							liveNodes.add(packetData.getClientData().get(0));	
+			public void handle(ByteBuffer buffer, InetSocketAddress sender) {
+				processPacket(buffer, sender);
+			}
+		});
+		bufferPool = workerPool.getBufferPool();
+	}
+	
+	/**
+	 * Getter for the port the server socket is bound to
+	 * @return the local port of the server socket, or -1 if the socket has not been created
+	 */
+	public int getLocalPort() {
+		return (transport == null) ? -1 : transport.getLocalPort();
+	}
+	
+	/**
+	 * Main listening thread of server node, the first shard is received on this thread and every 
+	 * other shard on a thread of its own
+	 */
+	public void listen() {
+		for(int shard = 1; shard < shards; shard++) {
+			final int receiveShard = shard;
+			Thread receiver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while(running) {
+						receive(receiveShard);
+						if(!timerStarted) {
+							startTimer();
 						}
 					}
 				}
+			}, "server-receive-" + shard);
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+		while(running) {
+			receive(0);
+			if(!timerStarted) {
+				startTimer();
 			}
-		});
-		thread.run();
+		}
 	}
-		
+	
 	/**
-	 * Parses data from packet
-	 * @param packet the packet from client to parse
-	 * @return the data parsed from packet
+	 * Starts the timer the first time any shard receives a packet. Shards check the volatile flag 
+	 * first so the server's lock, which sends also take, is only held until the timer has started.
 	 */
-	public PacketData parsePacket(DatagramPacket packet) {
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(packet.getData());
-		ObjectInputStream objectStream;
-		PacketData packetData = null;
+	private synchronized void startTimer() {
+		// Timer is started to send heart beat to client nodes every heartbeat interval
+		if(scheduler == null) {
+			// The server's tick is not jittered since it is the only node sending on it
+			scheduler = new HeartbeatScheduler("server-timer", new HeartbeatConfig(heartbeat.getInterval(), 0, heartbeat.getTimeout()));
+			createTimer();
+		}
+		timerStarted = true;
+	}
+	
+	/**
+	 * Getter for the number of datagrams received across every shard
+	 * @return the datagrams received since the socket was created
+	 */
+	public long getReceivedCount() {
+		long sum = 0;
+		for(int shard = 0; shard < received.length() / COUNTER_SPACING; shard++) {
+			sum += received.get(shard * COUNTER_SPACING);
+		}
+		return sum;
+	}
+	
+	/**
+	 * Receives one datagram on the first shard
+	 */
+	public void receive() {
+		receive(0);
+	}
+	
+	/**
+	 * Receives one datagram into a pooled buffer and hands it to the worker pool, or processes it on 
+	 * this thread if no worker pool was created. Availability packets are handled without allocating, 
+	 * so a steady stream of heartbeats produces no garbage. Shards share the registry, which is safe 
+	 * to update from every receiving thread at once.
+	 * @param shard the index of the socket to receive from
+	 */
+	public void receive(int shard) {
+		ByteBuffer buffer = bufferPool.acquire();
+		InetSocketAddress sender;
 		try {
-			objectStream = new ObjectInputStream(inputStream);
-			packetData = (PacketData) objectStream.readObject();
+			sender = shardTransports[shard].receive(buffer);
 		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
+			// Sockets closed on shutdown fail their pending receive, which is expected
+			if(running) {
+				e.printStackTrace();
+			}
+			bufferPool.release(buffer);
+			return;
+		}
+		buffer.flip();
+		// Each shard counts on its own cache line and is the only thread writing its counter
+		received.lazySet(shard * COUNTER_SPACING, received.get(shard * COUNTER_SPACING) + 1);
+		if(workerPool != null) {
+			workerPool.submit(buffer, sender);
+		}
+		else {
+			processPacket(buffer, sender);
+			bufferPool.release(buffer);
+		}
+	}
+	
+	/**
+	 * Processes a received packet. Handshake packets are decoded in full while availability packets 
+	 * are read in place.
+	 * @param buffer the buffer holding the packet
+	 * @param sender the address and port the packet came from
+	 */
+	public void processPacket(ByteBuffer buffer, InetSocketAddress sender) {
+		if(buffer.remaining() < PacketCodec.OFFSET_RECORDS) {
+			return;
+		}
+		byte parsedVersion = PacketCodec.peekVersion(buffer);
+		byte mode = PacketCodec.peekMode(buffer);
+		byte code = PacketCodec.peekCode(buffer);
+		
+		if(parsedVersion == version) {
+			if(mode == modeClientServer) {
+				if(code == codeHCPacket) {
+					PacketData packetData = parsePacket(buffer);
+					if(packetData == null || packetData.getClientData().isEmpty()) {
+						return;
+					}
+					handshakeClient(packetData.getClientData().get(0), sender.getAddress(), sender.getPort());
+				}
+				else if(code == codeACPacket) {
+					// Mark clients that send availability as live for this tick and record the table version they applied, 
+					// a client still using an id that has since been handed to another client is ignored
+					int id = PacketCodec.peekFirstClientId(buffer);
+					long now = System.currentTimeMillis();
+					if(registry.markAlive(id, PacketCodec.peekFirstClientGeneration(buffer), tableVersion + 1, PacketCodec.peekTableVersion(buffer), now, 0)) {
+						detector.heartbeat(id, now);
+					}
+				}
+				else if(code == Aggregator.CODE_RELAYED_HANDSHAKE) {
+					// The record carries the address the client sends from, the answer goes back through the aggregator
+					PacketData packetData = parsePacket(buffer);
+					if(packetData == null || packetData.getClientData().isEmpty() || packetData.getClientData().get(0).getAddress() == null) {
+						return;
+					}
+					ClientData sent = packetData.getClientData().get(0);
+					handshakeClient(sent, sent.getAddress(), sent.getPort(), findAggregator(sender, -1));
+				}
+				else if(code == Aggregator.CODE_DIGEST) {
+					markAggregated(buffer, sender);
+				}
+				else if(code == ReplicationStream.CODE_SUBSCRIBE) {
+					// A hot standby is sent the whole table and then every change to it
+					replication.subscribe(sender.getAddress(), sender.getPort(), registry.getClients(), tableVersion, transport);
+				}
+			}
 		}
-		return packetData;
 	}
 	
 	/**
-	 * Creates packet to send to specified client
+	 * Assigns an id to a client that sent a handshake packet, or updates the address of a reconnecting client
+	 * @param sent the client data sent in the handshake packet
+	 * @param address the IP address the handshake packet came from
+	 * @param port the port number the handshake packet came from
+	 */
+	public void handshakeClient(ClientData sent, InetAddress address, int port) {
+		handshakeClient(sent, address, port, 0);
+	}
+	
+	/**
+	 * Assigns an id to a client whose handshake arrived directly or through an aggregator, the answer 
+	 * is sent back the way the handshake came
+	 * @param sent the client data sent in the handshake packet
+	 * @param address the IP address of the client
+	 * @param port the port number of the client
+	 * @param aggregator the server's number for the aggregator the handshake came through, or 0 if it came directly
+	 */
+	public void handshakeClient(ClientData sent, InetAddress address, int port, int aggregator) {
+		// If client already has an id check if they are reconnecting, a tombstoned client keeps its id 
+		// and is restored once it sends availability
+		ClientData client = null;
+		if(sent.getId() != -1) {
+			client = registry.get(sent.getId());
+		}
+		if(client != null && client.getGeneration() == sent.getGeneration()) {
+			client.setAddress(address);
+			client.setPort(port);
+			client.setChangedVersion(tableVersion + 1);
+		}
+		else {
+			// If new client, client had id from previous server or its id was purged and handed on assign a new id
+			client = registry.add(address, port);
+			client.setChangedVersion(tableVersion + 1);
+			client.setLifecycleVersion(tableVersion + 1);
+		}
+		registry.setAggregator(client.getId(), aggregator);
+		replication.publish(client, tableVersion, transport);
+		if(log != null) {
+			log.put(client, tableVersion);
+		}
+		if(aggregator == 0) {
+			sendPacket(address, port, client, codeHSPacket);
+		}
+		else {
+			InetSocketAddress through = getAggregator(aggregator);
+			sendPacket(through.getAddress(), through.getPort(), client, codeHSPacket);
+		}
+	}
+	
+	/**
+	 * Marks every client listed in an AG packet as live for this tick, as if each had sent its own 
+	 * availability packet, and records the table version the aggregator acknowledged
+	 * @param buffer the buffer holding the AG packet
+	 * @param sender the address and port of the aggregator
+	 */
+	void markAggregated(ByteBuffer buffer, InetSocketAddress sender) {
+		int start = buffer.position();
+		int count = buffer.getInt(start + PacketCodec.OFFSET_COUNT);
+		if(count < 0 || count > (buffer.remaining() - PacketCodec.OFFSET_RECORDS) / 4) {
+			return;
+		}
+		long acked = PacketCodec.peekTableVersion(buffer);
+		int aggregator = findAggregator(sender, acked);
+		long now = System.currentTimeMillis();
+		for(int index = 0; index < count; index++) {
+			int packed = buffer.getInt(start + PacketCodec.OFFSET_RECORDS + index * 4);
+			int id = PacketCodec.unpackId(packed);
+			if(registry.markAlive(id, PacketCodec.unpackGeneration(packed), tableVersion + 1, acked, now, aggregator)) {
+				detector.heartbeat(id, now);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the server's number for an aggregator, numbering it if it has not been heard from before
+	 * @param sender the address and port of the aggregator
+	 * @param acked the table version the aggregator acknowledged, or -1 if the packet carries none
+	 * @return the aggregator's number, counting from 1
+	 */
+	int findAggregator(InetSocketAddress sender, long acked) {
+		synchronized(aggregators) {
+			int index = aggregators.indexOf(sender);
+			if(index == -1) {
+				index = aggregators.size();
+				aggregators.add(sender);
+				aggregatorAcked = Arrays.copyOf(aggregatorAcked, index + 1);
+				aggregatorHeard = Arrays.copyOf(aggregatorHeard, index + 1);
+			}
+			if(acked >= 0) {
+				aggregatorAcked[index] = acked;
+				aggregatorHeard[index] = System.currentTimeMillis();
+			}
+			return index + 1;
+		}
+	}
+	
+	/**
+	 * Getter for an aggregator's address
+	 * @param aggregator the server's number for the aggregator, counting from 1
+	 * @return the address and port of the aggregator
+	 */
+	InetSocketAddress getAggregator(int aggregator) {
+		synchronized(aggregators) {
+			return aggregators.get(aggregator - 1);
+		}
+	}
+	
+	/**
+	 * Fills the registry with the clients of a server this one is taking over from, before the socket 
+	 * is created. Surviving clients keep their ids, so their availability packets are recognized 
+	 * without a handshake, and the table version carries on from the old server's so the versions 
+	 * clients acknowledge stay meaningful.
+	 * @param clients the old server's clients, which this server takes ownership of
+	 * @param tableVersion the old server's table version
+	 */
+	public void seed(ArrayList<ClientData> clients, long tableVersion) {
+		for(ClientData client: clients) {
+			// Every seeded client is sent in full to any client whose table is older than the takeover
+			client.setChangedVersion(tableVersion);
+			registry.put(client);
+		}
+		this.tableVersion = tableVersion;
+		this.seeded = true;
+	}
+	
+	/**
+	 * Getter for the reliability scores
+	 * @return the score of each client over its recent ticks
+	 */
+	public ReliabilityScore getScores() {
+		return this.scores;
+	}
+	
+	/**
+	 * Getter for the availability history
+	 * @return the history of each client's status on every tick, or null if it is not kept
+	 */
+	public AvailabilityHistory getHistory() {
+		return this.history;
+	}
+	
+	/**
+	 * Getter for the registry log
+	 * @return the log the registry is persisted to, or null if it is not persisted
+	 */
+	public RegistryLog getLog() {
+		return this.log;
+	}
+	
+	/**
+	 * Getter for the replication stream
+	 * @return the stream of table changes sent to hot standbys
+	 */
+	public ReplicationStream getReplication() {
+		return this.replication;
+	}
+	
+	/**
+	 * Getter for the client registry
+	 * @return the table of clients known to the server
+	 */
+	public ClientRegistry getRegistry() {
+		return this.registry;
+	}
+	
+	/**
+	 * Parses data from packet
+	 * @param buffer the buffer holding the packet from client to parse
+	 * @return the data parsed from packet
+	 */
+	public PacketData parsePacket(ByteBuffer buffer) {
+		return PacketCodec.decode(buffer.duplicate());
+	}
+	
+	/**
+	 * Creates packet to send to specified client. The packet shares the codec's buffer so it
+	 * must be sent before the next packet is created.
 	 * @param address the IP address of a client
 	 * @param port the port number of a client
 	 * @param nodeData the data to send in the packet
@@ -164,85 +530,330 @@ public class Server {
 	 * @return the packet created with the specified parameters
 	 */
 	public DatagramPacket createPacket(InetAddress address, int port, ClientData nodeData, byte code) {
-		ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
-		ObjectOutputStream objectStream = null;
-		byte[] packetBytes = null;
-		try {
-			objectStream = new ObjectOutputStream(byteArrayStream);
-			PacketData packetData = null;
-			
-			// Creates a handshake packet or availability packet
-			if(code == codeHSPacket) {
-				ArrayList<ClientData> client = new ArrayList<>();
-				client.add(nodeData);
-				packetData = new PacketData(version, modeClientServer, codeHSPacket, client);
-				packetData.setFlags(false, true);
-			}
-			else if(code == codeASPacket) {
-				packetData = new PacketData(version, modeClientServer, codeASPacket, clientData);
-				packetData.setFlags(true, true);
-			}
-			objectStream.writeObject(packetData);
-			packetBytes = byteArrayStream.toByteArray();
-			objectStream.close();
-			byteArrayStream.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		PacketData packetData = null;
+		
+		// Creates a handshake packet or availability packet
+		if(code == codeHSPacket) {
+			ArrayList<ClientData> client = new ArrayList<>();
+			client.add(nodeData);
+			packetData = new PacketData(version, modeClientServer, codeHSPacket, client);
+			packetData.setFlags(false, true);
+		}
+		else if(code == codeASPacket) {
+			// Packets created here are sent whole, the timer sends split snapshots instead
+			packetData = new PacketData(version, modeClientServer, codeASPacket, registry.getClients());
+			packetData.setFlags(false, true);
+			packetData.setTableVersion(tableVersion);
 		}
-		DatagramPacket packet = new DatagramPacket(packetBytes, packetBytes.length, address, port);
+		ByteBuffer buffer = codec.encode(packetData);
+		DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.limit(), address, port);
 		return packet;
 	}
-		
+	
 	/**
-	 * Sends packet to specified client
+	 * Sends packet to specified client. Synchronized because the listening thread and the 
+	 * timer thread share the codec's buffer.
 	 * @param address the IP address of a client
 	 * @param port the port number of a client
 	 * @param client the data to send in the packet
 	 * @param code the type of packet being sent
 	 */
-	public void sendPacket(InetAddress address, int port, ClientData client, byte code) {
+	public synchronized void sendPacket(InetAddress address, int port, ClientData client, byte code) {
 		DatagramPacket packet = createPacket(address, port, client, code);
 		try {
-			socket.send(packet);
+			transport.send(packet.getData(), packet.getOffset(), packet.getLength(), packet.getAddress(), packet.getPort());
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-						
+	
+	/**
+	 * Encodes the current availability of every client into a full AS snapshot and publishes it. 
+	 * Records are read straight from the registry's table, and tombstoned clients are left out so 
+	 * AS packets only grow with the clients that may come back soon.
+	 * @return the snapshot that was created
+	 */
+	public AvailabilitySnapshot createSnapshot() {
+		PacketData packetData = new PacketData(version, modeClientServer, codeASPacket, null);
+		packetData.setFlags(true, true);
+		packetData.setTableVersion(tableVersion);
+		AvailabilitySnapshot current = AvailabilitySnapshot.create(packetData, registry, snapshotCodec, messageId++);
+		snapshot = current;
+		return current;
+	}
+	
+	/**
+	 * Encodes only the clients whose status or address changed after a base version into a delta 
+	 * AS snapshot. Receivers holding the base version add the elapsed ticks to every client that 
+	 * was alive and absent from the delta, which reproduces the full table exactly.
+	 * @param baseVersion the table version the receiver last applied
+	 * @return the delta snapshot that was created
+	 */
+	public AvailabilitySnapshot createDelta(long baseVersion) {
+		PacketData packetData = new PacketData(version, modeClientServer, codeASPacket, null);
+		packetData.setFlags(true, true);
+		packetData.setDelta(true);
+		packetData.setTableVersion(tableVersion);
+		packetData.setBaseVersion(baseVersion);
+		return AvailabilitySnapshot.create(packetData, registry, snapshotCodec, messageId++);
+	}
+	
 	/**
-	 * Creates timer to send heart beat to clients every 30 seconds
+	 * Getter for the current table version
+	 * @return the version of the client table, incremented once per timer tick
+	 */
+	public long getTableVersion() {
+		return this.tableVersion;
+	}
+	
+	/**
+	 * Getter for the most recent AS snapshot
+	 * @return the snapshot created on the last timer tick, or null if the timer has not run yet
+	 */
+	public AvailabilitySnapshot getAvailabilitySnapshot() {
+		return this.snapshot;
+	}
+	
+	/**
+	 * Sends each fragment of an already encoded snapshot to a client
+	 * @param snapshot the snapshot to send
+	 * @param client the client to send the snapshot to
+	 */
+	public void sendSnapshot(AvailabilitySnapshot snapshot, ClientData client) {
+		sendSnapshot(snapshot, client.getAddress(), client.getPort());
+	}
+	
+	/**
+	 * Sends each fragment of an already encoded snapshot to an address
+	 * @param snapshot the snapshot to send
+	 * @param address the IP address of the client
+	 * @param port the port number of the client
+	 */
+	public void sendSnapshot(AvailabilitySnapshot snapshot, InetAddress address, int port) {
+		for(byte[] fragment: snapshot.getFragments()) {
+			try {
+				transport.send(fragment, 0, fragment.length, address, port);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Getter for the heartbeat timing
+	 * @return the interval, jitter and timeout the server was configured with
+	 */
+	public HeartbeatConfig getHeartbeatConfig() {
+		return this.heartbeat;
+	}
+	
+	/**
+	 * Getter for the failure detector
+	 * @return the detector that decides when each client is considered failed
+	 */
+	public FailureDetector getDetector() {
+		return this.detector;
+	}
+	
+	/**
+	 * Called by the timing wheel when a client's deadline passes. Availability packets only record 
+	 * a heartbeat with the failure detector, so a client that is still sending is moved to the 
+	 * deadline the detector now gives and only a client that has gone silent is marked dead.
+	 * @param id the id of the client
+	 * @param now the current time in milliseconds
+	 * @return the client's next deadline, or -1 if it was marked dead
+	 */
+	long expireClient(int id, long now) {
+		NodeTable table = registry.getTable();
+		if(!table.isUsed(id)) {
+			return -1;
+		}
+		long deadline = detector.getDeadline(id);
+		if(deadline > now) {
+			return deadline;
+		}
+		if(table.getStatus(id) == false) {
+			table.setChangedVersion(id, tableVersion + 1);
+			table.setLifecycleVersion(id, tableVersion + 1);
+			table.setStatus(id, true);
+			ClientData client = registry.get(id);
+			replication.publish(client, tableVersion, transport);
+			if(log != null) {
+				log.put(client, tableVersion);
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Creates timer to send heart beat to clients every heartbeat interval, and to advance the timing 
+	 * wheel that marks each client dead once it misses its own deadline. Both tasks run on the 
+	 * scheduler's thread so status changes never race the tick.
 	 */
 	public void createTimer() {
-		int thirtySeconds = 30 * 1000;
-		timer.schedule( new TimerTask() {
+		history = AvailabilityHistory.fromSystemProperties(heartbeat.getInterval(), "availability.hist");
+		long wheelTick = heartbeat.getWheelTick();
+		deadlines = new TimingWheel(wheelTick, TimingWheel.DEFAULT_SLOTS, System.currentTimeMillis());
+		if(seeded) {
+			// Live clients taken over from the old server have one timeout to be heard from, every client 
+			// carries on from the score it had there and dead ones count towards tombstoning from now
+			long deadline = System.currentTimeMillis() + heartbeat.getTimeout();
+			for(ClientData client: registry.getClients()) {
+				scores.seed(client.getId(), ReliabilityScore.fromFixed(client.getScore()));
+				if(client.getLifecycleVersion() == 0) {
+					client.setLifecycleVersion(tableVersion);
+				}
+				if(client.getStatus() == false) {
+					deadlines.schedule(client.getId(), deadline);
+				}
+			}
+		}
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				deadlines.advance(System.currentTimeMillis(), onDeadline);
+			}
+		}, wheelTick);
+		scheduler.start(new Runnable() {
 		    public void run() {
-		    	// Availability is incremented for each live client
-		    	for(ClientData client: clientData) {
-		    		if(liveNodes.contains(client)) {
-		        		int av = client.getAvailability();
-		    			client.setAvailability(av + 1);
-		    			client.setStatus(false);
+		    	// The version is advanced before the sweep so marks made while it runs are stamped for the next tick
+		    	long sweptVersion = tableVersion + 1;
+		    	tableVersion = sweptVersion;
+		    	NodeTable table = registry.getTable();
+		    	int limit = registry.getNextId();
+		    	
+		    	// Clients heard from during the tick are revived and given a deadline, clients that went 
+		    	// silent were already marked dead by the timing wheel, and each live client gains availability. 
+		    	// Clients dead for the tombstone period are tombstoned and tombstoned clients that stay silent 
+		    	// for the purge period are removed. The sweep reads the table's columns by id and only 
+		    	// creates views of the clients that changed.
+		    	ArrayList<ClientData> changed = new ArrayList<>();
+		    	ArrayList<ClientData> purged = new ArrayList<>();
+		    	if(history != null) {
+		    		history.advance(System.currentTimeMillis());
+		    	}
+		    	for(int id = 0; id < limit; id++) {
+		    		if(!table.isUsed(id)) {
+		    			continue;
+		    		}
+		    		if(table.getLiveVersion(id) >= sweptVersion) {
+		    			if(table.getStatus(id) == true) {
+		    				table.setChangedVersion(id, sweptVersion);
+		    				table.setStatus(id, false);
+		    				table.setTombstoned(id, false);
+		    				changed.add(registry.get(id));
+		    			}
+		    			if(!deadlines.isScheduled(id)) {
+		    				deadlines.schedule(id, detector.getDeadline(id));
+		    			}
+		    		}
+		    		else if(table.getTombstoned(id)) {
+		    			if(sweptVersion - table.getLifecycleVersion(id) >= purgeTicks) {
+		    				purged.add(registry.get(id));
+		    			}
+		    			continue;
+		    		}
+		    		else if(table.getStatus(id) == true && sweptVersion - table.getLifecycleVersion(id) >= tombstoneTicks) {
+		    			table.setChangedVersion(id, sweptVersion);
+		    			table.setLifecycleVersion(id, sweptVersion);
+		    			table.setTombstoned(id, true);
+		    			changed.add(registry.get(id));
+		    			continue;
 		    		}
-		    		else {
-		    			client.setStatus(true);
+		    		boolean up = table.getStatus(id) == false;
+		    		if(up) {
+		    			table.setAvailability(id, table.getAvailability(id) + 1);
+		    		}
+		    		scores.update(id, up);
+		    		table.setScore(id, ReliabilityScore.toFixed(scores.getScore(id)));
+		    		if(history != null) {
+		    			history.record(id, up);
 		    		}
 		    	}
 		    	
-		    	// Availability is sent to each live client
-		    	for(ClientData client: clientData) {
-		    		if(liveNodes.contains(client)) {
-						sendPacket(client.getAddress(), client.getPort(), null, codeASPacket);
+		    	// Purged ids are freed for reuse along with everything kept about them, the copy the 
+		    	// registry hands back carries the purge to standbys, the log and later deltas
+		    	for(ClientData client: purged) {
+		    		ClientData removed = registry.purge(client.getId(), sweptVersion);
+		    		detector.forget(client.getId());
+		    		scores.reset(client.getId());
+		    		if(history != null) {
+		    			history.forget(client.getId());
+		    		}
+		    		changed.add(removed);
+		    	}
+		    	limit = registry.getNextId();
+		    	
+		    	// Standbys are sent the tick even when nothing changed so they can credit availability
+		    	replication.publish(changed, sweptVersion, transport);
+		    	
+		    	// The log records the tick once rather than every live client's new availability
+		    	if(log != null) {
+		    		log.tick(sweptVersion);
+		    		for(ClientData client: changed) {
+		    			log.put(client, sweptVersion);
+		    		}
+		    		if(log.needsSnapshot()) {
+		    			log.snapshot(registry, sweptVersion);
+		    		}
+		    	}
+		    	
+		    	// Availability is encoded once per distinct acknowledged version and the same bytes are 
+		    	// sent to each live client holding that version, every client gets a full table periodically
+		    	AvailabilitySnapshot current = createSnapshot();
+		    	HashMap<Long, AvailabilitySnapshot> deltas = new HashMap<>();
+		    	boolean fullTick = sweptVersion % FULL_SNAPSHOT_INTERVAL == 0;
+		    	
+		    	// Every receiver gets the full table on a full tick, so deltas are only sent against later 
+		    	// versions and the purges before it need not be kept
+		    	if(fullTick) {
+		    		registry.forgetPurged(sweptVersion);
+		    		purgesSince = sweptVersion;
+		    	}
+		    	for(int id = 0; id < limit; id++) {
+		    		if(!table.isUsed(id) || table.getTombstoned(id)) {
+		    			continue;
+		    		}
+		    		if(table.getStatus(id) == false && table.getAggregator(id) == 0) {
+		    			long acked = table.getAckedVersion(id);
+		    			if(fullTick || acked <= 0 || acked < purgesSince || acked >= sweptVersion) {
+		    				sendSnapshot(current, table.getAddress(id), table.getPort(id));
+		    			}
+		    			else {
+		    				AvailabilitySnapshot delta = deltas.get(acked);
+		    				if(delta == null) {
+		    					delta = createDelta(acked);
+		    					deltas.put(acked, delta);
+		    				}
+		    				sendSnapshot(delta, table.getAddress(id), table.getPort(id));
+		    			}
+		    		}
+		    		// A live client whose recent score has fallen below the healthy score is reported as unstable
+		    		String status = (table.getStatus(id) == true) ? "DEAD" : scores.isHealthy(id) ? "ALIVE" : "UNSTABLE";
+		    		System.out.println("Address: " + table.getAddress(id) + " | Port: " + table.getPort(id) + " | Availability: " + table.getAvailability(id) + " | Score: " + String.format("%.4f", scores.getScore(id)) + " | Suspicion: " + String.format("%.2f", detector.getSuspicion(id, System.currentTimeMillis())) + " | Status: " + status);
+		    	}
+		    	
+		    	// Clients behind an aggregator are sent the table once through it, chosen by the version it acknowledged
+		    	synchronized(aggregators) {
+		    		long now = System.currentTimeMillis();
+		    		for(int index = 0; index < aggregators.size(); index++) {
+		    			if(now - aggregatorHeard[index] > heartbeat.getTimeout()) {
+		    				continue;
+		    			}
+		    			long acked = aggregatorAcked[index];
+		    			AvailabilitySnapshot sent = current;
+		    			if(!fullTick && acked > 0 && acked >= purgesSince && acked < sweptVersion) {
+		    				sent = deltas.get(acked);
+		    				if(sent == null) {
+		    					sent = createDelta(acked);
+		    					deltas.put(acked, sent);
+		    				}
+		    			}
+		    			sendSnapshot(sent, aggregators.get(index).getAddress(), aggregators.get(index).getPort());
 		    		}
-					if(client.getStatus() == false) {
-						System.out.println("Address: " + client.getAddress() + " | Port: " + client.getPort() + " | Availability: " + client.getAvailability() + " | Status: ALIVE");
-					}
-					else {
-						System.out.println("Address: " + client.getAddress() + " | Port: " + client.getPort() + " | Availability: " + client.getAvailability() + " | Status: DEAD");
-					}
 		    	}
 		    	System.out.println("\n");
-		    	liveNodes.clear();
 		    }
-		 }, thirtySeconds, thirtySeconds);
+		 });
 	}
 }
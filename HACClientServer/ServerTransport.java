@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The socket layer the server receives from and sends through. The transport is chosen with the 
+ * hac.transport system property, either blocking (the default) or selector, and the socket buffer 
+ * sizes with hac.rcvbuf and hac.sndbuf. Several transports can share one port with SO_REUSEPORT, 
+ * in which case the kernel spreads senders across them by hashing each sender's address.
+ * @author Sam Dodson
+ *
+ */
+public interface ServerTransport {
+	int DEFAULT_RECEIVE_BUFFER = 4 * 1024 * 1024;
+	int DEFAULT_SEND_BUFFER = 4 * 1024 * 1024;
+	
+	/**
+	 * Binds the transport to a port
+	 * @param port the port number to bind to, 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	void bind(int port) throws IOException;
+	
+	/**
+	 * Getter for the bound port
+	 * @return the local port of the transport, or -1 if it is not bound
+	 */
+	int getLocalPort();
+	
+	/**
+	 * Waits for a datagram and receives it into a buffer
+	 * @param buffer the buffer to receive into, written from its position
+	 * @return the address and port the datagram came from
+	 * @throws IOException if the socket fails
+	 */
+	InetSocketAddress receive(ByteBuffer buffer) throws IOException;
+	
+	/**
+	 * Sends a datagram, safe to call from any thread
+	 * @param data the array holding the datagram
+	 * @param offset the start of the datagram in the array
+	 * @param length the length of the datagram
+	 * @param address the IP address to send to
+	 * @param port the port number to send to
+	 * @throws IOException if the socket fails
+	 */
+	void send(byte[] data, int offset, int length, InetAddress address, int port) throws IOException;
+	
+	/**
+	 * Closes the transport's socket
+	 */
+	void close();
+	
+	/**
+	 * Creates the transport named by the hac.transport system property
+	 * @return an unbound transport
+	 */
+	static ServerTransport fromSystemProperties() {
+		return fromSystemProperties(false);
+	}
+	
+	/**
+	 * Creates the transport named by the hac.transport system property
+	 * @param reusePort true if the transport will share its port with others through SO_REUSEPORT
+	 * @return an unbound transport
+	 */
+	static ServerTransport fromSystemProperties(boolean reusePort) {
+		int receiveBuffer = Integer.getInteger("hac.rcvbuf", DEFAULT_RECEIVE_BUFFER);
+		int sendBuffer = Integer.getInteger("hac.sndbuf", DEFAULT_SEND_BUFFER);
+		String name = System.getProperty("hac.transport", "blocking");
+		if(name.equals("selector")) {
+			return new SelectorTransport(receiveBuffer, sendBuffer, reusePort);
+		}
+		return new BlockingTransport(receiveBuffer, sendBuffer, reusePort);
+	}
+	
+	/**
+	 * Determines if this platform lets several sockets bind one port with SO_REUSEPORT
+	 * @return true if SO_REUSEPORT is supported for datagram sockets
+	 */
+	static boolean reusePortSupported() {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+
+/**
+ * Measures how the server's receive rate scales with the number of SO_REUSEPORT shards. For each 
+ * shard count from 1 to N a fresh server is bound and run through its own listen loop, sender 
+ * threads on distinct source ports stream AC packets over loopback, and the packets the server's 
+ * shards receive are counted for a fixed window.
+ * N defaults to the number of processors and can be given as the first argument.
+ * @author Sam Dodson
+ *
+ */
+public class ShardBenchmark {
+	static final int CLIENTS = 1000;
+	static final long WARMUP_MILLIS = 1000;
+	static final long MEASURED_MILLIS = 3000;
+	
+	/**
+	 * Main method for class
+	 * @param args the largest shard count to measure, optional
+	 */
+	public static void main(String[] args) throws Exception {
+		int maxShards = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		if(maxShards > 1 && !ServerTransport.reusePortSupported()) {
+			System.out.println("SO_REUSEPORT not supported, only one shard can be measured.");
+			maxShards = 1;
+		}
+		for(int shards = 1; shards <= maxShards; shards++) {
+			long packetsPerSecond = measure(shards);
+			System.out.println("Shards: " + shards + " | Packets per second: " + packetsPerSecond);
+		}
+		System.exit(0);
+	}
+	
+	/**
+	 * Runs one measurement against a server with a given number of shards
+	 * @param shards the number of receive shards
+	 * @return the packets received per second across every shard
+	 */
+	static long measure(int shards) throws Exception {
+		Server server = new Server(0);
+		server.setShards(shards);
+		server.createSocket();
+		InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		
+		// Clients are registered directly so every AC packet matches a known id
+		DatagramChannel registrar = DatagramChannel.open();
+		registrar.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		InetSocketAddress registration = (InetSocketAddress) registrar.getLocalAddress();
+		for(int id = 0; id < CLIENTS; id++) {
+			ArrayList<ClientData> dataField = new ArrayList<>();
+			dataField.add(new ClientData(null, 0, 0, -1));
+			PacketData packetData = new PacketData((byte) 1, (byte) 0, (byte) 0, dataField);
+			server.processPacket(new PacketCodec().encode(packetData), registration);
+		}
+		ByteBuffer[] packets = new ByteBuffer[CLIENTS];
+		for(int id = 0; id < CLIENTS; id++) {
+			ArrayList<ClientData> dataField = new ArrayList<>();
+			dataField.add(new ClientData(InetAddress.getLoopbackAddress(), 0, 0, id));
+			PacketData packetData = new PacketData((byte) 1, (byte) 0, (byte) 2, dataField);
+			packetData.setTableVersion(1);
+			packets[id] = new PacketCodec().encode(packetData);
+		}
+		
+		// The server's own listen loop runs every shard so the measurement includes what it does per packet
+		Thread listener = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.listen();
+			}
+		});
+		listener.setDaemon(true);
+		listener.start();
+		
+		// Several senders are used because the kernel picks a shard by hashing the source port
+		int senderCount = Math.max(2, shards * 2);
+		Thread[] senders = new Thread[senderCount];
+		DatagramChannel[] senderChannels = new DatagramChannel[senderCount];
+		for(int index = 0; index < senderCount; index++) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			senderChannels[index] = channel;
+			final int first = index;
+			senders[index] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ByteBuffer[] own = new ByteBuffer[CLIENTS];
+					for(int id = 0; id < CLIENTS; id++) {
+						own[id] = ByteBuffer.allocateDirect(packets[id].remaining()).put(packets[id].duplicate()).flip();
+					}
+					int id = first;
+					while(!Thread.currentThread().isInterrupted()) {
+						ByteBuffer packet = own[id];
+						packet.rewind();
+						try {
+							channel.send(packet, serverAddress);
+						} catch (Exception e) {
+							return;
+						}
+						id = (id + 1) % CLIENTS;
+					}
+				}
+			});
+			senders[index].setDaemon(true);
+			senders[index].start();
+		}
+		
+		Thread.sleep(WARMUP_MILLIS);
+		long before = server.getReceivedCount();
+		long start = System.nanoTime();
+		Thread.sleep(MEASURED_MILLIS);
+		long count = server.getReceivedCount() - before;
+		long elapsed = System.nanoTime() - start;
+		
+		for(Thread sender: senders) {
+			sender.interrupt();
+		}
+		// The listen loop is stopped by closing the server rather than interrupting it mid receive
+		server.close();
+		registrar.close();
+		for(DatagramChannel channel: senderChannels) {
+			channel.close();
+		}
+		return (long) (count / (elapsed / 1e9));
+	}
+}
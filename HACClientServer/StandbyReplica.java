@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+
+/**
+ * The copy of the server's client table kept by a hot standby. It is built from the RU packets 
+ * streamed by the server's ReplicationStream and handed to the standby's server when it takes over.
+ * @author Sam Dodson
+ *
+ */
+public class StandbyReplica {
+	private ClientRegistry registry = new ClientRegistry();
+	private long tableVersion = 0;
+	private long sequence = 0;
+	private boolean synced = false;
+	private ReliabilityScore scores = ReliabilityScore.fromSystemProperties();
+	
+	/**
+	 * Applies an RU packet. The whole table replaces the replica, and an update is applied if it 
+	 * follows the last one applied.
+	 * @param packetData the received RU packet
+	 * @return false if an update was missed and the standby must subscribe again
+	 */
+	public synchronized boolean apply(PacketData packetData) {
+		if(packetData.getDelta() == false) {
+			registry = new ClientRegistry();
+			scores = ReliabilityScore.fromSystemProperties();
+			for(ClientData client: packetData.getClientData()) {
+				registry.put(client);
+				scores.seed(client.getId(), ReliabilityScore.fromFixed(client.getScore()));
+			}
+			tableVersion = packetData.getTableVersion();
+			sequence = packetData.getBaseVersion();
+			synced = true;
+			return true;
+		}
+		if(!synced || packetData.getBaseVersion() <= sequence) {
+			// Updates sent before the table are already part of it
+			return synced;
+		}
+		if(packetData.getBaseVersion() != sequence + 1) {
+			synced = false;
+			return false;
+		}
+		
+		// Live clients gain one availability point per elapsed tick and are scored as the server scores 
+		// them, changed clients carry their own availability and score
+		int elapsed = (int) Math.max(0, packetData.getTableVersion() - tableVersion);
+		if(elapsed > 0) {
+			for(ClientData client: registry.getClients()) {
+				if(client.getTombstoned()) {
+					continue;
+				}
+				if(client.getStatus() == false) {
+					client.setAvailability(client.getAvailability() + elapsed);
+				}
+				for(int tick = 0; tick < elapsed; tick++) {
+					scores.update(client.getId(), client.getStatus() == false);
+				}
+				client.setScore(ReliabilityScore.toFixed(scores.getScore(client.getId())));
+			}
+			tableVersion = packetData.getTableVersion();
+		}
+		for(ClientData changed: packetData.getClientData()) {
+			if(changed.getPurged()) {
+				registry.remove(changed.getId());
+				scores.reset(changed.getId());
+				continue;
+			}
+			registry.put(changed);
+			scores.seed(changed.getId(), ReliabilityScore.fromFixed(changed.getScore()));
+		}
+		sequence = packetData.getBaseVersion();
+		return true;
+	}
+	
+	/**
+	 * Determines if the replica holds the whole table
+	 * @return true once the table has been received and no update has been missed since
+	 */
+	public synchronized boolean isSynced() {
+		return this.synced;
+	}
+	
+	/**
+	 * Getter for the replicated clients
+	 * @return every client in the replica
+	 */
+	public synchronized ArrayList<ClientData> getClients() {
+		return registry.getClients();
+	}
+	
+	/**
+	 * Getter for the replicated table version
+	 * @return the server's table version as of the last applied packet
+	 */
+	public synchronized long getTableVersion() {
+		return this.tableVersion;
+	}
+	
+	/**
+	 * Getter for the sequence number
+	 * @return the sequence number of the last applied packet
+	 */
+	public synchronized long getSequence() {
+		return this.sequence;
+	}
+}
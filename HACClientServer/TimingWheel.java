@@ -0,0 +1,194 @@
+import java.util.Arrays;
+
+/**
+ * A hashed timing wheel holding one failure deadline per node. Each slot covers one tick and holds 
+ * an intrusive list of the node ids whose deadline falls in it, so scheduling, rescheduling and 
+ * cancelling a deadline are O(1) and advancing the wheel only visits the slots that came due.
+ * Deadlines further out than one turn of the wheel stay in their slot until their tick is reached.
+ * <p>
+ * Heartbeats are not expected to touch the wheel. Callers record the time a node was last heard 
+ * from and the expiry callback returns the node's real deadline, so a node that is still 
+ * heartbeating is moved forward once per timeout rather than once per packet. The wheel is not 
+ * thread safe and is meant to be owned by the thread that advances it.
+ * @author Sam Dodson
+ *
+ */
+public class TimingWheel {
+	static final long DEFAULT_TICK = 100;
+	static final int DEFAULT_SLOTS = 512;
+	private static final int NONE = -1;
+	private final long tickMillis;
+	private final int mask;
+	private final int[] heads;
+	private int[] next;
+	private int[] previous;
+	private int[] slotOf;
+	private long[] deadlines;
+	private long currentTick;
+	private int scheduled = 0;
+	
+	/**
+	 * Decides what happens to a node whose deadline has passed
+	 */
+	public interface Expiry {
+		/**
+		 * Called once for each node whose deadline has passed
+		 * @param id the id of the node
+		 * @param now the current time in milliseconds
+		 * @return a later deadline to move the node to, or -1 to leave it unscheduled
+		 */
+		long expired(int id, long now);
+	}
+	
+	/**
+	 * Constructor for the TimingWheel class with the default tick and size
+	 * @param now the current time in milliseconds
+	 */
+	public TimingWheel(long now) {
+		this(DEFAULT_TICK, DEFAULT_SLOTS, now);
+	}
+	
+	/**
+	 * Constructor for the TimingWheel class
+	 * @param tickMillis the time in milliseconds covered by each slot
+	 * @param slots the number of slots, rounded up to a power of two
+	 * @param now the current time in milliseconds
+	 */
+	public TimingWheel(long tickMillis, int slots, long now) {
+		int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		this.tickMillis = tickMillis;
+		this.mask = size - 1;
+		this.heads = new int[size];
+		Arrays.fill(heads, NONE);
+		this.currentTick = now / tickMillis;
+		ensureCapacity(16);
+	}
+	
+	/**
+	 * Schedules or moves the deadline of a node
+	 * @param id the id of the node, ids are expected to be small and dense
+	 * @param deadline the time in milliseconds at which the node expires
+	 */
+	public void schedule(int id, long deadline) {
+		if(id < 0) {
+			return;
+		}
+		ensureCapacity(id + 1);
+		cancel(id);
+		// A deadline already passed is placed in the next slot so it fires on the next advance
+		long tick = Math.max(deadline / tickMillis, currentTick + 1);
+		int slot = (int) (tick & mask);
+		deadlines[id] = deadline;
+		slotOf[id] = slot;
+		previous[id] = NONE;
+		next[id] = heads[slot];
+		if(heads[slot] != NONE) {
+			previous[heads[slot]] = id;
+		}
+		heads[slot] = id;
+		scheduled++;
+	}
+	
+	/**
+	 * Removes the deadline of a node
+	 * @param id the id of the node
+	 */
+	public void cancel(int id) {
+		if(!isScheduled(id)) {
+			return;
+		}
+		int slot = slotOf[id];
+		if(previous[id] != NONE) {
+			next[previous[id]] = next[id];
+		}
+		else {
+			heads[slot] = next[id];
+		}
+		if(next[id] != NONE) {
+			previous[next[id]] = previous[id];
+		}
+		slotOf[id] = NONE;
+		scheduled--;
+	}
+	
+	/**
+	 * Determines if a node has a deadline in the wheel
+	 * @param id the id of the node
+	 * @return true if the node is scheduled
+	 */
+	public boolean isScheduled(int id) {
+		return id >= 0 && id < slotOf.length && slotOf[id] != NONE;
+	}
+	
+	/**
+	 * Getter for the deadline of a node
+	 * @param id the id of the node
+	 * @return the scheduled deadline in milliseconds, or -1 if the node is not scheduled
+	 */
+	public long getDeadline(int id) {
+		return isScheduled(id) ? deadlines[id] : -1;
+	}
+	
+	/**
+	 * Getter for the number of scheduled nodes
+	 * @return the number of nodes with a deadline in the wheel
+	 */
+	public int getScheduled() {
+		return this.scheduled;
+	}
+	
+	/**
+	 * Moves the wheel forward to the current time and hands every node whose deadline has passed 
+	 * to the expiry callback
+	 * @param now the current time in milliseconds
+	 * @param expiry the callback deciding what happens to each expired node
+	 * @return the number of nodes that expired and were not rescheduled
+	 */
+	public int advance(long now, Expiry expiry) {
+		long nowTick = now / tickMillis;
+		if(nowTick <= currentTick) {
+			return 0;
+		}
+		// A wheel that fell more than a turn behind only needs each slot visited once
+		long ticks = Math.min(nowTick - currentTick, heads.length);
+		int expired = 0;
+		for(long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+			int slot = (int) (tick & mask);
+			int id = heads[slot];
+			while(id != NONE) {
+				int following = next[id];
+				if(deadlines[id] / tickMillis <= nowTick) {
+					cancel(id);
+					long deadline = expiry.expired(id, now);
+					if(deadline >= 0) {
+						currentTick = nowTick;
+						schedule(id, deadline);
+					}
+					else {
+						expired++;
+					}
+				}
+				id = following;
+			}
+		}
+		currentTick = nowTick;
+		return expired;
+	}
+	
+	/**
+	 * Grows the per node arrays so they can hold an id
+	 * @param capacity the number of ids the arrays must hold
+	 */
+	private void ensureCapacity(int capacity) {
+		if(slotOf != null && capacity <= slotOf.length) {
+			return;
+		}
+		int size = (slotOf == null) ? capacity : Math.max(capacity, slotOf.length * 2);
+		int oldSize = (slotOf == null) ? 0 : slotOf.length;
+		next = (next == null) ? new int[size] : Arrays.copyOf(next, size);
+		previous = (previous == null) ? new int[size] : Arrays.copyOf(previous, size);
+		deadlines = (deadlines == null) ? new long[size] : Arrays.copyOf(deadlines, size);
+		slotOf = (slotOf == null) ? new int[size] : Arrays.copyOf(slotOf, size);
+		Arrays.fill(slotOf, oldSize, size, NONE);
+	}
+}
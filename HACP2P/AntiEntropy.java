@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Repairs the differences between two peers' cluster-wide availability tables by comparing the
+ * digests of their hash trees instead of the tables. Each pulse a peer sends the root digest of its
+ * tree to one other live peer, taken in a shuffled round robin order. A peer whose root matches has
+ * nothing to send back, so two peers that agree exchange a single 32-byte digest. Otherwise the
+ * children of each mismatched node are sent back and compared in turn, a level at a time, until the
+ * mismatched leaves are found, and only the records of those buckets are sent. The peer receiving
+ * them merges them and sends its own records for the same buckets back, so both sides end up with
+ * the larger register of each pair.
+ * <p>
+ * Every message is | Header (4) | Session (4) | Sender Id (4) | Level (1) | Count (2) | followed by
+ * digests of the form | Index (4) | Digest (32) |, or for records the level byte is 1 if the records
+ * should be answered and the items are availability table entries of the form | Id (4) | Availability (4) |
+ * @author Sam Dodson
+ *
+ */
+public class AntiEntropy {
+	static final byte CODE_DIGEST = 10;
+	static final byte CODE_RECORDS = 11;
+	static final int MAX_DATAGRAM_SIZE = 1200;
+	static final int OFFSET_SESSION = PacketCodec.HEADER_SIZE;
+	static final int OFFSET_SENDER = PacketCodec.HEADER_SIZE + 4;
+	static final int OFFSET_LEVEL = PacketCodec.HEADER_SIZE + 8;
+	static final int OFFSET_COUNT = PacketCodec.HEADER_SIZE + 9;
+	static final int OFFSET_ITEMS = PacketCodec.HEADER_SIZE + 11;
+	static final int DIGEST_ITEM_SIZE = 4 + MerkleTree.DIGEST_SIZE;
+	static final int DEFAULT_PULSES = 1;
+	private final byte version;
+	private final byte mode;
+	private final int selfId;
+	private final ArrayList<PeerData> members;
+	private final AvailabilityCrdt crdt;
+	private final DatagramSocket socket;
+	private final int[] mismatched;
+	private final ArrayList<Integer> exchangeOrder = new ArrayList<>();
+	private int exchangeIndex = 0;
+	private int session = 0;
+	private long exchanges = 0;
+	private long bytesSent = 0;
+	private long bucketsSent = 0;
+	private final Random random = new Random();
+	private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+	private final DatagramPacket sendPacket = new DatagramPacket(sendBuffer.array(), 0);
+	
+	/**
+	 * Constructor for the AntiEntropy class
+	 * @param version the version of the protocol
+	 * @param mode the peer to peer mode byte
+	 * @param selfId the id of this peer
+	 * @param members every peer in the cluster indexed by id, including this one
+	 * @param crdt the availability table to repair
+	 * @param socket the socket messages are sent from
+	 */
+	public AntiEntropy(byte version, byte mode, int selfId, ArrayList<PeerData> members, AvailabilityCrdt crdt, DatagramSocket socket) {
+		this.version = version;
+		this.mode = mode;
+		this.selfId = selfId;
+		this.members = members;
+		this.crdt = crdt;
+		this.socket = socket;
+		this.mismatched = new int[(MAX_DATAGRAM_SIZE - OFFSET_ITEMS) / DIGEST_ITEM_SIZE];
+		for(int id = 0; id < members.size(); id++) {
+			if(id != selfId) {
+				exchangeOrder.add(id);
+			}
+		}
+		Collections.shuffle(exchangeOrder, random);
+	}
+	
+	/**
+	 * Gives the number of pulses between exchanges, configured through the hac.antiEntropyPulses
+	 * system property
+	 * @return the number of pulses between exchanges, or 0 if anti-entropy is turned off
+	 */
+	public static int pulsesFromSystemProperties() {
+		return Math.max(0, Integer.getInteger("hac.antiEntropyPulses", DEFAULT_PULSES));
+	}
+	
+	/**
+	 * Determines if a packet code belongs to this protocol
+	 * @param code the code of a received packet
+	 * @return true for digest and record packets
+	 */
+	static boolean isAntiEntropyCode(byte code) {
+		return code == CODE_DIGEST || code == CODE_RECORDS;
+	}
+	
+	/**
+	 * Starts an exchange by sending the root digest to the next live peer
+	 */
+	public synchronized void exchange() {
+		int to = nextPeer();
+		if(to < 0) {
+			return;
+		}
+		session++;
+		exchanges++;
+		startMessage(CODE_DIGEST, session, (byte) 0);
+		synchronized(crdt) {
+			MerkleTree tree = crdt.refreshTree();
+			sendBuffer.putInt(0);
+			tree.writeDigest(sendBuffer, 0, 0);
+		}
+		send(to, 1);
+	}
+	
+	/**
+	 * Handles a received digest or record packet in place
+	 * @param buffer the buffer holding the packet
+	 */
+	public synchronized void handle(ByteBuffer buffer) {
+		int start = buffer.position();
+		if(buffer.remaining() < OFFSET_ITEMS) {
+			return;
+		}
+		byte code = PacketCodec.peekCode(buffer);
+		int seq = buffer.getInt(start + OFFSET_SESSION);
+		int sender = buffer.getInt(start + OFFSET_SENDER);
+		int level = buffer.get(start + OFFSET_LEVEL) & 0xFF;
+		int count = buffer.getShort(start + OFFSET_COUNT) & 0xFFFF;
+		if(sender < 0 || sender >= members.size() || sender == selfId) {
+			return;
+		}
+		if(code == CODE_DIGEST) {
+			if(buffer.remaining() < OFFSET_ITEMS + count * DIGEST_ITEM_SIZE) {
+				return;
+			}
+			handleDigests(buffer, start, seq, sender, level, count);
+		}
+		else if(code == CODE_RECORDS) {
+			// Records are in the same form as the entries of an availability packet so they merge in place
+			if(crdt.merge(buffer, start + OFFSET_COUNT) < 0 || level == 0) {
+				return;
+			}
+			sendRecords(sender, seq, buffer, start, count);
+		}
+	}
+	
+	/**
+	 * Compares received digests with this peer's tree and answers the mismatched nodes, with their
+	 * children's digests above the leaves and with the buckets' records at the leaves
+	 * @param buffer the buffer holding the packet
+	 * @param start the absolute offset of the packet
+	 * @param seq the session of the exchange
+	 * @param sender the id of the peer that sent the digests
+	 * @param level the level of the tree the digests belong to
+	 * @param count the number of digests
+	 */
+	private void handleDigests(ByteBuffer buffer, int start, int seq, int sender, int level, int count) {
+		int found = 0;
+		synchronized(crdt) {
+			MerkleTree tree = crdt.refreshTree();
+			if(level >= tree.getLevels()) {
+				return;
+			}
+			for(int item = 0; item < count && found < mismatched.length; item++) {
+				int offset = start + OFFSET_ITEMS + item * DIGEST_ITEM_SIZE;
+				int index = buffer.getInt(offset);
+				if(index >= 0 && index < tree.getNodeCount(level) && !tree.matches(level, index, buffer, offset + 4)) {
+					mismatched[found++] = index;
+				}
+			}
+			if(found == 0) {
+				return;
+			}
+			if(level == tree.getLevels() - 1) {
+				sendBuckets(sender, seq, found);
+				return;
+			}
+			
+			// The children of every mismatched node are sent, over as many packets as they need
+			int items = 0;
+			startMessage(CODE_DIGEST, seq, (byte) (level + 1));
+			for(int node = 0; node < found; node++) {
+				for(int child = tree.getFirstChild(mismatched[node]); child < tree.getChildEnd(level, mismatched[node]); child++) {
+					if(sendBuffer.remaining() < DIGEST_ITEM_SIZE) {
+						send(sender, items);
+						items = 0;
+						startMessage(CODE_DIGEST, seq, (byte) (level + 1));
+					}
+					sendBuffer.putInt(child);
+					tree.writeDigest(sendBuffer, level + 1, child);
+					items++;
+				}
+			}
+			send(sender, items);
+		}
+	}
+	
+	/**
+	 * Sends this peer's records for the mismatched buckets and asks for the sender's in return
+	 * @param to the id of the peer to send to
+	 * @param seq the session of the exchange
+	 * @param found the number of mismatched buckets
+	 */
+	private void sendBuckets(int to, int seq, int found) {
+		int items = 0;
+		int bucketBytes = crdt.refreshTree().getBucketSize() * AvailabilityCrdt.ENTRY_SIZE;
+		startMessage(CODE_RECORDS, seq, (byte) 1);
+		for(int node = 0; node < found; node++) {
+			if(sendBuffer.remaining() < bucketBytes) {
+				send(to, items);
+				items = 0;
+				startMessage(CODE_RECORDS, seq, (byte) 1);
+			}
+			items += crdt.writeBucket(sendBuffer, mismatched[node]);
+			bucketsSent++;
+		}
+		send(to, items);
+	}
+	
+	/**
+	 * Answers received records with this peer's records for the same buckets
+	 * @param to the id of the peer to send to
+	 * @param seq the session of the exchange
+	 * @param buffer the buffer holding the received records
+	 * @param start the absolute offset of the packet
+	 * @param count the number of records received
+	 */
+	private void sendRecords(int to, int seq, ByteBuffer buffer, int start, int count) {
+		// Buckets are written whole and in order, so each new bucket shows up as a change of bucket
+		int bucketSize = crdt.refreshTree().getBucketSize();
+		int found = 0;
+		int last = -1;
+		for(int item = 0; item < count && found < mismatched.length; item++) {
+			int bucket = buffer.getInt(start + OFFSET_ITEMS + item * AvailabilityCrdt.ENTRY_SIZE) / bucketSize;
+			if(bucket != last && bucket >= 0) {
+				mismatched[found++] = bucket;
+				last = bucket;
+			}
+		}
+		if(found == 0) {
+			return;
+		}
+		int items = 0;
+		startMessage(CODE_RECORDS, seq, (byte) 0);
+		for(int node = 0; node < found; node++) {
+			if(sendBuffer.remaining() < bucketSize * AvailabilityCrdt.ENTRY_SIZE) {
+				send(to, items);
+				items = 0;
+				startMessage(CODE_RECORDS, seq, (byte) 0);
+			}
+			items += crdt.writeBucket(sendBuffer, mismatched[node]);
+			bucketsSent++;
+		}
+		send(to, items);
+	}
+	
+	/**
+	 * Clears the send buffer and writes the fields every message starts with, leaving the count at 0
+	 * @param code the type of message
+	 * @param seq the session of the exchange
+	 * @param level the level of the digests, or the reply flag of records
+	 */
+	private void startMessage(byte code, int seq, byte level) {
+		sendBuffer.clear();
+		PacketCodec.writeHeader(sendBuffer, version, mode, code, PacketData.FLAG_LAST_PACKET);
+		sendBuffer.putInt(seq);
+		sendBuffer.putInt(selfId);
+		sendBuffer.put(level);
+		sendBuffer.putShort((short) 0);
+	}
+	
+	/**
+	 * Fills in the item count and sends the message in the send buffer
+	 * @param to the id of the peer to send to
+	 * @param items the number of items written after the fixed fields
+	 */
+	private void send(int to, int items) {
+		sendBuffer.putShort(OFFSET_COUNT, (short) items);
+		PeerData peer = members.get(to);
+		sendPacket.setData(sendBuffer.array(), 0, sendBuffer.position());
+		sendPacket.setAddress(peer.getAddress());
+		sendPacket.setPort(peer.getPort());
+		try {
+			socket.send(sendPacket);
+			bytesSent += sendBuffer.position();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Picks the next peer to exchange with, reshuffling the order after each full round
+	 * @return the id of the next peer that is not dead, or -1 if there is none
+	 */
+	private int nextPeer() {
+		for(int tried = 0; tried < exchangeOrder.size(); tried++) {
+			if(exchangeIndex >= exchangeOrder.size()) {
+				Collections.shuffle(exchangeOrder, random);
+				exchangeIndex = 0;
+			}
+			int id = exchangeOrder.get(exchangeIndex++);
+			if(members.get(id).getStatus() == false) {
+				return id;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Getter for the number of exchanges this peer has started
+	 * @return the exchanges started since the protocol started
+	 */
+	public synchronized long getExchanges() {
+		return this.exchanges;
+	}
+	
+	/**
+	 * Getter for the number of bytes this peer has sent
+	 * @return the bytes of digests and records sent since the protocol started
+	 */
+	public synchronized long getBytesSent() {
+		return this.bytesSent;
+	}
+	
+	/**
+	 * Getter for the number of buckets whose records this peer has sent
+	 * @return the buckets sent since the protocol started
+	 */
+	public synchronized long getBucketsSent() {
+		return this.bucketsSent;
+	}
+}
@@ -0,0 +1,215 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The cluster-wide view of every peer's availability, kept as a state-based CRDT so peers converge
+ * on the same counts without a coordinator. Each peer id has a max-register holding the highest
+ * availability any other peer has counted for it: a peer raises the registers of the peers it hears from,
+ * and merging another peer's registers takes the larger of each pair, which is commutative,
+ * associative and idempotent so duplicated, reordered or lost packets never make views diverge.
+ * Raised registers are queued as dirty and carried in AP packets as | Entry Count (2) | followed by
+ * entries of the form | Id (4) | Availability (4) |, at most a fixed number per packet, so merging a
+ * packet costs O(entries carried) and reads them in place without allocating. Registers raised by
+ * a merge are queued again so values spread to peers that did not hear them first, and a few more
+ * entries taken in turn from the whole table ride along in each packet so a lost entry is
+ * eventually resent even once its register stops changing. A MerkleTree over the registers lets
+ * AntiEntropy find and repair the buckets two peers disagree on without comparing whole tables.
+ * @author Sam Dodson
+ *
+ */
+public class AvailabilityCrdt {
+	static final int DEFAULT_MAX_ENTRIES = 128;
+	static final int DEFAULT_REFRESH_ENTRIES = 0;
+	static final int ENTRY_SIZE = 8;
+	// The entries follow the header, a peer record with up to a 16-byte address and the entry count
+	static final int MAX_PACKET_ENTRIES = (BufferPool.DEFAULT_BUFFER_SIZE - PacketCodec.OFFSET_DATA - PacketCodec.PEER_RECORD_SIZE - 16 - 2) / ENTRY_SIZE;
+	private final int[] values;
+	private final boolean[] dirty;
+	private final int[] queue;
+	private int head = 0;
+	private int queued = 0;
+	private int cursor = 0;
+	private final MerkleTree tree;
+	
+	/**
+	 * Constructor for the AvailabilityCrdt class
+	 * @param capacity the number of peer ids the table covers, ids run from 0 to capacity - 1
+	 * @param bucketSize the number of consecutive ids in each leaf of the hash tree
+	 */
+	public AvailabilityCrdt(int capacity, int bucketSize) {
+		this.values = new int[capacity];
+		this.dirty = new boolean[capacity];
+		this.queue = new int[capacity];
+		this.tree = new MerkleTree(capacity, bucketSize);
+	}
+	
+	/**
+	 * Gives the number of dirty entries carried per packet, configured through the hac.crdtEntries system property
+	 * @return the largest number of dirty entries written into one packet
+	 */
+	public static int maxEntriesFromSystemProperties() {
+		return entriesFromSystemProperty("hac.crdtEntries", DEFAULT_MAX_ENTRIES);
+	}
+	
+	/**
+	 * Gives the number of entries from the whole table carried per packet, configured through the 
+	 * hac.crdtRefresh system property
+	 * @return the number of entries resent in turn in each packet
+	 */
+	public static int refreshEntriesFromSystemProperties() {
+		return entriesFromSystemProperty("hac.crdtRefresh", DEFAULT_REFRESH_ENTRIES);
+	}
+	
+	/**
+	 * Reads a number of entries per packet from a system property, capped so that a packet carrying 
+	 * them fits in the buffers peers receive into
+	 * @param name the name of the system property
+	 * @param defaultEntries the number of entries if the property is not set
+	 * @return the number of entries, between 0 and MAX_PACKET_ENTRIES
+	 */
+	static int entriesFromSystemProperty(String name, int defaultEntries) {
+		int entries = Integer.getInteger(name, defaultEntries);
+		if(entries > MAX_PACKET_ENTRIES) {
+			System.out.println("Capping " + name + " at " + MAX_PACKET_ENTRIES + " entries so AP packets fit in " + BufferPool.DEFAULT_BUFFER_SIZE + " bytes");
+			return MAX_PACKET_ENTRIES;
+		}
+		return Math.max(0, entries);
+	}
+	
+	/**
+	 * Raises a peer's register to an availability this peer counted itself
+	 * @param id the id of the peer
+	 * @param availability the availability counted for the peer
+	 * @return true if the register was raised
+	 */
+	public synchronized boolean update(int id, int availability) {
+		return raise(id, availability);
+	}
+	
+	/**
+	 * Raises a register and queues it as dirty if it is not already queued
+	 * @param id the id of the peer
+	 * @param availability the new availability
+	 * @return true if the register was raised
+	 */
+	private boolean raise(int id, int availability) {
+		if(id < 0 || id >= values.length || availability <= values[id]) {
+			return false;
+		}
+		values[id] = availability;
+		tree.invalidate(id);
+		if(!dirty[id]) {
+			dirty[id] = true;
+			queue[(head + queued) % queue.length] = id;
+			queued++;
+		}
+		return true;
+	}
+	
+	/**
+	 * Merges the entries carried in a packet, reading them in place
+	 * @param in the buffer holding the packet, its position and limit are left unchanged
+	 * @param offset the absolute offset of the entry count
+	 * @return the number of registers raised, or -1 if the entries run past the end of the packet
+	 */
+	public synchronized int merge(ByteBuffer in, int offset) {
+		if(offset < 0 || offset + 2 > in.limit()) {
+			return 0;
+		}
+		int count = in.getShort(offset) & 0xFFFF;
+		int position = offset + 2;
+		if(position + count * ENTRY_SIZE > in.limit()) {
+			return -1;
+		}
+		int raised = 0;
+		for(int entry = 0; entry < count; entry++) {
+			if(raise(in.getInt(position), in.getInt(position + 4))) {
+				raised++;
+			}
+			position += ENTRY_SIZE;
+		}
+		return raised;
+	}
+	
+	/**
+	 * Writes the dirty registers, oldest first, into a packet at the buffer's position followed by 
+	 * registers taken in turn from the whole table, as many as fit before the buffer's limit
+	 * @param out the buffer to write to
+	 * @param maxEntries the largest number of dirty entries to write
+	 * @param refreshEntries the number of entries from the whole table to write after them
+	 * @return the number of entries written
+	 */
+	public synchronized int writeDelta(ByteBuffer out, int maxEntries, int refreshEntries) {
+		int room = Math.max(0, (out.remaining() - 2) / ENTRY_SIZE);
+		int fromQueue = Math.min(queued, Math.min(maxEntries, room));
+		int fromTable = Math.min(values.length, Math.min(refreshEntries, room - fromQueue));
+		out.putShort((short) (fromQueue + fromTable));
+		for(int entry = 0; entry < fromQueue; entry++) {
+			int id = queue[head];
+			head = (head + 1) % queue.length;
+			queued--;
+			dirty[id] = false;
+			out.putInt(id);
+			out.putInt(values[id]);
+		}
+		for(int entry = 0; entry < fromTable; entry++) {
+			out.putInt(cursor);
+			out.putInt(values[cursor]);
+			cursor = (cursor + 1) % values.length;
+		}
+		return fromQueue + fromTable;
+	}
+	
+	/**
+	 * Rehashes the parts of the hash tree whose registers changed. The tree may only be read while 
+	 * holding this table's lock, since merges change it.
+	 * @return the hash tree over the registers
+	 */
+	public synchronized MerkleTree refreshTree() {
+		tree.refresh(values);
+		return tree;
+	}
+	
+	/**
+	 * Writes the entries of every id in one bucket of the hash tree at the buffer's position
+	 * @param out the buffer to write to
+	 * @param bucket the index of the leaf
+	 * @return the number of entries written
+	 */
+	public synchronized int writeBucket(ByteBuffer out, int bucket) {
+		int first = bucket * tree.getBucketSize();
+		int end = Math.min(first + tree.getBucketSize(), values.length);
+		for(int id = first; id < end; id++) {
+			out.putInt(id);
+			out.putInt(values[id]);
+		}
+		return Math.max(0, end - first);
+	}
+	
+	/**
+	 * Getter for a peer's cluster-wide availability
+	 * @param id the id of the peer
+	 * @return the highest availability any peer has counted for it, or 0 if the id is out of range
+	 */
+	public synchronized int get(int id) {
+		if(id < 0 || id >= values.length) {
+			return 0;
+		}
+		return values[id];
+	}
+	
+	/**
+	 * Getter for the number of dirty registers
+	 * @return the number of registers raised since they were last sent
+	 */
+	public synchronized int getDirtyCount() {
+		return this.queued;
+	}
+	
+	/**
+	 * Getter for the number of peer ids covered
+	 * @return the capacity of the table
+	 */
+	public int getCapacity() {
+		return this.values.length;
+	}
+}
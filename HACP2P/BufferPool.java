@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A fixed-size pool of direct buffers that datagrams are received into. Buffers are handed back
+ * after a packet has been parsed so the receive path does not allocate per packet.
+ * @author Sam Dodson
+ *
+ */
+public class BufferPool {
+	static final int DEFAULT_POOL_SIZE = 16;
+	static final int DEFAULT_BUFFER_SIZE = 2048;
+	private final ArrayBlockingQueue<ByteBuffer> buffers;
+	private final int bufferSize;
+	private volatile long misses = 0;
+	
+	/**
+	 * Constructor for the BufferPool class, allocates every buffer up front
+	 * @param poolSize the number of buffers kept in the pool
+	 * @param bufferSize the capacity of each buffer in bytes
+	 */
+	public BufferPool(int poolSize, int bufferSize) {
+		this.buffers = new ArrayBlockingQueue<>(poolSize);
+		this.bufferSize = bufferSize;
+		for(int index = 0; index < poolSize; index++) {
+			buffers.offer(ByteBuffer.allocateDirect(bufferSize));
+		}
+	}
+	
+	/**
+	 * Takes a cleared buffer from the pool. A new buffer is allocated only if every pooled buffer is in use.
+	 * @return a buffer ready to receive into
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if(buffer == null) {
+			misses++;
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Returns a buffer to the pool, it is dropped if the pool is already full
+	 * @param buffer the buffer that is no longer in use
+	 */
+	public void release(ByteBuffer buffer) {
+		buffers.offer(buffer);
+	}
+	
+	/**
+	 * Getter for the number of buffers currently in the pool
+	 * @return the number of idle buffers
+	 */
+	public int getAvailable() {
+		return buffers.size();
+	}
+	
+	/**
+	 * Getter for the number of times the pool was empty and a buffer had to be allocated
+	 * @return the number of allocations made past the pool size
+	 */
+	public long getMisses() {
+		return this.misses;
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * A failure detector with a fixed timeout, a node is considered failed once it has gone the 
+ * timeout without a heartbeat
+ * @author Sam Dodson
+ *
+ */
+public class DeadlineDetector implements FailureDetector {
+	private final long timeout;
+	private volatile ArrivalWindow[] windows = new ArrivalWindow[16];
+	
+	/**
+	 * Constructor for the DeadlineDetector class
+	 * @param timeout the time in milliseconds a node may go without a heartbeat
+	 */
+	public DeadlineDetector(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Records a heartbeat from a node
+	 * @param id the id of the node
+	 * @param now the time in milliseconds the heartbeat arrived
+	 */
+	@Override
+	public void heartbeat(int id, long now) {
+		if(id < 0) {
+			return;
+		}
+		ArrivalWindow[] current = windows;
+		ArrivalWindow window = (id < current.length) ? current[id] : null;
+		if(window == null) {
+			window = createWindow(id);
+		}
+		window.record(now);
+	}
+	
+	/**
+	 * Drops the node's window so an id handed to a new node starts without its intervals
+	 * @param id the id of the node
+	 */
+	@Override
+	public synchronized void forget(int id) {
+		ArrivalWindow[] current = windows;
+		if(id >= 0 && id < current.length) {
+			current[id] = null;
+		}
+	}
+	
+	/**
+	 * Creates the window for a node the first time it is heard from, growing the table if needed.
+	 * Only the last heartbeat is needed so each window holds a single interval.
+	 * @param id the id of the node
+	 * @return the node's window
+	 */
+	private synchronized ArrivalWindow createWindow(int id) {
+		ArrivalWindow[] current = windows;
+		if(id >= current.length) {
+			ArrivalWindow[] grown = new ArrivalWindow[Math.max(id + 1, current.length * 2)];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			current = grown;
+		}
+		if(current[id] == null) {
+			current[id] = new ArrivalWindow(1);
+		}
+		windows = current;
+		return current[id];
+	}
+	
+	/**
+	 * Gives the time at which a node's timeout runs out
+	 * @param id the id of the node
+	 * @return the deadline in milliseconds, or -1 if the node has never been heard from
+	 */
+	@Override
+	public long getDeadline(int id) {
+		ArrivalWindow[] current = windows;
+		if(id < 0 || id >= current.length || current[id] == null) {
+			return -1;
+		}
+		return current[id].getLast() + timeout;
+	}
+	
+	/**
+	 * Gives the fraction of the timeout that has passed since a node's last heartbeat
+	 * @param id the id of the node
+	 * @param now the current time in milliseconds
+	 * @return the time since the last heartbeat divided by the timeout, 0 if never heard from
+	 */
+	@Override
+	public double getSuspicion(int id, long now) {
+		long deadline = getDeadline(id);
+		if(deadline < 0) {
+			return 0;
+		}
+		return Math.max(0, now - (deadline - timeout)) / (double) timeout;
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * The heartbeat timing shared by every node in the cluster. The interval is the time between 
+ * heartbeats, the jitter is the most each heartbeat may be randomly delayed past its slot so nodes 
+ * do not send in lockstep, and the timeout is how long a node may go unheard before it is suspected.
+ * Each is read in milliseconds from the hac.heartbeatInterval, hac.heartbeatJitter and 
+ * hac.heartbeatTimeout system properties, and intervals down to 100 milliseconds are supported.
+ * @author Sam Dodson
+ *
+ */
+public class HeartbeatConfig {
+	static final long DEFAULT_INTERVAL = 30 * 1000;
+	private final long interval;
+	private final long jitter;
+	private final long timeout;
+	
+	/**
+	 * Constructor for the HeartbeatConfig class
+	 * @param interval the time in milliseconds between heartbeats
+	 * @param jitter the most in milliseconds a heartbeat may be delayed past its slot
+	 * @param timeout the time in milliseconds a node may go unheard before it is suspected
+	 */
+	public HeartbeatConfig(long interval, long jitter, long timeout) {
+		if(interval <= 0 || jitter < 0 || jitter >= interval || timeout <= interval) {
+			throw new IllegalArgumentException("Heartbeat jitter must be less than the interval and the timeout more than it");
+		}
+		this.interval = interval;
+		this.jitter = jitter;
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Creates the heartbeat timing from system properties. The jitter defaults to a tenth of the 
+	 * interval and the timeout to the interval plus a sixth of it.
+	 * @return the configured heartbeat timing
+	 */
+	public static HeartbeatConfig fromSystemProperties() {
+		long interval = Long.getLong("hac.heartbeatInterval", DEFAULT_INTERVAL);
+		long jitter = Long.getLong("hac.heartbeatJitter", interval / 10);
+		long timeout = Long.getLong("hac.heartbeatTimeout", interval + interval / 6);
+		return new HeartbeatConfig(interval, jitter, timeout);
+	}
+	
+	/**
+	 * Getter for the interval
+	 * @return the time in milliseconds between heartbeats
+	 */
+	public long getInterval() {
+		return this.interval;
+	}
+	
+	/**
+	 * Getter for the jitter
+	 * @return the most in milliseconds a heartbeat may be delayed past its slot
+	 */
+	public long getJitter() {
+		return this.jitter;
+	}
+	
+	/**
+	 * Getter for the timeout
+	 * @return the time in milliseconds a node may go unheard before it is suspected
+	 */
+	public long getTimeout() {
+		return this.timeout;
+	}
+	
+	/**
+	 * Getter for the grace period
+	 * @return the time in milliseconds a heartbeat may be late before its node is suspected
+	 */
+	public long getGrace() {
+		return this.timeout - this.interval;
+	}
+	
+	/**
+	 * Gives the tick for a timing wheel tracking these heartbeats, fine enough that a missed deadline 
+	 * is noticed well within one interval. Read from hac.wheelTick if it is set.
+	 * @return the wheel tick in milliseconds
+	 */
+	public long getWheelTick() {
+		long tick = Math.min(TimingWheel.DEFAULT_TICK, Math.max(1, interval / 4));
+		return Long.getLong("hac.wheelTick", tick);
+	}
+}
@@ -0,0 +1,155 @@
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a node's periodic work on a single scheduler thread. Heartbeats are placed on a fixed 
+ * timeline of slots one interval apart and each is delayed by a fresh random jitter within its 
+ * slot, so the jitter never accumulates and the rate does not drift however long the node runs. 
+ * A heartbeat that runs so late that whole slots have passed skips them rather than sending a burst. 
+ * Other periodic tasks given to the scheduler run on the same thread, so they never race the heartbeat.
+ * @author Sam Dodson
+ *
+ */
+public class HeartbeatScheduler {
+	private final ScheduledExecutorService executor;
+	private final long intervalNanos;
+	private final long jitterNanos;
+	private final Random random = new Random();
+	private Runnable heartbeat;
+	private long start;
+	private long beat;
+	private volatile ScheduledFuture<?> next = null;
+	private volatile boolean running = false;
+	private final Runnable fire = new Runnable() {
+		@Override
+		public void run() {
+			beat();
+		}
+	};
+	
+	/**
+	 * Constructor for the HeartbeatScheduler class
+	 * @param name the name of the scheduler thread
+	 * @param config the interval and jitter of the heartbeat
+	 */
+	public HeartbeatScheduler(String name, HeartbeatConfig config) {
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getInterval());
+		this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(config.getJitter());
+	}
+	
+	/**
+	 * Starts sending heartbeats, the first one is sent one interval from now
+	 * @param heartbeat the work done on each heartbeat
+	 */
+	public synchronized void start(Runnable heartbeat) {
+		if(running) {
+			return;
+		}
+		this.heartbeat = heartbeat;
+		this.start = System.nanoTime();
+		this.beat = 0;
+		this.running = true;
+		scheduleNext();
+	}
+	
+	/**
+	 * Stops sending heartbeats, other periodic tasks keep running
+	 */
+	public synchronized void stop() {
+		running = false;
+		if(next != null) {
+			next.cancel(false);
+		}
+	}
+	
+	/**
+	 * Runs a task at a fixed rate on the scheduler thread
+	 * @param task the task to run
+	 * @param period the time in milliseconds between runs, the first run is one period from now
+	 */
+	public void scheduleAtFixedRate(Runnable task, long period) {
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				// An exception would silently cancel every later run so it is reported instead
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Runs a task once on the scheduler thread
+	 * @param task the task to run
+	 * @param delay the time in milliseconds to wait before running it
+	 */
+	public void schedule(Runnable task, long delay) {
+		executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Determines if heartbeats are being sent
+	 * @return true if the scheduler was started and not stopped
+	 */
+	public boolean isRunning() {
+		return this.running;
+	}
+	
+	/**
+	 * Stops the scheduler thread and every task on it
+	 */
+	public void shutdown() {
+		stop();
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Runs one heartbeat and schedules the next
+	 */
+	private void beat() {
+		if(!running) {
+			return;
+		}
+		try {
+			heartbeat.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		synchronized(this) {
+			if(running) {
+				scheduleNext();
+			}
+		}
+	}
+	
+	/**
+	 * Schedules the next heartbeat in the next slot that has not yet passed
+	 */
+	private void scheduleNext() {
+		beat++;
+		long now = System.nanoTime();
+		long slot = start + beat * intervalNanos;
+		if(slot < now) {
+			long missed = (now - slot) / intervalNanos + 1;
+			beat += missed;
+			slot += missed * intervalNanos;
+		}
+		long jitter = (jitterNanos == 0) ? 0 : (long) (random.nextDouble() * jitterNanos);
+		next = executor.schedule(fire, slot + jitter - now, TimeUnit.NANOSECONDS);
+	}
+}
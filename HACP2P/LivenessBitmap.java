@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free bitmap with one bit per peer id recording which peers have reported in since the 
+ * last pulse. Workers set bits concurrently with a compare-and-set and the pulse reads and clears 
+ * the whole bitmap in one pass, one atomic swap per 64 peers.
+ * @author Sam Dodson
+ *
+ */
+public class LivenessBitmap {
+	private final AtomicLongArray words;
+	private final int capacity;
+	
+	/**
+	 * Constructor for the LivenessBitmap class
+	 * @param capacity the number of peer ids the bitmap covers, ids run from 0 to capacity - 1
+	 */
+	public LivenessBitmap(int capacity) {
+		this.capacity = capacity;
+		this.words = new AtomicLongArray((capacity + 63) >>> 6);
+	}
+	
+	/**
+	 * Sets the bit for a peer without locking or allocating
+	 * @param id the id of the peer that reported in
+	 * @return true if the bit was newly set, false if it was already set or the id is out of range
+	 */
+	public boolean set(int id) {
+		if(id < 0 || id >= capacity) {
+			return false;
+		}
+		int word = id >>> 6;
+		long bit = 1L << (id & 63);
+		long current = words.get(word);
+		while((current & bit) == 0) {
+			if(words.compareAndSet(word, current, current | bit)) {
+				return true;
+			}
+			current = words.get(word);
+		}
+		return false;
+	}
+	
+	/**
+	 * Reads the bit for a peer without clearing it
+	 * @param id the id of the peer
+	 * @return true if the peer has reported in since the bitmap was last drained
+	 */
+	public boolean get(int id) {
+		if(id < 0 || id >= capacity) {
+			return false;
+		}
+		return (words.get(id >>> 6) & (1L << (id & 63))) != 0;
+	}
+	
+	/**
+	 * Copies the bitmap into an array and clears it. Each word is swapped atomically so a bit set 
+	 * while draining lands either in this drain or the next one, never in neither.
+	 * @param into the array to copy the words into, at least getWordCount() long
+	 */
+	public void drain(long[] into) {
+		for(int word = 0; word < words.length(); word++) {
+			into[word] = words.getAndSet(word, 0L);
+		}
+	}
+	
+	/**
+	 * Reads a peer's bit from an array filled by drain
+	 * @param drained the words copied out of the bitmap
+	 * @param id the id of the peer
+	 * @return true if the peer's bit was set when the bitmap was drained
+	 */
+	public static boolean isSet(long[] drained, int id) {
+		return id >= 0 && (id >>> 6) < drained.length && (drained[id >>> 6] & (1L << (id & 63))) != 0;
+	}
+	
+	/**
+	 * Getter for the number of 64-bit words backing the bitmap
+	 * @return the length of array drain needs
+	 */
+	public int getWordCount() {
+		return words.length();
+	}
+	
+	/**
+	 * Getter for the number of peer ids the bitmap covers
+	 * @return the capacity of the bitmap
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+}
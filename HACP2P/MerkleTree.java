@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A hash tree over a table of values indexed by peer id, used to find which parts of two peers'
+ * tables differ without sending the tables. Ids are grouped into buckets of consecutive ids, each
+ * bucket is a leaf holding the SHA-256 digest of its values, and each node above holds the digest
+ * of up to 16 children, so level 0 is the single root. Changing a value only marks its leaf and
+ * the leaf's ancestors dirty, and the next refresh rehashes just the dirty nodes.
+ * @author Sam Dodson
+ *
+ */
+public class MerkleTree {
+	static final int DIGEST_SIZE = 32;
+	static final int FANOUT = 16;
+	static final int DEFAULT_BUCKET_SIZE = 16;
+	static final int MAX_BUCKET_SIZE = 128;
+	private final int capacity;
+	private final int bucketSize;
+	private final int[] nodeCounts;
+	private final byte[][] digests;
+	private final boolean[][] dirty;
+	private final byte[] leafBytes;
+	private MessageDigest sha;
+	
+	/**
+	 * Constructor for the MerkleTree class, every node starts dirty
+	 * @param capacity the number of ids the table covers
+	 * @param bucketSize the number of consecutive ids in each leaf
+	 */
+	public MerkleTree(int capacity, int bucketSize) {
+		this.capacity = capacity;
+		this.bucketSize = Math.max(1, bucketSize);
+		
+		// Levels are sized from the leaves up and stored from the root down
+		int leaves = Math.max(1, (capacity + this.bucketSize - 1) / this.bucketSize);
+		int levels = 1;
+		for(int nodes = leaves; nodes > 1; nodes = (nodes + FANOUT - 1) / FANOUT) {
+			levels++;
+		}
+		this.nodeCounts = new int[levels];
+		int nodes = leaves;
+		for(int level = levels - 1; level >= 0; level--) {
+			nodeCounts[level] = nodes;
+			nodes = (nodes + FANOUT - 1) / FANOUT;
+		}
+		this.digests = new byte[levels][];
+		this.dirty = new boolean[levels][];
+		for(int level = 0; level < levels; level++) {
+			digests[level] = new byte[nodeCounts[level] * DIGEST_SIZE];
+			dirty[level] = new boolean[nodeCounts[level]];
+			Arrays.fill(dirty[level], true);
+		}
+		this.leafBytes = new byte[this.bucketSize * 4];
+		try {
+			this.sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Gives the bucket size configured through the hac.merkleBucket system property, at most 
+	 * MAX_BUCKET_SIZE so a bucket's records fit in one datagram
+	 * @return the number of consecutive ids in each leaf
+	 */
+	public static int bucketSizeFromSystemProperties() {
+		return Math.max(1, Math.min(MAX_BUCKET_SIZE, Integer.getInteger("hac.merkleBucket", DEFAULT_BUCKET_SIZE)));
+	}
+	
+	/**
+	 * Marks the leaf holding an id and its ancestors dirty. An ancestor of a dirty node is already
+	 * dirty, so marking stops at the first node that was.
+	 * @param id the id whose value changed
+	 */
+	public void invalidate(int id) {
+		if(id < 0 || id >= capacity) {
+			return;
+		}
+		int index = id / bucketSize;
+		for(int level = nodeCounts.length - 1; level >= 0; level--) {
+			if(dirty[level][index]) {
+				return;
+			}
+			dirty[level][index] = true;
+			index /= FANOUT;
+		}
+	}
+	
+	/**
+	 * Rehashes the dirty nodes from the leaves up
+	 * @param values the table the tree covers, indexed by id
+	 */
+	public void refresh(int[] values) {
+		int leafLevel = nodeCounts.length - 1;
+		for(int level = leafLevel; level >= 0; level--) {
+			for(int index = 0; index < nodeCounts[level]; index++) {
+				if(!dirty[level][index]) {
+					continue;
+				}
+				if(level == leafLevel) {
+					int first = index * bucketSize;
+					int end = Math.min(first + bucketSize, capacity);
+					int length = 0;
+					for(int id = first; id < end; id++) {
+						int value = values[id];
+						leafBytes[length++] = (byte) (value >>> 24);
+						leafBytes[length++] = (byte) (value >>> 16);
+						leafBytes[length++] = (byte) (value >>> 8);
+						leafBytes[length++] = (byte) value;
+					}
+					sha.update(leafBytes, 0, length);
+				}
+				else {
+					// Children are stored next to each other so their digests are hashed in place
+					int first = getFirstChild(index);
+					sha.update(digests[level + 1], first * DIGEST_SIZE, (getChildEnd(level, index) - first) * DIGEST_SIZE);
+				}
+				try {
+					sha.digest(digests[level], index * DIGEST_SIZE, DIGEST_SIZE);
+				} catch (DigestException e) {
+					e.printStackTrace();
+				}
+				dirty[level][index] = false;
+			}
+		}
+	}
+	
+	/**
+	 * Writes a node's digest into a buffer at its position
+	 * @param out the buffer to write to
+	 * @param level the level of the node, 0 for the root
+	 * @param index the index of the node within its level
+	 */
+	public void writeDigest(ByteBuffer out, int level, int index) {
+		out.put(digests[level], index * DIGEST_SIZE, DIGEST_SIZE);
+	}
+	
+	/**
+	 * Compares a node's digest with one held in a buffer, without moving the buffer's position
+	 * @param level the level of the node, 0 for the root
+	 * @param index the index of the node within its level
+	 * @param in the buffer holding the other digest
+	 * @param offset the absolute offset of the other digest
+	 * @return true if the digests are equal
+	 */
+	public boolean matches(int level, int index, ByteBuffer in, int offset) {
+		byte[] digest = digests[level];
+		int start = index * DIGEST_SIZE;
+		for(int position = 0; position < DIGEST_SIZE; position++) {
+			if(digest[start + position] != in.get(offset + position)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Gives the index of a node's first child on the level below
+	 * @param index the index of the node within its level
+	 * @return the index of its first child
+	 */
+	public int getFirstChild(int index) {
+		return index * FANOUT;
+	}
+	
+	/**
+	 * Gives the index one past a node's last child on the level below
+	 * @param level the level of the node
+	 * @param index the index of the node within its level
+	 * @return the index one past its last child
+	 */
+	public int getChildEnd(int level, int index) {
+		return Math.min(getFirstChild(index) + FANOUT, nodeCounts[level + 1]);
+	}
+	
+	/**
+	 * Getter for the number of levels
+	 * @return the number of levels, the leaves are on the last
+	 */
+	public int getLevels() {
+		return this.nodeCounts.length;
+	}
+	
+	/**
+	 * Getter for the number of nodes on a level
+	 * @param level the level, 0 for the root
+	 * @return the number of nodes on the level
+	 */
+	public int getNodeCount(int level) {
+		return this.nodeCounts[level];
+	}
+	
+	/**
+	 * Getter for the bucket size
+	 * @return the number of consecutive ids in each leaf
+	 */
+	public int getBucketSize() {
+		return this.bucketSize;
+	}
+	
+	/**
+	 * Getter for the capacity
+	 * @return the number of ids the table covers
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+}
@@ -0,0 +1,199 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes packets using the fixed binary layout described in the README.
+ * The header is | Version | Mode | Code | Flags | with one byte per field and the data field
+ * is a single packed peer record of the form
+ * | Id (4) | Availability (4) | Port (2) | Address Length (1) | Address (0, 4 or 16) |
+ * An AP packet may follow the record with the entries of the sender's AvailabilityCrdt.
+ * @author Sam Dodson
+ *
+ */
+public class PacketCodec {
+	static final int HEADER_SIZE = 4;
+	static final int MAX_PACKET_SIZE = 65507;
+	static final int PEER_RECORD_SIZE = 11;
+	static final int OFFSET_VERSION = 0;
+	static final int OFFSET_MODE = 1;
+	static final int OFFSET_CODE = 2;
+	static final int OFFSET_FLAGS = 3;
+	static final int OFFSET_DATA = HEADER_SIZE;
+	private final ByteBuffer buffer;
+	
+	/**
+	 * Constructor for the PacketCodec class, allocates the buffer that every encode call reuses
+	 */
+	public PacketCodec() {
+		this.buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+	}
+	
+	/**
+	 * Encodes a packet into this codec's reusable buffer. The returned buffer is only valid until
+	 * the next call to encode.
+	 * @param packetData the packet to encode
+	 * @return the buffer holding the encoded packet, positioned at 0 with its limit at the end of the packet
+	 */
+	public ByteBuffer encode(PacketData packetData) {
+		buffer.clear();
+		encode(packetData, buffer);
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Encodes a packet followed by entries of an availability table into this codec's reusable buffer. 
+	 * The entries are cut off so the packet fits in the buffers peers receive into. The returned buffer 
+	 * is only valid until the next call to encode.
+	 * @param packetData the packet to encode
+	 * @param table the table whose dirty entries are carried
+	 * @param maxEntries the largest number of dirty entries to carry
+	 * @param refreshEntries the number of entries from the whole table to carry after them
+	 * @return the buffer holding the encoded packet, positioned at 0 with its limit at the end of the packet
+	 */
+	public ByteBuffer encode(PacketData packetData, AvailabilityCrdt table, int maxEntries, int refreshEntries) {
+		buffer.clear();
+		buffer.limit(BufferPool.DEFAULT_BUFFER_SIZE);
+		encode(packetData, buffer);
+		table.writeDelta(buffer, maxEntries, refreshEntries);
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Writes the header and data field of a packet into a buffer at its current position
+	 * @param packetData the packet to encode
+	 * @param out the buffer to write to
+	 */
+	public static void encode(PacketData packetData, ByteBuffer out) {
+		writeHeader(out, packetData.getVersion(), packetData.getMode(), packetData.getCode(), packetData.getFlags());
+		writePeer(out, packetData.getPeer());
+	}
+	
+	/**
+	 * Writes the 4-byte packet header
+	 * @param out the buffer to write to
+	 * @param version the version of the protocol
+	 * @param mode the mode the cluster is running in
+	 * @param code the type of packet
+	 * @param flags the flags byte of the packet
+	 */
+	static void writeHeader(ByteBuffer out, byte version, byte mode, byte code, byte flags) {
+		out.put(version);
+		out.put(mode);
+		out.put(code);
+		out.put(flags);
+	}
+	
+	/**
+	 * Writes one packed peer record
+	 * @param out the buffer to write to
+	 * @param peer the peer to write
+	 */
+	static void writePeer(ByteBuffer out, PeerData peer) {
+		byte[] address = peer.getAddressBytes();
+		out.putInt(peer.getId());
+		out.putInt(peer.getAvailability());
+		out.putShort((short) peer.getPort());
+		out.put((byte) address.length);
+		out.put(address);
+	}
+	
+	/**
+	 * Decodes a packet from a buffer. The buffer's position is advanced past the packet.
+	 * @param in the buffer holding the packet
+	 * @return the decoded packet, or null if the buffer does not hold a well formed packet
+	 */
+	public static PacketData decode(ByteBuffer in) {
+		try {
+			byte version = in.get();
+			byte mode = in.get();
+			byte code = in.get();
+			byte flags = in.get();
+			PacketData packetData = new PacketData(version, mode, code, readPeer(in));
+			packetData.setFlags(flags);
+			return packetData;
+		} catch (BufferUnderflowException e) {
+			return null;
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads one packed peer record
+	 * @param in the buffer to read from
+	 * @return the peer held in the record
+	 * @throws UnknownHostException if the address length is not a valid IPv4 or IPv6 length
+	 */
+	static PeerData readPeer(ByteBuffer in) throws UnknownHostException {
+		int id = in.getInt();
+		int availability = in.getInt();
+		int port = in.getShort() & 0xFFFF;
+		int addressLength = in.get() & 0xFF;
+		InetAddress address = null;
+		if(addressLength > 0) {
+			byte[] addressBytes = new byte[addressLength];
+			in.get(addressBytes);
+			address = InetAddress.getByAddress(addressBytes);
+		}
+		return new PeerData(address, port, id, availability);
+	}
+	
+	/**
+	 * Reads the version byte of a packet without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the version of the packet
+	 */
+	public static byte peekVersion(ByteBuffer in) {
+		return in.get(in.position() + OFFSET_VERSION);
+	}
+	
+	/**
+	 * Reads the mode byte of a packet without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the mode of the packet
+	 */
+	public static byte peekMode(ByteBuffer in) {
+		return in.get(in.position() + OFFSET_MODE);
+	}
+	
+	/**
+	 * Reads the code byte of a packet without moving the buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the code of the packet
+	 */
+	public static byte peekCode(ByteBuffer in) {
+		return in.get(in.position() + OFFSET_CODE);
+	}
+	
+	/**
+	 * Finds where the availability table entries following the peer record start, without moving the 
+	 * buffer's position
+	 * @param in the buffer holding the packet
+	 * @return the absolute offset of the entry count, or -1 if the packet carries no entries
+	 */
+	public static int peekEntriesOffset(ByteBuffer in) {
+		int start = in.position() + OFFSET_DATA;
+		if(in.limit() - start < PEER_RECORD_SIZE) {
+			return -1;
+		}
+		int offset = start + PEER_RECORD_SIZE + (in.get(start + PEER_RECORD_SIZE - 1) & 0xFF);
+		return (offset + 2 <= in.limit()) ? offset : -1;
+	}
+	
+	/**
+	 * Reads the id of the peer record without moving the buffer's position or decoding the packet
+	 * @param in the buffer holding the packet
+	 * @return the id of the peer that sent the packet, or -1 if the packet is too short
+	 */
+	public static int peekPeerId(ByteBuffer in) {
+		int start = in.position() + OFFSET_DATA;
+		if(in.limit() - start < PEER_RECORD_SIZE) {
+			return -1;
+		}
+		return in.getInt(start);
+	}
+}
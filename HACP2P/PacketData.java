@@ -1,16 +1,15 @@
-import java.io.Serializable;
-import java.util.BitSet;
-
 /**
  * The class representing the packet being sent between cluster nodes
  * @author Sam Dodson
  *
  */
-public class PacketData implements Serializable {
+public class PacketData {
+	static final byte FLAG_CAN_BE_SPLIT = 1 << 6;
+	static final byte FLAG_LAST_PACKET = (byte) (1 << 7);
 	private byte version;
 	private byte mode;
 	private byte code;
-	private BitSet flags = new BitSet(8);
+	private byte flags = 0;
 	private PeerData peerData;
 	
 	/**
@@ -61,19 +60,48 @@ public class PacketData implements Serializable {
 	
 	/**
 	 * Getter for the flags field
-	 * @return the flags of the packet
+	 * @return the flags byte of the packet
 	 */
-	public BitSet getFlags() {
+	public byte getFlags() {
 		return this.flags;
 	}
 	
+	/**
+	 * Getter for the canBeSplit flag
+	 * @return true if the packet's data may be split across multiple packets
+	 */
+	public boolean getCanBeSplit() {
+		return (flags & FLAG_CAN_BE_SPLIT) != 0;
+	}
+	
+	/**
+	 * Getter for the lastPacket flag
+	 * @return true if the packet is the last one to be sent
+	 */
+	public boolean getLastPacket() {
+		return (flags & FLAG_LAST_PACKET) != 0;
+	}
+	
 	/**
 	 * Setter for the flags field
 	 * @param canBeSplit flag specifying if a packet's data will require it to be split into multiple packets
 	 * @param lastPacket flag specifying if a packet is the last one to be sent
 	 */
 	public void setFlags(boolean canBeSplit, boolean lastPacket) {
-		flags.set(6, canBeSplit);
-		flags.set(7, lastPacket);
+		flags = 0;
+		if(canBeSplit) {
+			flags |= FLAG_CAN_BE_SPLIT;
+		}
+		if(lastPacket) {
+			flags |= FLAG_LAST_PACKET;
+		}
+	}
+	
+	/**
+	 * Setter for the raw flags byte, used when a packet is decoded
+	 * @param flags the flags byte read from the wire
+	 */
+	public void setFlags(byte flags) {
+		this.flags = flags;
 	}
 }
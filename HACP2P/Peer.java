@@ -1,20 +1,16 @@
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
-import java.util.Random;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * A class implementing a peer in a high availability cluster
@@ -26,20 +22,42 @@ public class Peer {
 	final static int PORT_NUMBER = 6000;
 	private int port;
 	private String address;
-	private DatagramSocket serverSocket;
+	private DatagramChannel serverChannel;
 	private DatagramSocket clientSocket;
-	private Timer timer = null;
+	private HeartbeatScheduler timer = null;
 	private ArrayList<PeerData> peerData = new ArrayList<>();
 	private byte version = 1;
 	private byte modePeerToPeer = 1;
 	private byte codeAPPacket = 6;
 	private int pulseCount = 0;
-	private ArrayList<Integer> receivedFrom = new ArrayList<>();
+	private LivenessBitmap receivedFrom;
+	private long[] drainedFrom;
 	private Task task = new Task();
 	private PeerData self;
 	int id;
 	boolean canBeSplit = false;
 	boolean lastPacket = true;
+	private PacketCodec codec = new PacketCodec();
+	private BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_POOL_SIZE, BufferPool.DEFAULT_BUFFER_SIZE);
+	private PacketWorkerPool workerPool = null;
+	private HeartbeatConfig heartbeat = HeartbeatConfig.fromSystemProperties();
+	private FailureDetector detector = FailureDetector.fromSystemProperties(heartbeat.getInterval(), heartbeat.getGrace());
+	private TimingWheel deadlines = null;
+	private String protocolMode = System.getProperty("hac.p2pMode", "broadcast");
+	private volatile SwimProtocol swim = null;
+	private AvailabilityHistory history = null;
+	private ReliabilityScore scores = ReliabilityScore.fromSystemProperties();
+	private AvailabilityCrdt crdt;
+	private int crdtEntries = AvailabilityCrdt.maxEntriesFromSystemProperties();
+	private int crdtRefresh = AvailabilityCrdt.refreshEntriesFromSystemProperties();
+	private volatile AntiEntropy antiEntropy = null;
+	private int antiEntropyPulses = AntiEntropy.pulsesFromSystemProperties();
+	private final TimingWheel.Expiry onDeadline = new TimingWheel.Expiry() {
+		@Override
+		public long expired(int id, long now) {
+			return expirePeer(id, now);
+		}
+	};
 	
 	/**
 	 * Constructor for Peer class
@@ -51,6 +69,7 @@ public class Peer {
 		createServerSocket();
 		createClientSocket();
 		readConfigAddresses();
+		createReceivedFrom();
 	}
 	
 	/**
@@ -62,15 +81,28 @@ public class Peer {
 		createServerSocket();
 		createClientSocket();
 		readConfigAddressesLocal();
+		createReceivedFrom();
 	}
 	
 	/**
-	 * Creates server socket of peer bound to specified port
+	 * Creates the bitmap of peers that reported in and the cluster-wide availability table, both 
+	 * sized by the ids read from the config file
+	 */
+	public void createReceivedFrom() {
+		receivedFrom = new LivenessBitmap(peerData.size());
+		drainedFrom = new long[receivedFrom.getWordCount()];
+		crdt = new AvailabilityCrdt(peerData.size(), MerkleTree.bucketSizeFromSystemProperties());
+	}
+	
+	/**
+	 * Creates server socket of peer bound to specified port. The socket is a channel so datagrams 
+	 * can be received straight into pooled direct buffers.
 	 */
 	public void createServerSocket() {
 		try {
-			this.serverSocket = new DatagramSocket(port);
-		} catch (SocketException e) {
+			this.serverChannel = DatagramChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
@@ -85,31 +117,64 @@ public class Peer {
 			e.printStackTrace();
 		}
 	}
-		
+	
 	/**
 	 * Creates listening thread that runs in an infinite loop
 	 */
 	public void listen() {
 		// Timer to send availability to peers is initialized and scheduled 
-		// in run at a random interval from 0-30 seconds
+		// to run every heartbeat interval plus a random jitter
+		if(workerPool == null) {
+			createWorkerPool();
+		}
 		while(true) {
 			if(timer == null) {
-				timer = new Timer();
+				timer = new HeartbeatScheduler("peer-timer", heartbeat);
 				createTimer();
 			}
 			
-			// Availability packets are received from other peers and responded to in separate threads
-			byte[] bytes = new byte[500];
-			DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
-			try {
-				serverSocket.receive(packet);
-			} catch (IOException e) {
-				e.printStackTrace();
+			// Availability packets are received from other peers
+			receive();
+		}
+	}
+	
+	/**
+	 * Creates the worker threads that process received packets, configured through system properties
+	 */
+	public void createWorkerPool() {
+		workerPool = PacketWorkerPool.fromSystemProperties("peer", new PacketWorkerPool.Handler() {
+			@Override
+			public void handle(ByteBuffer buffer, InetSocketAddress sender) {
+				processPacket(buffer);
 			}
-			createParseThread(packet);
+		});
+		bufferPool = workerPool.getBufferPool();
+	}
+	
+	/**
+	 * Receives one datagram into a pooled buffer and hands it to the worker pool, or processes it 
+	 * on this thread if no worker pool was created. Packets are processed without allocating.
+	 */
+	public void receive() {
+		ByteBuffer buffer = bufferPool.acquire();
+		InetSocketAddress sender;
+		try {
+			sender = (InetSocketAddress) serverChannel.receive(buffer);
+		} catch (IOException e) {
+			e.printStackTrace();
+			bufferPool.release(buffer);
+			return;
+		}
+		buffer.flip();
+		if(workerPool != null) {
+			workerPool.submit(buffer, sender);
+		}
+		else {
+			processPacket(buffer);
+			bufferPool.release(buffer);
 		}
 	}
-		
+	
 	/**
 	 * Availability of peer is sent to each peer in cluster
 	 */
@@ -117,18 +182,26 @@ public class Peer {
 	    if(pulseCount > 0) {
 	    	System.out.println("Heartbeat " + pulseCount);
 	    }
-	    byte[] packetBytes = getPacketData();
+	    ByteBuffer packetBytes = getPacketData();
+	    
+	    // Peers that reported in are read and cleared in one pass, the first pulse leaves them for the next
+	    if(pulseCount > 0) {
+	    	receivedFrom.drain(drainedFrom);
+	    }
 	    for(int index = 0; index < peerData.size(); index++) {
 	    	DatagramPacket packet = null;
 			packet = createPacket(packetBytes, peerData.get(index));
 			sendPacket(packet);
 			
-			// Availability of nodes who sent packet are incremented
+			// Availability of nodes who sent packet are incremented and dead nodes that sent one are revived
 			if(pulseCount > 0) {
-				if(receivedFrom.contains(peerData.get(index).getId())) {
+				if(LivenessBitmap.isSet(drainedFrom, peerData.get(index).getId())) {
 					peerData.get(index).setAvailability(peerData.get(index).getAvailability() + 1);
-					int rfIndex = receivedFrom.indexOf(peerData.get(index).getId());
-					receivedFrom.remove(rfIndex);
+					// A peer always hears itself so only what others count for it goes into the table
+					if(peerData.get(index).getId() != id) {
+						crdt.update(peerData.get(index).getId(), peerData.get(index).getAvailability());
+					}
+					revive(peerData.get(index));
 				}
 				printAvailability(index);
 			}
@@ -136,53 +209,133 @@ public class Peer {
 				System.out.println("Address: " + peerData.get(index).getAddress() + " | First heartbeat");
 			}
 		}
-		
+	    
+	    // Every few pulses the table is compared with one other peer's and the buckets that differ are repaired
+	    if(antiEntropy != null && pulseCount > 0 && pulseCount % antiEntropyPulses == 0) {
+	    	antiEntropy.exchange();
+	    	System.out.println("Anti-entropy: " + antiEntropy.getExchanges() + " exchanges | " + antiEntropy.getBucketsSent() + " buckets sent | " + antiEntropy.getBytesSent() + " bytes sent");
+	    }
 	    System.out.println("\n");
 	    pulseCount++;
+	    recordTick();
 	}
 	
 	/**
-	 * Prints the availability of a given peer
-	 * @param index the specified index number of a peer in the peerData list
+	 * Records whether each peer is up on this tick in the reliability scores and the availability history
 	 */
-	public void printAvailability(int index) {
-		final int NODE_STATUS_CUTOFF = 30;
-		double percentage = (peerData.get(index).getAvailability() / ((double)pulseCount)) * 100.0;
-		if(percentage > NODE_STATUS_CUTOFF) {
-			System.out.println("Address: " + peerData.get(index).getAddress() + " | Port: " + peerData.get(index).getPort() + " | Availability: " + peerData.get(index).getAvailability() + " (out of " + pulseCount + ")" + " | Percentage Available: " + String.format("%.2f", percentage) + " ALIVE");
+	public void recordTick() {
+		if(history != null) {
+			history.advance(System.currentTimeMillis());
 		}
-		else {
-			System.out.println("Address: " + peerData.get(index).getAddress() + " | Port: " + peerData.get(index).getPort() + " | Availability: " + peerData.get(index).getAvailability() + " (out of " + pulseCount + ")" + " | Percentage Available: " + String.format("%.2f", percentage) + " DEAD");
+		for(PeerData peer: peerData) {
+			boolean up = (swim != null) ? swim.getState(peer.getId()) == SwimProtocol.STATE_ALIVE : peer.getStatus() == false;
+			scores.update(peer.getId(), up);
+			if(history != null) {
+				history.record(peer.getId(), up);
+			}
 		}
 	}
-				
+	
+	/**
+	 * Getter for the cluster-wide availability table
+	 * @return the availability table merged from every peer's counts
+	 */
+	public AvailabilityCrdt getCrdt() {
+		return this.crdt;
+	}
+	
+	/**
+	 * Getter for the anti-entropy protocol
+	 * @return the protocol repairing the availability table, or null if it is not running
+	 */
+	public AntiEntropy getAntiEntropy() {
+		return this.antiEntropy;
+	}
+	
 	/**
-	 * Packet data is added to stream and bytes are retrieved
-	 * @return the bytes of packetData
+	 * Getter for the reliability scores
+	 * @return the score of each peer over its recent ticks
 	 */
-	public byte[] getPacketData() {
+	public ReliabilityScore getScores() {
+		return this.scores;
+	}
+	
+	/**
+	 * Getter for the availability history
+	 * @return the history of each peer's status on every tick, or null if it is not kept
+	 */
+	public AvailabilityHistory getHistory() {
+		return this.history;
+	}
+	
+	/**
+	 * Marks a peer that sent availability as alive and gives it a deadline if it does not have one
+	 * @param peer the peer that was heard from
+	 */
+	public void revive(PeerData peer) {
+		peer.setStatus(false);
+		if(!deadlines.isScheduled(peer.getId())) {
+			deadlines.schedule(peer.getId(), detector.getDeadline(peer.getId()));
+		}
+	}
+	
+	/**
+	 * Getter for the failure detector
+	 * @return the detector that decides when each peer is considered failed
+	 */
+	public FailureDetector getDetector() {
+		return this.detector;
+	}
+	
+	/**
+	 * Called by the timing wheel when a peer's deadline passes. Received packets only record a 
+	 * heartbeat with the failure detector, so a peer that is still sending is moved to the deadline 
+	 * the detector now gives and only a peer that has gone silent is marked dead.
+	 * @param id the id of the peer
+	 * @param now the current time in milliseconds
+	 * @return the peer's next deadline, or -1 if it was marked dead
+	 */
+	long expirePeer(int id, long now) {
+		PeerData peer = peerData.get(id);
+		long deadline = detector.getDeadline(id);
+		if(deadline > now) {
+			return deadline;
+		}
+		peer.setStatus(true);
+		return -1;
+	}
+	
+	/**
+	 * Prints the availability of a given peer, a peer is alive until it misses its deadline
+	 * @param index the specified index number of a peer in the peerData list
+	 */
+	public void printAvailability(int index) {
+		// The score covers the peer's recent ticks rather than every pulse since this peer started, and a 
+		// live peer whose score has fallen below the healthy score is reported as unstable
+		PeerData peer = peerData.get(index);
+		String status = (peer.getStatus() == true) ? "DEAD" : scores.isHealthy(peer.getId()) ? "ALIVE" : "UNSTABLE";
+		System.out.println("Address: " + peer.getAddress() + " | Port: " + peer.getPort() + " | Availability: " + peer.getAvailability() + " (out of " + pulseCount + ")" + " | Cluster: " + crdt.get(peer.getId()) + " | Score: " + String.format("%.4f", scores.getScore(peer.getId())) + " | Suspicion: " + String.format("%.2f", detector.getSuspicion(peer.getId(), System.currentTimeMillis())) + " " + status);
+	}
+	
+	/**
+	 * Packet data is encoded once per pulse into the codec's buffer, followed by the entries of the 
+	 * availability table that changed since the last pulse
+	 * @return the buffer holding the encoded packetData
+	 */
+	public ByteBuffer getPacketData() {
 		PacketData packetData = new PacketData(version, modePeerToPeer, codeAPPacket, self);
 		packetData.setFlags(canBeSplit, lastPacket);
-		ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
-		ObjectOutputStream objectStream;
-		try {
-			objectStream = new ObjectOutputStream(byteArrayStream);
-			objectStream.writeObject(packetData);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		byte[] packetBytes = byteArrayStream.toByteArray();
-		return packetBytes;
+		return codec.encode(packetData, crdt, crdtEntries, crdtRefresh);
 	}
 	
 	/**
 	 * Availability packet is created and initialized with a peer's address and port number
-	 * @param packetBytes the bytes of data to send in the packet
+	 * @param packetBytes the encoded data to send in the packet
 	 * @param peer the specified peer to send the packet to
 	 * @return the packet initialized and ready to send
 	 */
-	public DatagramPacket createPacket(byte[] packetBytes, PeerData peer) {
-		DatagramPacket packet = new DatagramPacket(packetBytes, packetBytes.length, peer.getAddress(), peer.getPort());
+	public DatagramPacket createPacket(ByteBuffer packetBytes, PeerData peer) {
+		DatagramPacket packet = new DatagramPacket(packetBytes.array(), packetBytes.limit(), peer.getAddress(), peer.getPort());
 		return packet;
 	}
 	
@@ -197,54 +350,59 @@ public class Peer {
 			e.printStackTrace();
 		}
 	}
-		
+	
 	/**
-	 * Creates a thread to parse received packet
-	 * @param packet an availability packet received from a peer in the cluster
+	 * Processes a received availability packet in place, without decoding it. The sender's availability 
+	 * table entries are merged straight from the buffer.
+	 * @param buffer the buffer holding an availability packet received from a peer in the cluster
 	 */
-	public void createParseThread(DatagramPacket packet) {
-		Thread thread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				PacketData packetData = null;
-				packetData = parsePacket(packet);
-				byte parsedVersion = packetData.getVersion();
-				byte mode = packetData.getMode();
-				byte code = packetData.getCode();
+	public void processPacket(ByteBuffer buffer) {
+		if(buffer.remaining() < PacketCodec.OFFSET_DATA + PacketCodec.PEER_RECORD_SIZE) {
+			return;
+		}
+		byte parsedVersion = PacketCodec.peekVersion(buffer);
+		byte mode = PacketCodec.peekMode(buffer);
+		byte code = PacketCodec.peekCode(buffer);
 		
-				// If packet fields match expected values than peer id is added to received from
-				if(parsedVersion == version) {
-					if(mode == modePeerToPeer) {
-						if(code == codeAPPacket) {
-							if(!receivedFrom.contains(packetData.getPeer().getId())) {
-								receivedFrom.add(packetData.getPeer().getId());
-							}	
+		// If packet fields match expected values than peer's bit is set in received from
+		if(parsedVersion == version) {
+			if(mode == modePeerToPeer) {
+				if(swim != null && SwimProtocol.isSwimCode(code)) {
+					swim.handle(buffer);
+				}
+				else if(antiEntropy != null && AntiEntropy.isAntiEntropyCode(code)) {
+					antiEntropy.handle(buffer);
+				}
+				else if(code == codeAPPacket) {
+					int peerId = PacketCodec.peekPeerId(buffer);
+					if(peerId >= 0 && peerId < peerData.size()) {
+						detector.heartbeat(peerId, System.currentTimeMillis());
+						receivedFrom.set(peerId);
+						if(crdt.merge(buffer, PacketCodec.peekEntriesOffset(buffer)) == -1) {
+							System.out.println("Dropped cluster view entries from peer " + peerId + ": the packet was cut short");
 						}
 					}
 				}
 			}
-		});
-		thread.run();
+		}
+	}
+	
+	/**
+	 * Determines if a peer has sent availability since the last pulse
+	 * @param peerId the id of the peer
+	 * @return true if the peer's bit is set in received from
+	 */
+	public boolean hasReceivedFrom(int peerId) {
+		return receivedFrom.get(peerId);
 	}
 	
 	/**
 	 * Parses the data from the received availability packet
-	 * @param packet the availability packet received from a peer in the cluster
+	 * @param buffer the buffer holding an availability packet received from a peer in the cluster
 	 * @return the data parsed from the packet
 	 */
-	public PacketData parsePacket(DatagramPacket packet) {
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(packet.getData());
-		ObjectInputStream objectStream;
-		PacketData packetData = null;
-		try {
-			objectStream = new ObjectInputStream(inputStream);
-			packetData = (PacketData) objectStream.readObject();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		}
-		return packetData;
+	public PacketData parsePacket(ByteBuffer buffer) {
+		return PacketCodec.decode(buffer.duplicate());
 	}
 	
 	/**
@@ -316,33 +474,62 @@ public class Peer {
 	}
 	
 	/**
-	 * Timer is initialized to run at interval from 0-30 seconds
+	 * Timer is initialized to run every heartbeat interval plus a random jitter, along with the timing 
+	 * wheel that marks each peer dead once it misses its own deadline. Both run on the timer's thread.
+	 * When the hac.p2pMode system property is swim the timer runs SWIM protocol periods instead of 
+	 * sending availability to every peer. Otherwise the availability table is repaired by anti-entropy
+	 * exchanges unless the hac.antiEntropyPulses system property is 0.
 	 */
 	public void createTimer() {
-		Random rand = new Random();
-	    int upperbound = 31;
-	    int delay = rand.nextInt(upperbound) * 1000;
-		timer.schedule(task, delay);
+		// Peers run locally share a directory so each keeps the history file of its own port
+		history = AvailabilityHistory.fromSystemProperties(heartbeat.getInterval(), "availability-" + port + ".hist");
+		
+		// In gossip mode failures are found by the SWIM probes so no timing wheel is needed
+		if(protocolMode.equals("swim")) {
+			swim = new SwimProtocol(version, modePeerToPeer, id, peerData, clientSocket, timer, heartbeat);
+			timer.start(new Runnable() {
+				@Override
+				public void run() {
+					swim.probe();
+					recordTick();
+				}
+			});
+			return;
+		}
+		long wheelTick = heartbeat.getWheelTick();
+		deadlines = new TimingWheel(wheelTick, TimingWheel.DEFAULT_SLOTS, System.currentTimeMillis());
+		if(antiEntropyPulses > 0) {
+			antiEntropy = new AntiEntropy(version, modePeerToPeer, id, peerData, crdt, clientSocket);
+		}
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				deadlines.advance(System.currentTimeMillis(), onDeadline);
+			}
+		}, wheelTick);
+		timer.start(task);
+	}
+	
+	/**
+	 * Getter for the heartbeat timing
+	 * @return the interval, jitter and timeout the peer was configured with
+	 */
+	public HeartbeatConfig getHeartbeatConfig() {
+		return this.heartbeat;
 	}
 	
 	/**
-     * Class implementing task that sends availability to peers every 0-30 seconds
+     * Class implementing task that sends availability to peers every heartbeat interval
      * @author Sam Dodson
      *
      */
-	public class Task extends TimerTask {
+	public class Task implements Runnable {
         /**
-         * Runs every 0-30 seconds and sends availability to each other node
+         * Runs every heartbeat interval and sends availability to each other node
          */
 		@Override
         public void run() {
         	sendAvailability();
-        	
-        	// Timer is rescheduled to run at a random interval
-			Random rand = new Random();
-		    int upperbound = 31;
-		    int delay = rand.nextInt(upperbound) * 1000;
-		    timer.schedule(new Task(), delay);
         }
     }
 }
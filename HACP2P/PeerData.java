@@ -1,4 +1,3 @@
-import java.io.Serializable;
 import java.net.InetAddress;
 
 /**
@@ -6,11 +5,13 @@ import java.net.InetAddress;
  * @author Sam Dodson
  *
  */
-class PeerData implements Serializable {
+class PeerData {
 	private InetAddress address;
+	private byte[] addressBytes;
 	private int port;
 	int idNumber;
 	private int availability;
+	private volatile boolean status = true;
 	
 	/**
 	 * Constructor for PeerData class
@@ -21,6 +22,7 @@ class PeerData implements Serializable {
 	 */
 	public PeerData(InetAddress address, int port, int idNumber, int availability) {
 		this.address = address;
+		this.addressBytes = (address == null) ? new byte[0] : address.getAddress();
 		this.port = port;
 		this.idNumber = idNumber;
 		this.availability = availability;
@@ -34,6 +36,14 @@ class PeerData implements Serializable {
 		return this.address;
 	}
 	
+	/**
+	 * Getter for the raw bytes of the IP address, cached so encoding a packet does not copy them
+	 * @return the 4 or 16 address bytes, or an empty array if no address is set
+	 */
+	byte[] getAddressBytes() {
+		return this.addressBytes;
+	}
+	
 	/**
 	 * Getter for port number
 	 * @return port number of node
@@ -65,4 +75,20 @@ class PeerData implements Serializable {
 	public void setAvailability(int availability) {
 		this.availability = availability;
 	}
+	
+	/**
+	 * Getter for status
+	 * @return true if the peer is dead, false if it is alive
+	 */
+	public boolean getStatus() {
+		return this.status;
+	}
+	
+	/**
+	 * Setter for status
+	 * @param status true if the peer is dead, false if it is alive
+	 */
+	public void setStatus(boolean status) {
+		this.status = status;
+	}
 }
@@ -0,0 +1,186 @@
+/**
+ * A phi accrual failure detector. Each node's heartbeat intervals are kept in a fixed-size ring 
+ * and the time since its last heartbeat is turned into phi, the negative base 10 logarithm of the 
+ * chance that a heartbeat that late would still arrive given the intervals seen so far. A phi of 1 
+ * means about a 10 percent chance of being wrong in suspecting the node, 2 about 1 percent and so 
+ * on, and a node is considered failed once phi passes the threshold. Nodes that heartbeat with 
+ * steady timing are suspected quickly while nodes with jittery timing are given more room.
+ * @author Sam Dodson
+ *
+ */
+public class PhiAccrualDetector implements FailureDetector {
+	static final double DEFAULT_THRESHOLD = 8.0;
+	static final int DEFAULT_WINDOW = 100;
+	static final long DEFAULT_MIN_STD_DEV = 100;
+	private final double threshold;
+	private final int windowSize;
+	private final long minStdDev;
+	private final long interval;
+	private final long grace;
+	private volatile ArrivalWindow[] windows = new ArrivalWindow[16];
+	
+	/**
+	 * Constructor for the PhiAccrualDetector class
+	 * @param threshold the phi above which a node is considered failed
+	 * @param windowSize the number of heartbeat intervals kept per node
+	 * @param minStdDev the smallest standard deviation used in milliseconds, so perfectly steady 
+	 * heartbeats do not make a node suspected the moment one is late
+	 * @param interval the expected time in milliseconds between heartbeats, used until a node has sent two
+	 * @param grace the extra time in milliseconds a heartbeat may be late, added to the mean interval
+	 */
+	public PhiAccrualDetector(double threshold, int windowSize, long minStdDev, long interval, long grace) {
+		this.threshold = threshold;
+		this.windowSize = windowSize;
+		this.minStdDev = minStdDev;
+		this.interval = interval;
+		this.grace = grace;
+	}
+	
+	/**
+	 * Records a heartbeat from a node
+	 * @param id the id of the node
+	 * @param now the time in milliseconds the heartbeat arrived
+	 */
+	@Override
+	public void heartbeat(int id, long now) {
+		if(id < 0) {
+			return;
+		}
+		ArrivalWindow[] current = windows;
+		ArrivalWindow window = (id < current.length) ? current[id] : null;
+		if(window == null) {
+			window = createWindow(id);
+		}
+		window.record(now);
+	}
+	
+	/**
+	 * Drops the node's window so an id handed to a new node starts without its intervals
+	 * @param id the id of the node
+	 */
+	@Override
+	public synchronized void forget(int id) {
+		ArrivalWindow[] current = windows;
+		if(id >= 0 && id < current.length) {
+			current[id] = null;
+		}
+	}
+	
+	/**
+	 * Creates the window for a node the first time it is heard from, growing the table if needed
+	 * @param id the id of the node
+	 * @return the node's window
+	 */
+	private synchronized ArrivalWindow createWindow(int id) {
+		ArrivalWindow[] current = windows;
+		if(id >= current.length) {
+			ArrivalWindow[] grown = new ArrivalWindow[Math.max(id + 1, current.length * 2)];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			current = grown;
+		}
+		if(current[id] == null) {
+			current[id] = new ArrivalWindow(windowSize);
+		}
+		windows = current;
+		return current[id];
+	}
+	
+	/**
+	 * Gives the time at which a node's phi will pass the threshold if no further heartbeat arrives
+	 * @param id the id of the node
+	 * @return the deadline in milliseconds, or -1 if the node has never been heard from
+	 */
+	@Override
+	public long getDeadline(int id) {
+		ArrivalWindow window = getWindow(id);
+		if(window == null) {
+			return -1;
+		}
+		double mean = getMean(window);
+		double stdDev = getStandardDeviation(window);
+		
+		// Phi grows with the time since the last heartbeat so the crossing point is found by bisection
+		long low = 0;
+		long high = (long) (mean + 64 * stdDev) + 1;
+		while(high - low > 1) {
+			long middle = (low + high) >>> 1;
+			if(phi(middle, mean, stdDev) >= threshold) {
+				high = middle;
+			}
+			else {
+				low = middle;
+			}
+		}
+		return window.getLast() + high;
+	}
+	
+	/**
+	 * Gives the current phi of a node
+	 * @param id the id of the node
+	 * @param now the current time in milliseconds
+	 * @return the phi of the node, 0 if it has never been heard from
+	 */
+	@Override
+	public double getSuspicion(int id, long now) {
+		ArrivalWindow window = getWindow(id);
+		if(window == null) {
+			return 0;
+		}
+		return phi(Math.max(0, now - window.getLast()), getMean(window), getStandardDeviation(window));
+	}
+	
+	/**
+	 * Getter for the phi threshold
+	 * @return the phi above which a node is considered failed
+	 */
+	public double getThreshold() {
+		return this.threshold;
+	}
+	
+	/**
+	 * Getter for a node's window
+	 * @param id the id of the node
+	 * @return the node's window, or null if it has never been heard from
+	 */
+	ArrivalWindow getWindow(int id) {
+		ArrivalWindow[] current = windows;
+		return (id < 0 || id >= current.length) ? null : current[id];
+	}
+	
+	/**
+	 * Gives the mean interval the node is judged against, the expected interval stands in until 
+	 * the node has sent two heartbeats
+	 * @param window the node's window
+	 * @return the mean interval plus the grace period in milliseconds
+	 */
+	private double getMean(ArrivalWindow window) {
+		double mean = (window.getCount() == 0) ? interval : window.getMean();
+		return mean + grace;
+	}
+	
+	/**
+	 * Gives the standard deviation the node is judged against
+	 * @param window the node's window
+	 * @return the standard deviation of the intervals, at least the minimum, in milliseconds
+	 */
+	private double getStandardDeviation(ArrivalWindow window) {
+		double stdDev = (window.getCount() == 0) ? interval / 4.0 : window.getStandardDeviation();
+		return Math.max(stdDev, minStdDev);
+	}
+	
+	/**
+	 * Computes phi using a logistic approximation of the normal distribution's tail
+	 * @param elapsed the time in milliseconds since the last heartbeat
+	 * @param mean the mean interval in milliseconds
+	 * @param stdDev the standard deviation of the intervals in milliseconds
+	 * @return the phi for the elapsed time
+	 */
+	static double phi(long elapsed, double mean, double stdDev) {
+		double y = (elapsed - mean) / stdDev;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if(elapsed > mean) {
+			return -Math.log10(e / (1.0 + e));
+		}
+		return Math.max(0.0, -Math.log10(1.0 - 1.0 / (1.0 + e)));
+	}
+}
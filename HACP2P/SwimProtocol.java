@@ -0,0 +1,406 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * A SWIM style gossip membership protocol, an alternative to sending every peer's availability to 
+ * every other peer. Each period a peer pings one other peer, taken in a shuffled round robin order. 
+ * If no ack arrives within the ping timeout it asks k other peers to ping the target on its behalf, 
+ * and a target that answers neither way by the end of the period is suspected. A suspected peer 
+ * that does not refute the suspicion by raising its incarnation number within a few periods is 
+ * declared dead. Membership and availability changes ride on the pings and acks themselves, each 
+ * one sent a bounded number of times, so a peer sends a constant number of messages per period 
+ * however large the cluster grows.
+ * <p>
+ * Every message is | Header (4) | Sequence (4) | Sender Id (4) | Target Id (4) | Origin Id (4) | 
+ * Update Count (1) | followed by updates of the form | Id (4) | Incarnation (4) | State (1) | Availability (4) |
+ * @author Sam Dodson
+ *
+ */
+public class SwimProtocol {
+	static final byte CODE_PING = 7;
+	static final byte CODE_PING_REQ = 8;
+	static final byte CODE_ACK = 9;
+	static final byte STATE_ALIVE = 0;
+	static final byte STATE_SUSPECT = 1;
+	static final byte STATE_DEAD = 2;
+	static final int MAX_DATAGRAM_SIZE = 1200;
+	static final int OFFSET_SEQUENCE = PacketCodec.HEADER_SIZE;
+	static final int OFFSET_SENDER = PacketCodec.HEADER_SIZE + 4;
+	static final int OFFSET_TARGET = PacketCodec.HEADER_SIZE + 8;
+	static final int OFFSET_ORIGIN = PacketCodec.HEADER_SIZE + 12;
+	static final int OFFSET_UPDATE_COUNT = PacketCodec.HEADER_SIZE + 16;
+	static final int OFFSET_UPDATES = PacketCodec.HEADER_SIZE + 17;
+	static final int UPDATE_SIZE = 13;
+	static final int DEFAULT_INDIRECT_PROBES = 3;
+	static final int DEFAULT_SUSPECT_PERIODS = 3;
+	static final int DEFAULT_RETRANSMIT_MULTIPLIER = 3;
+	static final int DEFAULT_MAX_PIGGYBACK = 16;
+	private final byte version;
+	private final byte mode;
+	private final int selfId;
+	private final ArrayList<PeerData> members;
+	private final DatagramSocket socket;
+	private final HeartbeatScheduler scheduler;
+	private final long pingTimeout;
+	private final long suspectTimeout;
+	private final int indirectProbes;
+	private final int maxPiggyback;
+	private final int retransmitLimit;
+	private final byte[] states;
+	private final int[] incarnations;
+	private final long[] suspectedAt;
+	private final int[] transmitsLeft;
+	private final ArrayList<Integer> probeOrder = new ArrayList<>();
+	private int probeIndex = 0;
+	private int updateCursor = 0;
+	private int sequence = 0;
+	private int probeTarget = -1;
+	private int probeSequence = 0;
+	private boolean probeAcked = false;
+	private long messagesSent = 0;
+	private final Random random = new Random();
+	private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+	private final DatagramPacket sendPacket = new DatagramPacket(sendBuffer.array(), 0);
+	private final Runnable indirectProbe = new Runnable() {
+		@Override
+		public void run() {
+			probeIndirectly();
+		}
+	};
+	
+	/**
+	 * Constructor for the SwimProtocol class. The number of indirect probes, the periods a suspicion 
+	 * lasts, the retransmit multiplier and the updates carried per message are read from the 
+	 * hac.swimIndirectProbes, hac.swimSuspectPeriods, hac.swimRetransmit and hac.swimMaxPiggyback 
+	 * system properties.
+	 * @param version the version of the protocol
+	 * @param mode the peer to peer mode byte
+	 * @param selfId the id of this peer
+	 * @param members every peer in the cluster indexed by id, including this one
+	 * @param socket the socket messages are sent from
+	 * @param scheduler the scheduler whose thread runs each protocol period
+	 * @param heartbeat the protocol period and the ping timeout, a quarter of the period
+	 */
+	public SwimProtocol(byte version, byte mode, int selfId, ArrayList<PeerData> members, DatagramSocket socket, 
+			HeartbeatScheduler scheduler, HeartbeatConfig heartbeat) {
+		this.version = version;
+		this.mode = mode;
+		this.selfId = selfId;
+		this.members = members;
+		this.socket = socket;
+		this.scheduler = scheduler;
+		this.pingTimeout = Math.max(1, heartbeat.getInterval() / 4);
+		this.suspectTimeout = Integer.getInteger("hac.swimSuspectPeriods", DEFAULT_SUSPECT_PERIODS) * heartbeat.getInterval();
+		this.indirectProbes = Integer.getInteger("hac.swimIndirectProbes", DEFAULT_INDIRECT_PROBES);
+		this.maxPiggyback = Math.min(Integer.getInteger("hac.swimMaxPiggyback", DEFAULT_MAX_PIGGYBACK), 
+				(MAX_DATAGRAM_SIZE - OFFSET_UPDATES) / UPDATE_SIZE);
+		
+		// Each update is sent a number of times that grows with the log of the cluster size
+		int rounds = 32 - Integer.numberOfLeadingZeros(members.size());
+		this.retransmitLimit = Integer.getInteger("hac.swimRetransmit", DEFAULT_RETRANSMIT_MULTIPLIER) * Math.max(1, rounds);
+		this.states = new byte[members.size()];
+		this.incarnations = new int[members.size()];
+		this.suspectedAt = new long[members.size()];
+		this.transmitsLeft = new int[members.size()];
+		for(int id = 0; id < members.size(); id++) {
+			if(id != selfId) {
+				probeOrder.add(id);
+			}
+		}
+		Collections.shuffle(probeOrder, random);
+		
+		// A restarted peer starts above any incarnation it had before so it is not still seen as dead
+		incarnations[selfId] = (int) (System.currentTimeMillis() / 1000);
+		members.get(selfId).setStatus(false);
+		transmitsLeft[selfId] = retransmitLimit;
+	}
+	
+	/**
+	 * Determines if a packet code belongs to this protocol
+	 * @param code the code of a received packet
+	 * @return true for ping, ping-req and ack packets
+	 */
+	static boolean isSwimCode(byte code) {
+		return code == CODE_PING || code == CODE_PING_REQ || code == CODE_ACK;
+	}
+	
+	/**
+	 * Runs one protocol period: ends the previous probe, expires suspicions, credits availability 
+	 * to live members and pings the next target
+	 */
+	public synchronized void probe() {
+		long now = System.currentTimeMillis();
+		
+		// A target that answered neither directly nor through a helper is suspected
+		if(probeTarget >= 0 && !probeAcked && states[probeTarget] == STATE_ALIVE) {
+			suspect(probeTarget, incarnations[probeTarget], now);
+		}
+		for(int id = 0; id < states.length; id++) {
+			if(states[id] == STATE_SUSPECT && now - suspectedAt[id] >= suspectTimeout) {
+				declareDead(id, incarnations[id]);
+			}
+			if(states[id] != STATE_DEAD) {
+				members.get(id).setAvailability(members.get(id).getAvailability() + 1);
+			}
+		}
+		printMembership();
+		
+		probeTarget = nextTarget();
+		if(probeTarget < 0) {
+			return;
+		}
+		probeSequence = ++sequence;
+		probeAcked = false;
+		send(CODE_PING, probeTarget, probeSequence, probeTarget, selfId);
+		scheduler.schedule(indirectProbe, pingTimeout);
+	}
+	
+	/**
+	 * Asks other members to ping the current target if it has not acked yet
+	 */
+	synchronized void probeIndirectly() {
+		if(probeTarget < 0 || probeAcked) {
+			return;
+		}
+		ArrayList<Integer> helpers = new ArrayList<>();
+		for(int id = 0; id < states.length; id++) {
+			if(id != selfId && id != probeTarget && states[id] == STATE_ALIVE) {
+				helpers.add(id);
+			}
+		}
+		Collections.shuffle(helpers, random);
+		for(int index = 0; index < Math.min(indirectProbes, helpers.size()); index++) {
+			send(CODE_PING_REQ, helpers.get(index), probeSequence, probeTarget, selfId);
+		}
+	}
+	
+	/**
+	 * Handles a received ping, ping-req or ack in place and merges the updates it carries
+	 * @param buffer the buffer holding the packet
+	 */
+	public synchronized void handle(ByteBuffer buffer) {
+		int start = buffer.position();
+		if(buffer.remaining() < OFFSET_UPDATES) {
+			return;
+		}
+		byte code = PacketCodec.peekCode(buffer);
+		int seq = buffer.getInt(start + OFFSET_SEQUENCE);
+		int sender = buffer.getInt(start + OFFSET_SENDER);
+		int target = buffer.getInt(start + OFFSET_TARGET);
+		int origin = buffer.getInt(start + OFFSET_ORIGIN);
+		int count = buffer.get(start + OFFSET_UPDATE_COUNT) & 0xFF;
+		if(!isMember(sender) || !isMember(target) || !isMember(origin) || buffer.remaining() < OFFSET_UPDATES + count * UPDATE_SIZE) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for(int index = 0; index < count; index++) {
+			int offset = start + OFFSET_UPDATES + index * UPDATE_SIZE;
+			merge(buffer.getInt(offset), buffer.getInt(offset + 4), buffer.get(offset + 8), buffer.getInt(offset + 9), now);
+		}
+		
+		if(code == CODE_PING) {
+			// The ack goes back to whoever sent the ping, which is a helper for indirect probes
+			send(CODE_ACK, sender, seq, selfId, origin);
+		}
+		else if(code == CODE_PING_REQ) {
+			send(CODE_PING, target, seq, target, origin);
+		}
+		else if(code == CODE_ACK) {
+			if(origin == selfId) {
+				if(target == probeTarget && seq == probeSequence) {
+					probeAcked = true;
+				}
+			}
+			else {
+				// Acks for indirect probes are relayed to the peer that asked for them
+				send(CODE_ACK, origin, seq, target, origin);
+			}
+		}
+	}
+	
+	/**
+	 * Applies a membership update using SWIM's precedence rules: a higher incarnation always wins, 
+	 * suspicion overrides being alive at the same incarnation and death is only undone by a higher one
+	 * @param id the id of the member the update is about
+	 * @param incarnation the incarnation of the member the update was made at
+	 * @param state the state the update gives the member
+	 * @param availability the availability of the member as seen by the update's author
+	 * @param now the current time in milliseconds
+	 */
+	void merge(int id, int incarnation, byte state, int availability, long now) {
+		if(!isMember(id)) {
+			return;
+		}
+		if(id == selfId) {
+			// Suspicion of this peer is refuted by raising its incarnation above the suspicion
+			if(state != STATE_ALIVE && incarnation >= incarnations[selfId]) {
+				incarnations[selfId] = incarnation + 1;
+				transmitsLeft[selfId] = retransmitLimit;
+			}
+			return;
+		}
+		PeerData member = members.get(id);
+		if(availability > member.getAvailability()) {
+			member.setAvailability(availability);
+		}
+		if(state == STATE_ALIVE) {
+			if(incarnation > incarnations[id]) {
+				states[id] = STATE_ALIVE;
+				incarnations[id] = incarnation;
+				member.setStatus(false);
+				transmitsLeft[id] = retransmitLimit;
+			}
+		}
+		else if(state == STATE_SUSPECT) {
+			if(incarnation > incarnations[id] || (incarnation == incarnations[id] && states[id] == STATE_ALIVE)) {
+				suspect(id, incarnation, now);
+			}
+		}
+		else if(state == STATE_DEAD) {
+			if(incarnation > incarnations[id] || (incarnation == incarnations[id] && states[id] != STATE_DEAD)) {
+				declareDead(id, incarnation);
+			}
+		}
+	}
+	
+	/**
+	 * Marks a member suspected and queues the suspicion for dissemination
+	 * @param id the id of the member
+	 * @param incarnation the incarnation the suspicion applies to
+	 * @param now the current time in milliseconds
+	 */
+	private void suspect(int id, int incarnation, long now) {
+		states[id] = STATE_SUSPECT;
+		incarnations[id] = incarnation;
+		suspectedAt[id] = now;
+		transmitsLeft[id] = retransmitLimit;
+	}
+	
+	/**
+	 * Marks a member dead and queues the death for dissemination
+	 * @param id the id of the member
+	 * @param incarnation the incarnation the death applies to
+	 */
+	private void declareDead(int id, int incarnation) {
+		states[id] = STATE_DEAD;
+		incarnations[id] = incarnation;
+		members.get(id).setStatus(true);
+		transmitsLeft[id] = retransmitLimit;
+	}
+	
+	/**
+	 * Picks the next member to ping, reshuffling the order after each full round
+	 * @return the id of the next member that is not dead, or -1 if there is none
+	 */
+	private int nextTarget() {
+		for(int tried = 0; tried < probeOrder.size(); tried++) {
+			if(probeIndex >= probeOrder.size()) {
+				Collections.shuffle(probeOrder, random);
+				probeIndex = 0;
+			}
+			int id = probeOrder.get(probeIndex++);
+			if(states[id] != STATE_DEAD) {
+				return id;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Encodes and sends one message with as many pending updates as fit
+	 * @param code the type of message
+	 * @param to the id of the member to send to
+	 * @param seq the sequence number of the probe the message belongs to
+	 * @param target the id of the member being probed
+	 * @param origin the id of the member that started the probe
+	 */
+	private void send(byte code, int to, int seq, int target, int origin) {
+		sendBuffer.clear();
+		PacketCodec.writeHeader(sendBuffer, version, mode, code, PacketData.FLAG_LAST_PACKET);
+		sendBuffer.putInt(seq);
+		sendBuffer.putInt(selfId);
+		sendBuffer.putInt(target);
+		sendBuffer.putInt(origin);
+		sendBuffer.put((byte) 0);
+		
+		// Pending updates are taken in rotating order so every one gets its turn
+		int count = 0;
+		for(int scanned = 0; scanned < states.length && count < maxPiggyback; scanned++) {
+			int id = (updateCursor + scanned) % states.length;
+			if(transmitsLeft[id] > 0) {
+				PeerData member = members.get(id);
+				sendBuffer.putInt(id);
+				sendBuffer.putInt(incarnations[id]);
+				sendBuffer.put(states[id]);
+				sendBuffer.putInt(member.getAvailability());
+				transmitsLeft[id]--;
+				count++;
+			}
+		}
+		updateCursor = (updateCursor + 1) % states.length;
+		sendBuffer.put(OFFSET_UPDATE_COUNT, (byte) count);
+		
+		PeerData peer = members.get(to);
+		sendPacket.setData(sendBuffer.array(), 0, sendBuffer.position());
+		sendPacket.setAddress(peer.getAddress());
+		sendPacket.setPort(peer.getPort());
+		try {
+			socket.send(sendPacket);
+			messagesSent++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Determines if an id belongs to a configured member
+	 * @param id the id to check
+	 * @return true if the id is in range
+	 */
+	private boolean isMember(int id) {
+		return id >= 0 && id < states.length;
+	}
+	
+	/**
+	 * Getter for the state of a member
+	 * @param id the id of the member
+	 * @return the member's state, alive, suspect or dead
+	 */
+	public synchronized byte getState(int id) {
+		return states[id];
+	}
+	
+	/**
+	 * Getter for the incarnation of a member
+	 * @param id the id of the member
+	 * @return the latest incarnation known for the member
+	 */
+	public synchronized int getIncarnation(int id) {
+		return incarnations[id];
+	}
+	
+	/**
+	 * Getter for the number of messages this peer has sent
+	 * @return the messages sent since the protocol started
+	 */
+	public synchronized long getMessagesSent() {
+		return this.messagesSent;
+	}
+	
+	/**
+	 * Prints the availability and state of every member
+	 */
+	private void printMembership() {
+		for(int id = 0; id < states.length; id++) {
+			PeerData member = members.get(id);
+			String state = (states[id] == STATE_ALIVE) ? "ALIVE" : (states[id] == STATE_SUSPECT) ? "SUSPECT" : "DEAD";
+			System.out.println("Address: " + member.getAddress() + " | Port: " + member.getPort() + " | Availability: " + member.getAvailability() + " | Incarnation: " + incarnations[id] + " | Status: " + state);
+		}
+		System.out.println("\n");
+	}
+}